@@ -1,8 +1,11 @@
 package net.sourceforge.ck2httt.ck;
 
+import java.io.File;
 import java.io.IOException;
 
 import net.sourceforge.ck2httt.pxAnalyzer.PXAdvancedAnalyzer;
+import net.sourceforge.ck2httt.pxAnalyzer.Progress;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.BaseField;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.Field;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.StructField;
 
@@ -10,8 +13,35 @@ import net.sourceforge.ck2httt.pxAnalyzer.PXTree.StructField;
 public class Analyzer {
 
 	static public StructField  __root;
+
+	/**
+	 * When set, the characters, provinces and titles are turned into Characters, County
+	 * and Title objects as soon as they are read, and their structures are dropped
+	 * from the tree. As the save is also read in place, the memory used then depends on
+	 * the data extracted rather than on the size of the save. The analysis is sequential
+	 * and no snapshot is kept.
+	 */
+	static public boolean      _extract = false;
+
+	/**
+	 * Time between two lines showing the progress of the analysis of the save, in ms ;
+	 * 0 for none.
+	 */
+	static public long         _progressPeriod = 5000;
+
+	/**
+	 * When set, the analyzed save is kept in a snapshot file, and the next run on the
+	 * same save loads it instead of analyzing the save again. Checking the snapshot
+	 * still reads the whole save, and the snapshot is about as large as the save.
+	 */
+	static public boolean      _snapshot = false;
+
+	/**
+	 * Directory for the snapshot files ; null to put each one next to it's save.
+	 */
+	static public File         _snapshotDir = null;
 			
-	String __filter = 
+	static final public String __filter = 
 		"{"+
 		"header,"+
 		"globaldata{war{attacker,defender}},"+
@@ -21,7 +51,68 @@ public class Analyzer {
 		"country{tag,form_of_goverment,capital,tier,ruler,laws,controlledprovinces,law_date_3,stability,badboy},"+
 		"title{tag,tier,liege,holder}"+
 		"}";
+
+	/* the same, with the callbacks of the Extractor */
+	static final private String __extractFilter = __filter
+		.replace("character{","character(0){")
+		.replace("province{","province(1){")
+		.replace("title{","title(2){");
+
+	/**
+	 * This analyzer builds the Characters, County and Title objects from the
+	 * structures as they are read, and discards these structures.
+	 * The links between these objects are made once the whole save has been read.
+	 */
+	static private class Extractor extends PXAdvancedAnalyzer {
+		Extractor(String filename) throws IOException { super(filename,PXAdvancedAnalyzer.Mode.MAPPED); }
+		public TreeCallbacks[] getCallbacks() {
+			return new TreeCallbacks[] {
+				new TreeCallbacks() {
+					public TreeMatcherResult doMatch(Field<?> f) {
+						Characters.extract((StructField)f);
+						return TreeMatcherResult.DISCARD;
+					}
+				},
+				new TreeCallbacks() {
+					public TreeMatcherResult doMatch(Field<?> f) {
+						County.__list.put(f);
+						return TreeMatcherResult.DISCARD;
+					}
+				},
+				new TreeCallbacks() {
+					public TreeMatcherResult doMatch(Field<?> f) {
+						Title.__list.put(f);
+						return TreeMatcherResult.DISCARD;
+					}
+				},
+			};
+		}
+	}
 	
+	/**
+	 * Reads the options for the loading of the save.
+	 * @param data the loading section of cvdata.txt ; null if there is none
+	 */
+	static public void loadOptions(StructField data) {
+		if (data==null) return;
+		BaseField f = data.getBase("snapshot");
+		if (f!=null) _snapshot = f.getAsBoolean("yes");
+		f = data.getBase("snapshot_dir");
+		if (f!=null) _snapshotDir = new File(f.getUnquoted());
+		f = data.getBase("extract");
+		if (f!=null) _extract = f.getAsBoolean("yes");
+	}
+
+	/*
+	 * the snapshot file for a save ; in a shared directory, the path of the save
+	 * tells apart the saves with the same name.
+	 */
+	static private File getSnapshot(String filename) {
+		File save = new File(filename).getAbsoluteFile();
+		if (_snapshotDir==null) return new File(save.getPath()+".pxs");
+		return new File(_snapshotDir,save.getName()+"."+Integer.toHexString(save.getPath().hashCode())+".pxs");
+	}
+
 	/**
 	 * First load all characters (even dead ones may be important
 	 * Second load all titles : we may immediately assign titles to characters
@@ -32,54 +123,65 @@ public class Analyzer {
 	 * @throws IOException
 	 */
 	private Analyzer(String CKPath, String filename) throws IOException {
-		PXAdvancedAnalyzer a = new PXAdvancedAnalyzer(filename,true);
-		__root = a.analyze(__filter);
-                Characters.loadAll(__root);
-		Title.loadAll(__root);
-		County.loadAll(CKPath,__root);				
+		Field._useScalars = true; //dates, ids and scores are read as numbers
+		Progress progress = (_progressPeriod>0) ? new Progress(new Progress.Console("loading "+new File(filename).getName()),_progressPeriod) : null;
+		if (_extract) {
+			County.loadData(CKPath);
+			Extractor e = new Extractor(filename);
+			e.setProgress(progress);
+			__root = e.analyze(__extractFilter);
+			Title.link();
+			County.link();
+		}
+		else {
+			//the save is read in place, or streamed when it is compressed : there is no copy of it in the heap
+			PXAdvancedAnalyzer a = new PXAdvancedAnalyzer(filename,PXAdvancedAnalyzer.Mode.MAPPED);
+			a.setProgress(progress);
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (_snapshot)
+				__root = a.analyze(__filter,threads,getSnapshot(filename));
+			else
+				__root = a.analyze(__filter,threads);
+			Characters.loadAll(__root);
+			Title.loadAll(__root);
+			County.loadAll(CKPath,__root);
+		}
 		Country.loadAll(__root);
                 Dynasty.loadAll(CKPath, __root);
                 
 		// and now, fixup the population of all provinces.
-		for (Field<?> f : __root._data ) {
-		    if (!f.name().equals("character")) continue;
-	    	StructField x = (StructField)f;
-	        if (x.get("deathdate")==null) {
+		for (Characters x : Characters.__list) {
+	        if (!x.isDead()) {
 	        	// alive
 	        	boolean martial = false;
 	        	boolean court = false;
 	        	boolean church = false;
-	        	if (x.get("traits") instanceof StructField) { 
-		        	StructField traits = x.getStruct("traits");
-		        	for (Field<?> t : traits._data) {
-		        		martial |= "misguided_warrior".equals(t._name._value);
-		        		martial |= "tough_soldier".equals(t._name._value);
-		        		martial |= "knowledged_tactician".equals(t._name._value);
-		        		martial |= "brilliant_strategist".equals(t._name._value);
-		        		court |= "amateurish_pettifogger".equals(t._name._value);
-		        		court |= "proven_dealbreaker".equals(t._name._value);
-		        		court |= "charismatic_negotiator".equals(t._name._value);
-		        		court |= "grey_eminence".equals(t._name._value);
-		        		court |= "naive_wirepuller".equals(t._name._value);
-		        		court |= "flamboyant_schemer".equals(t._name._value);
-		        		court |= "intricate_webweaver".equals(t._name._value);
-		        		court |= "illusive_shadow".equals(t._name._value);
-		        		court |= "hole_in_the_pocket".equals(t._name._value);
-		        		court |= "proven_accountant".equals(t._name._value);
-		        		court |= "fortune_builder".equals(t._name._value);
-		        		court |= "midas_touched".equals(t._name._value);
-		        		church |= "detached_priest".equals(t._name._value);
-		        		church |= "martial_cleric".equals(t._name._value);
-		        		church |= "scholarly_theologian".equals(t._name._value);
-		        		church |= "mastermind_theologian".equals(t._name._value);
-		        		
-		        		if (martial || court || church) { break; }
-		        	}
-	        	} else {
-	        		// empty list.
+	        	for (String t : x.getTraits()) {
+	        		martial |= "misguided_warrior".equals(t);
+	        		martial |= "tough_soldier".equals(t);
+	        		martial |= "knowledged_tactician".equals(t);
+	        		martial |= "brilliant_strategist".equals(t);
+	        		court |= "amateurish_pettifogger".equals(t);
+	        		court |= "proven_dealbreaker".equals(t);
+	        		court |= "charismatic_negotiator".equals(t);
+	        		court |= "grey_eminence".equals(t);
+	        		court |= "naive_wirepuller".equals(t);
+	        		court |= "flamboyant_schemer".equals(t);
+	        		court |= "intricate_webweaver".equals(t);
+	        		court |= "illusive_shadow".equals(t);
+	        		court |= "hole_in_the_pocket".equals(t);
+	        		court |= "proven_accountant".equals(t);
+	        		court |= "fortune_builder".equals(t);
+	        		court |= "midas_touched".equals(t);
+	        		church |= "detached_priest".equals(t);
+	        		church |= "martial_cleric".equals(t);
+	        		church |= "scholarly_theologian".equals(t);
+	        		church |= "mastermind_theologian".equals(t);
+	        		
+	        		if (martial || court || church) { break; }
 	        	}
 	        	
-	        	String tag = x.getBase("tag").get();
+	        	String tag = x._tag;
 	        	Country country = net.sourceforge.ck2httt.ck.Country.__list.search(tag);
 	        	if (null != country) {
 		        	for (County c : country._owned) {
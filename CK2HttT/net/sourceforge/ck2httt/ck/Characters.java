@@ -1,8 +1,8 @@
 package net.sourceforge.ck2httt.ck;
 
-import java.util.Iterator;
 import java.util.Locale;
 
+import net.sourceforge.ck2httt.pxAnalyzer.CompactList;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.BaseField;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.Field;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.StructField;
@@ -29,8 +29,26 @@ public class Characters implements Key<String> {
     public String          _id;
     /** court tag of character ; main country for ruler! */
     public String          _tag;
-	/** analyzed data */
-    public StructField     _base;
+	/** data kept from the save */
+    private Data           _data;
+
+	/**
+	 * The data kept from the character structure : only what the views below need,
+	 * so that the structure itself can be dropped as soon as it has been read.
+	 */
+	static private class Data {
+		String   _name;
+		String   _date;
+		String   _culture;
+		String   _religion;
+		int      _dyn;
+		byte     _court = -1;
+		boolean  _dead;
+		float[]  _attributes;          //martial, diplomacy, intrigue, stewardship
+		float    _loyalty    = -1;     //-1 if not in the save
+		float[]  _score      = new float[3]; //piety, gold, prestige
+		String[] _traits;
+	}
 	
     
 	/*************************************************************/
@@ -48,17 +66,77 @@ public class Characters implements Key<String> {
 	 */
 	static public void loadAll(StructField root) {
 		for (Field<?> f : root._data) {
-			if (f._name._value.equals("character")) {
-				StructField x = (StructField)f;
-				String id = charId(x.getStruct("id"));
-				Characters c = new Characters(id);
-				c._base = x;
-				c._tag = c._base.getBase("tag").get();
-				__list.add(c);
-			}
+			if (f._name._value.equals("character"))
+				extract((StructField)f);
 		}		
 	}
+
+	/**
+	 * Adds the character read from the given structure, which is not referenced
+	 * afterwards : this may be called while the save is being analyzed.
+	 * @param x a character structure
+	 */
+	static public void extract(StructField x) {
+		Characters c = new Characters(charId(x.getStruct("id")));
+		Data d = new Data();
+		c._tag  = x.getBase("tag").get();
+		c._data = d;
+		BaseField b;
+		b = x.getBase("name");     if (b!=null) d._name     = b.getUnquoted();
+		b = x.getBase("date");     if (b!=null) d._date     = b.getUnquoted();
+		b = x.getBase("culture");  if (b!=null) d._culture  = b.getUnquoted();
+		b = x.getBase("religion"); if (b!=null) d._religion = b.get();
+		b = x.getBase("dyn");      if (b!=null) d._dyn      = b.getAsInt();
+		b = x.getBase("court");    if (b!=null) d._court    = (byte)b.getAsInt();
+		b = x.getBase("loyalty");  if (b!=null) d._loyalty  = b.getAsFloat();
+		d._dead = x.get("deathdate")!=null;
+		d._attributes = attributes(x.get("attributes"));
+		StructField score=x.getStruct("score");
+		if (score!=null) {
+			b = score.getBase("piety");    if (b!=null) d._score[0] = b.getAsFloat();
+			b = score.getBase("gold");     if (b!=null) d._score[1] = b.getAsFloat();
+			b = score.getBase("prestige"); if (b!=null) d._score[2] = b.getAsFloat();
+		}
+		Field<?> traits = x.get("traits");
+		if (traits instanceof StructField) {
+			CompactList<Field<?>> l = ((StructField)traits)._data;
+			d._traits = new String[l.size()];
+			for (int i=0; i<d._traits.length; i++) d._traits[i] = l.get(i).name();
+		}
+		else
+			d._traits = new String[0];
+		__list.add(c);
+	}
 	
+	/*
+	 * reads the attributes (martial, diplomacy, intrigue, stewardship) ; null if they
+	 * are missing or incomplete : this is only an error for the characters that need
+	 * their Stats, and the dead ones don't.
+	 */
+	static private float[] attributes(Field<?> stats) {
+		try {
+			if (stats instanceof StructField) {  //CK
+				StructField f = (StructField)stats;
+				BaseField m = f.getBase("martial");
+				BaseField d = f.getBase("diplomacy");
+				BaseField i = f.getBase("intrigue");
+				BaseField s = f.getBase("stewardship");
+				if (m==null || d==null || i==null || s==null) return null;
+				return new float[] { m.getAsFloat(), d.getAsFloat(), i.getAsFloat(), s.getAsFloat() };
+			}
+			if (stats instanceof BaseField) {  //DV
+				String[] y = ((BaseField)stats).getUnquoted().split("\\.");
+				if (y.length<4) return null;
+				float[] a = new float[4];
+				for (int k=0; k<4; k++) a[k] = new Integer(y[k]).floatValue();
+				return a;
+			}
+		}
+		catch (NumberFormatException e) {
+		}
+		return null;
+	}
+
 	/**
 	 * returns a compound character id containing id and type
 	 * @param f
@@ -71,6 +149,26 @@ public class Characters implements Key<String> {
 	static public Characters search(StructField idField) {
 		return __list.search(charId(idField));
 	}
+
+	/**
+	 * @return true if this character has a deathdate
+	 */
+	public boolean isDead() { return _data._dead; }
+
+	/**
+	 * @return the names of the traits of this character ; the array is a copy
+	 */
+	public String[] getTraits() { return _data._traits.clone(); }
+
+	/**
+	 * @param trait name of a trait
+	 * @return true if this character has that trait
+	 */
+	public boolean hasTrait(String trait) {
+		for (String t : _data._traits)
+			if (t.equals(trait)) return true;
+		return false;
+	}
 				
 	private Characters(String id)      {_id=id;}
 	public Characters()                {}
@@ -120,22 +218,14 @@ public class Characters implements Key<String> {
 	    public Country         _country;
 
 		private Rulers() {
-			BaseField b = _base.getBase("loyalty");
 			_titles = new FieldSet<Title>(Title.class);
 			_claims = new FieldSet<Title>(Title.class);
-			_culture = _base.getBase("culture").getUnquoted();
-			_religion = _base.getBase("religion").get();
-			_loyalty = (b==null) ? 100 : (int)(100*b.getAsFloat());
-			StructField score=_base.getStruct("score");
-			if (score!=null) {
-				BaseField f;
-				f = score.getBase("piety");
-				if (f!=null) _piety = (int)f.getAsFloat();
-				f = score.getBase("gold");
-				if (f!=null) _gold = (int)f.getAsFloat();
-				f = score.getBase("prestige");
-				if (f!=null) _prestige = (int)f.getAsFloat();
-			}			
+			_culture = _data._culture;
+			_religion = _data._religion;
+			_loyalty = (_data._loyalty<0) ? 100 : (int)(100*_data._loyalty);
+			_piety = (int)_data._score[0];
+			_gold = (int)_data._score[1];
+			_prestige = (int)_data._score[2];
 		}
 		
 		/**
@@ -195,30 +285,18 @@ public class Characters implements Key<String> {
 		private Stats(boolean dead, boolean advisor) {
 			_dead    = dead;
 			_advisor = advisor;
-			_isDead = _base.get("deathdate")!=null;
+			_isDead = _data._dead;
 			if (dead && _isDead) return;          //we don't need stats for dead characters
-			if (_base.get("court")!=null)
-				_courtPos=(byte)_base.getBase("court").getAsInt();
+			_courtPos = _data._court;
 			if (advisor && _courtPos==-1) return; //we don't want stats for a non advisor
-			Field<?> stats = _base.get("attributes");
-			if (stats instanceof StructField) {  //CK
-				StructField f = (StructField)stats;
-				_intr = f.getBase("intrigue").getAsFloat();
-				_mart = f.getBase("martial").getAsFloat();
-				_dipl = f.getBase("diplomacy").getAsFloat();
-				_stew = f.getBase("stewardship").getAsFloat();
-			}
-			else {  //DV
-				String v = ((BaseField)stats).getUnquoted();
-				String[] y = v.split("\\.");
-				_mart = new Integer(y[0]).floatValue();
-				_dipl = new Integer(y[1]).floatValue();
-				_intr = new Integer(y[2]).floatValue();
-				_stew = new Integer(y[3]).floatValue();
-			}
-			_name = _base.getBase("name").getUnquoted();
-                        _dynasty = _base.getBase("dyn").getAsInt();
-			String date = _base.getBase("date").getUnquoted();
+			if (_data._attributes==null) throw new IllegalStateException("missing or incomplete attributes for character "+_id);
+			_mart = _data._attributes[0];
+			_dipl = _data._attributes[1];
+			_intr = _data._attributes[2];
+			_stew = _data._attributes[3];
+			_name = _data._name;
+                        _dynasty = _data._dyn;
+			String date = _data._date;
 			_birth = (short) Integer.parseInt(date.substring(0,4));
 			if (_birth > OptionSection.getStartYear()) { _birth = OptionSection.getStartYear(); }				
 			_month = (byte) (Integer.parseInt(date.substring(4,6)) + 1);
@@ -234,31 +312,8 @@ public class Characters implements Key<String> {
 			while(_death-_birth>100 || _death-_birth<25);
 		}
 				
-		private class TraitIterator implements Iterator<BaseField>, Iterable<BaseField> {
-			Iterator<Field<?>> _i=null;
-			private TraitIterator() {
-				Field<?> x= _base.get("traits");
-				if (x==null || ! ( x instanceof StructField))
-					return;
-				_i = ((StructField)x)._data.iterator();
-			}
-			public boolean hasNext() {
-				if (_i==null) return false;
-				return _i.hasNext();
-			}
-			public BaseField next() {
-				return (BaseField)_i.next();
-			}
-			public void remove() {
-				_i.remove();
-			}
-			public Iterator<BaseField> iterator() {
-				return new TraitIterator();
-			}
-		}
-		
-		public Iterable<BaseField> getTraits() {
-			return new TraitIterator();
+		public String[] getTraits() {
+			return Characters.this.getTraits();
 		}
 		
 		//reach the enclosing object
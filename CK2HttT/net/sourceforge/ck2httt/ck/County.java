@@ -31,8 +31,8 @@ public class County implements FieldLoadable, Key<String> {
 	public String       _religion;
 	/** province culture */
 	public String       _baseCulture;
-	/** analyzed data */
-	public StructField  _base;
+	/** privileges, in the order of __privileges */
+	public float[]      _privileges = new float[__privileges.length];
 	/** basic income */
 	public int          _baseIncome;
 	/** real income taking current buildings/effects into account */
@@ -66,14 +66,41 @@ public class County implements FieldLoadable, Key<String> {
 	public int			_churchPopulation;
 
 	static public FieldSet<County> __list = new FieldSet<County>(County.class);
+	/** privileges read for a province */
+	static public final String[] __privileges = { "peasants", "burghers", "clergy", "nobles" };
 	
 	
 	static void loadAll(String CKPath, StructField root) throws FileNotFoundException, IOException {
+		loadData(CKPath);
+		__list.load(root);		
+		link();
+	}
+	
+	/**
+	 * loads the game data needed to read the provinces
+	 * @param CKPath
+	 */
+	static void loadData(String CKPath) throws FileNotFoundException, IOException {
 		ProvinceData.loadFromCSV(CKPath+"db/province.csv");
 		ProvinceData.loadFromScenario(CKPath+"scenarios/1066_scenario_provinces.inc");
 		Improvements.load(CKPath+"db/provinceimprovements.txt");
 		Effects.load(CKPath+"db/provinceeffects.txt");
-		__list.load(root);		
+	}
+	
+	/**
+	 * second processing pass : the counties have been loaded, from the tree or
+	 * during the analysis ; attach them to their titles.
+	 * The titles must have been loaded.
+	 */
+	static void link() {
+		for (County c : __list) {
+			ProvinceData pd = ProvinceData.__list.search(c._id);
+			String title = String.format(Locale.US,"C%03d", new Integer(c._id));
+			c._county = Title.__list.search(title);
+			checkFatal(c._county,"title",title);
+			if (pd._duchy!=null)   c._duchy   = Title.__list.search(pd._duchy);
+			if (pd._kingdom!=null) c._kingdom = Title.__list.search(pd._kingdom);
+		}
 	}
 	
 	static public County getFromTitle(String tag) {
@@ -89,7 +116,8 @@ public class County implements FieldLoadable, Key<String> {
 	}
 	
 	/**
-	 * first processing pass : build the basis county list
+	 * first processing pass : build the basis county list ; this reads the
+	 * province only, so that it may be called during the analysis.
 	 * @param root
 	 */
 	public boolean load(Field<?> x) {
@@ -101,18 +129,19 @@ public class County implements FieldLoadable, Key<String> {
 		_baseIncome = (new Integer(pd._income)).intValue();
 		if (_baseIncome==0) return false; //for sure, that's not a normal province
 		_baseCulture = pd._culture;
-		_base = f;
-		BaseField c = _base.getBase("culture");
+		BaseField c = f.getBase("culture");
 		if (c==null) return false; //can happen for some special provinces
 		_culture = c.getUnquoted();
-		c = _base.getBase("religion");
+		c = f.getBase("religion");
 		if (c==null) return false; //can happen for some special provinces
 		_religion = c.get();
-		String title = String.format(Locale.US,"C%03d", new Integer(_id));
-		_county = Title.__list.search(title);
-		checkFatal(_county,"title",title);
-		if (pd._duchy!=null)   _duchy   = Title.__list.search(pd._duchy);
-		if (pd._kingdom!=null) _kingdom = Title.__list.search(pd._kingdom);
+		Field<?> p = f.get("privileges");
+		if (p instanceof StructField) {
+			for (int i=0; i<__privileges.length; i++) {
+				c = ((StructField)p).getBase(__privileges[i]);
+				if (c!=null) _privileges[i] = c.getAsFloat();
+			}
+		}
 		byte[] imp = new byte[200];
 		int    nb = 0;
 		Field<?> fi = f.get("improvements");
@@ -0,0 +1,395 @@
+package net.sourceforge.ck2httt.ck;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class writes synthetic CK saves, for load and soak testing. The saves are
+ * syntactically valid and have the structure the converter reads (see the filter in
+ * {@link Analyzer}) : characters, provinces, titles, countries, wars, alliances and
+ * dynasties, consistent with each other :
+ * <ul>
+ * <li>each province has its county title (Cnnn), held by the ruler of the kingdom it belongs to</li>
+ * <li>the county titles have a duchy as liege, and the duchies a kingdom</li>
+ * <li>each kingdom is a country, whose ruler has the kingdom tag as court tag, and which
+ *     controls the provinces of the kingdom</li>
+ * <li>the other characters belong to the courts of the kingdoms ; some are advisors, some are dead</li>
+ * </ul>
+ * The same seed and knobs always give the same save.<p>
+ *
+ * Without game data, the provinces are numbered from 1, and the tags, dynasties and
+ * improvements are made up : the save can be analyzed, but not converted. With the
+ * game data ({@link #useGameData}), the provinces, their duchies and kingdoms, the
+ * dynasties, the improvements and the effects are taken from the CK database files,
+ * and the save can go through the whole conversion.<p>
+ *
+ * Usage : SaveGenerator output [-seed n] [-characters n] [-provinces n] [-titles n]
+ *                              [-wars n] [-alliances n] [-ck CK directory]
+ *
+ * @author yprelot
+ */
+public class SaveGenerator {
+
+	/** seed for the random data */
+	public long _seed       = 1;
+	/** number of characters ; there is at least one for each kingdom */
+	public int  _characters = 20000;
+	/** number of provinces ; limited to the known provinces when using the game data */
+	public int  _provinces  = 1000;
+	/** number of duchy and kingdom titles ; ignored when using the game data */
+	public int  _titles     = 300;
+	/** number of wars */
+	public int  _wars       = 20;
+	/** number of alliances */
+	public int  _alliances  = 50;
+
+	static private final String[] __RELIGIONS = {"catholic","orthodox","muslim","pagan","jewish"};
+	static private final String[] __CULTURES  = {"frankish","saxon","norse","german","italian","castillan","greek","arabic","irish","magyar"};
+	static private final String[] __TRAITS    = {
+		"tough_soldier","knowledged_tactician","brilliant_strategist","misguided_warrior",
+		"proven_dealbreaker","charismatic_negotiator","grey_eminence","intricate_webweaver",
+		"proven_accountant","fortune_builder","midas_touched","hole_in_the_pocket",
+		"detached_priest","martial_cleric","scholarly_theologian","mastermind_theologian",
+		"brave","craven","lustful","chaste","charitable","greedy","just","arbitrary"
+	};
+	static private final String[] __MONTHS    = {"january","february","march","april","may","june","july","august","september","october","november","december"};
+	static private final String[] __LAWS      = {"law_succession_primogeniture","law_succession_gavelkind","law_crown_authority","law_vassal_levies"};
+	static private final int      __TYPE      = 38; //type of the character ids
+
+	//game data ; null when not used
+	private ArrayList<String[]> _gameProvinces; //id, culture, duchy, kingdom
+	private ArrayList<String>   _gameDynasties;
+	private ArrayList<String>   _gameImprovements;
+	private ArrayList<String>   _gameEffects;
+
+	//the save being built
+	private Random      _r;
+	private String[]    _provinceId;
+	private String[]    _provinceCulture;
+	private int[]       _provinceKingdom;   //index of the kingdom of each province
+	private String[]    _provinceDuchy;     //duchy tag of each province
+	private Map<String,String> _duchyLiege; //kingdom tag of each duchy
+	private String[]    _kingdom;           //kingdom tags
+	private String[]    _kingdomReligion;
+	private String[]    _kingdomCulture;
+	private String[]    _dynasties;
+
+	public SaveGenerator() {
+	}
+
+	/**
+	 * Takes the provinces, titles, dynasties, improvements and effects from the CK database.
+	 * @param CKPath the CK directory, ending with a separator
+	 * @throws IOException
+	 */
+	public void useGameData(String CKPath) throws IOException {
+		_gameProvinces = new ArrayList<String[]>();
+		BufferedReader r = new BufferedReader(new FileReader(CKPath+"db/province.csv"));
+		try {
+			r.readLine();
+			for (String s=r.readLine(); s!=null; s=r.readLine()) {
+				String[] x = s.split(";");
+				//same columns as County.ProvinceData ; provinces without income are not converted
+				if (x.length<12 || x[9].length()==0 || x[9].equals("0") || x[10].length()==0 || x[11].length()==0) continue;
+				_gameProvinces.add(new String[]{x[0],x[8],x[10],x[11]});
+			}
+		}
+		finally {
+			r.close();
+		}
+		Dynasty.DynastyData.load(CKPath+"db/dynasties.txt");
+		_gameDynasties = new ArrayList<String>();
+		for (Dynasty.DynastyData d : Dynasty.DynastyData.__list) if (d.getKey()!=null) _gameDynasties.add(d.getKey());
+		County.Improvements.load(CKPath+"db/provinceimprovements.txt");
+		_gameImprovements = new ArrayList<String>();
+		for (County.Improvements i : County.Improvements.__array) _gameImprovements.add(i._name);
+		County.Effects.load(CKPath+"db/provinceeffects.txt");
+		_gameEffects = new ArrayList<String>();
+		for (County.Effects e : County.Effects.__array) _gameEffects.add(e._name);
+	}
+
+	/* a tag made of a letter followed by 3 letters counting n */
+	static private String tag(char first, int n) {
+		char[] t = {first,'A','A','A'};
+		for (int i=3; i>0 && n>0; i--, n/=26) t[i] = (char)('A'+n%26);
+		return new String(t);
+	}
+
+	private String pick(String[] a) {
+		return a[_r.nextInt(a.length)];
+	}
+
+	/* builds the provinces and the titles above them */
+	private void buildMap() {
+		LinkedHashMap<String,Integer> kingdoms = new LinkedHashMap<String,Integer>();
+		_duchyLiege = new LinkedHashMap<String,String>();
+		if (_gameProvinces!=null) {
+			ArrayList<String[]> all = new ArrayList<String[]>(_gameProvinces);
+			Collections.shuffle(all,_r);
+			int n = Math.min(_provinces,all.size());
+			_provinceId      = new String[n];
+			_provinceCulture = new String[n];
+			_provinceDuchy   = new String[n];
+			_provinceKingdom = new int[n];
+			for (int i=0; i<n; i++) {
+				String[] p = all.get(i);
+				_provinceId[i]      = p[0];
+				_provinceCulture[i] = p[1];
+				_provinceDuchy[i]   = p[2];
+				if (!kingdoms.containsKey(p[3])) kingdoms.put(p[3],kingdoms.size());
+				_provinceKingdom[i] = kingdoms.get(p[3]);
+				_duchyLiege.put(p[2],p[3]);
+			}
+		}
+		else {
+			int n = Math.max(1,_provinces);
+			int k = Math.max(1,_titles/5);              //one kingdom for 4 duchies
+			int d = Math.max(k,_titles-k);
+			_provinceId      = new String[n];
+			_provinceCulture = new String[n];
+			_provinceDuchy   = new String[n];
+			_provinceKingdom = new int[n];
+			for (int i=0; i<n; i++) {
+				int duchy   = i*d/n;
+				int kingdom = duchy*k/d;
+				String kt   = tag('K',kingdom);
+				if (!kingdoms.containsKey(kt)) kingdoms.put(kt,kingdoms.size());
+				_provinceId[i]      = Integer.toString(i+1);
+				_provinceCulture[i] = __CULTURES[kingdom%__CULTURES.length];
+				_provinceDuchy[i]   = tag('D',duchy);
+				_provinceKingdom[i] = kingdoms.get(kt);
+				_duchyLiege.put(_provinceDuchy[i],kt);
+			}
+		}
+		_kingdom         = kingdoms.keySet().toArray(new String[kingdoms.size()]);
+		_kingdomReligion = new String[_kingdom.length];
+		_kingdomCulture  = new String[_kingdom.length];
+		for (int i=0; i<_kingdom.length; i++) _kingdomReligion[i] = pick(__RELIGIONS);
+		for (int i=_provinceId.length-1; i>=0; i--) _kingdomCulture[_provinceKingdom[i]] = _provinceCulture[i];
+		if (_gameDynasties!=null && !_gameDynasties.isEmpty())
+			_dynasties = _gameDynasties.toArray(new String[_gameDynasties.size()]);
+		else {
+			_dynasties = new String[Math.max(1,_characters/8)];
+			for (int i=0; i<_dynasties.length; i++) _dynasties[i] = Integer.toString(i+1);
+		}
+	}
+
+	/* the id structure of the character with the given id */
+	static private String id(String name, int id, String tab) {
+		return tab+name+"=\n"+tab+"{\n"+tab+"\tid="+id+"\n"+tab+"\ttype="+__TYPE+"\n"+tab+"}\n";
+	}
+
+	/* number of characters written ; the rulers come first, one for each kingdom */
+	private int characters() {
+		return Math.max(_characters,_kingdom.length);
+	}
+
+	private void writeHeader(Writer w) throws IOException {
+		w.write("header=\n{\n\tgame=\"CK\"\n\tdate=\"1066.9.15\"\n}\n");
+		w.write("globaldata=\n{\n\tstartdate=\n\t{\n\t\tyear=1066\n\t\tmonth=september\n\t\tday=15\n\t}\n");
+		for (int i=0; i<_wars; i++) {
+			int a = 1+_r.nextInt(_kingdom.length), d = 1+_r.nextInt(_kingdom.length);
+			w.write("\twar=\n\t{\n");
+			w.write(id("attacker",a,"\t\t"));
+			w.write(id("defender",d,"\t\t"));
+			w.write("\t\tname=\"War of "+_kingdom[a-1]+" against "+_kingdom[d-1]+"\"\n");
+			for (int b=_r.nextInt(3); b>0; b--) {
+				w.write("\t\tbattle_result=\n\t\t{\n\t\t\tprovince="+_provinceId[_r.nextInt(_provinceId.length)]+"\n");
+				w.write("\t\t\taggressor_is_attacker="+(_r.nextBoolean() ? "yes" : "no")+"\n");
+				w.write("\t\t\tattacker_won="+(_r.nextBoolean() ? "yes" : "no")+"\n");
+				w.write("\t\t\tenddate=\n\t\t\t{\n\t\t\t\tyear="+(1060+_r.nextInt(6))+"\n\t\t\t\tmonth="+pick(__MONTHS)+"\n\t\t\t\tday="+(1+_r.nextInt(28))+"\n\t\t\t}\n\t\t}\n");
+			}
+			w.write("\t}\n");
+		}
+		w.write("}\n");
+		w.write("relations=\n{\n");
+		for (int i=0; i<_alliances; i++) {
+			w.write("\talliance=\n\t{\n");
+			w.write(id("primary",1+_r.nextInt(_kingdom.length),"\t\t"));
+			w.write(id("secondary",1+_r.nextInt(_kingdom.length),"\t\t"));
+			w.write("\t}\n");
+		}
+		w.write("}\n");
+	}
+
+	private void writeCharacter(StringBuilder b, int id) {
+		boolean ruler   = id<=_kingdom.length;
+		int     kingdom = (ruler) ? id-1 : _r.nextInt(_kingdom.length);
+		b.append("character=\n{\n").append(id("id",id,"\t"));
+		b.append("\ttag=").append(_kingdom[kingdom]).append('\n');
+		b.append("\tname=\"Name").append(id).append("\"\n");
+		b.append("\tdyn=").append(_dynasties[_r.nextInt(_dynasties.length)]).append('\n');
+		//birth date : year, then month and day counted from 0
+		b.append("\tdate=\"").append(980+_r.nextInt(80));
+		int m = _r.nextInt(12), d = _r.nextInt(28);
+		b.append((m<10) ? "0" : "").append(m).append((d<10) ? "0" : "").append(d).append("\"\n");
+		b.append("\treligion=").append((_r.nextInt(10)==0) ? pick(__RELIGIONS) : _kingdomReligion[kingdom]).append('\n');
+		b.append("\tculture=\"").append((_r.nextInt(10)==0) ? pick(__CULTURES) : _kingdomCulture[kingdom]).append("\"\n");
+		if (!ruler && _r.nextInt(3)==0)
+			b.append("\tdeathdate=\"").append(1040+_r.nextInt(26)).append("0000\"\n");
+		b.append("\tattributes=\n\t{\n");
+		b.append("\t\tintrigue=").append(_r.nextInt(20)).append(".000\n");
+		b.append("\t\tmartial=").append(_r.nextInt(20)).append(".000\n");
+		b.append("\t\tdiplomacy=").append(_r.nextInt(20)).append(".000\n");
+		b.append("\t\tstewardship=").append(_r.nextInt(20)).append(".000\n");
+		b.append("\t}\n");
+		int t = _r.nextInt(4);
+		if (t==0) b.append("\ttraits={}\n");
+		else {
+			b.append("\ttraits=\n\t{\n");
+			for (int k=0; k<t; k++) b.append("\t\t").append(pick(__TRAITS)).append("=yes\n");
+			b.append("\t}\n");
+		}
+		b.append("\tscore=\n\t{\n");
+		b.append("\t\tpiety=").append(_r.nextInt(1000)).append('.').append(_r.nextInt(900)+100).append('\n');
+		b.append("\t\tgold=").append(_r.nextInt(1000)-200).append(".000\n");
+		b.append("\t\tprestige=").append(_r.nextInt(500)).append(".250\n");
+		b.append("\t}\n");
+		if (id>_kingdom.length) b.append(id("father",1+_r.nextInt(id-1),"\t"));
+		b.append("\tloyalty=0.").append(_r.nextInt(900)+100).append('\n');
+		if (!ruler && _r.nextInt(10)==0) b.append("\tcourt=").append(_r.nextInt(5)).append('\n');
+		b.append("}\n");
+	}
+
+	private void writeProvince(StringBuilder b, int i) {
+		b.append("province=\n{\n\tid=").append(_provinceId[i]).append('\n');
+		b.append("\treligion=").append(_kingdomReligion[_provinceKingdom[i]]).append('\n');
+		b.append("\tculture=").append(_provinceCulture[i]).append('\n');
+		b.append("\tprivileges={}\n");
+		writeNames(b,"improvements",_gameImprovements,"improvement_",3);
+		writeNames(b,"effects",_gameEffects,"effect_",1);
+		writeNames(b,"advances",null,"advance_",4);
+		b.append("}\n");
+	}
+
+	/* a structure of up to max names set to yes */
+	private void writeNames(StringBuilder b, String name, ArrayList<String> game, String prefix, int max) {
+		int n = _r.nextInt(max+1);
+		if (game!=null) n = Math.min(n,game.size());
+		if (n==0) { b.append('\t').append(name).append("={}\n"); return; }
+		b.append('\t').append(name).append("=\n\t{\n");
+		for (int k=0; k<n; k++) {
+			b.append("\t\t");
+			if (game!=null) b.append(game.get(_r.nextInt(game.size())));
+			else            b.append(prefix).append(_r.nextInt(20));
+			b.append("=yes\n");
+		}
+		b.append("\t}\n");
+	}
+
+	private void writeTitle(StringBuilder b, String tag, String tier, String liege, int holder) {
+		b.append("title=\n{\n\ttag=").append(tag).append('\n');
+		b.append("\ttier=").append(tier).append('\n');
+		b.append("\tliege=").append(liege).append('\n');
+		b.append("\tholder=\n\t{\n").append(id("character",holder,"\t\t"));
+		b.append("\t\tstartdate=\n\t\t{\n\t\t\tyear=").append(1000+_r.nextInt(66));
+		b.append("\n\t\t\tmonth=").append(pick(__MONTHS)).append("\n\t\t\tday=").append(1+_r.nextInt(28)).append("\n\t\t}\n\t}\n");
+		b.append("}\n");
+	}
+
+	private void writeCountry(StringBuilder b, int k) {
+		b.append("country=\n{\n\ttag=").append(_kingdom[k]).append('\n');
+		b.append("\tform_of_goverment=feudal_monarchy\n");
+		int capital = -1;
+		for (int i=0; i<_provinceId.length && capital<0; i++) if (_provinceKingdom[i]==k) capital = i;
+		b.append("\tcapital=").append(_provinceId[capital]).append('\n');
+		b.append("\ttier=kingdom\n");
+		b.append("\truler=\n\t{\n").append(id("character",k+1,"\t\t")).append("\t}\n");
+		b.append("\tlaws=\n\t{\n");
+		for (String l : __LAWS) if (_r.nextBoolean()) b.append("\t\t").append(l).append("=yes\n");
+		b.append("\t}\n");
+		b.append("\tcontrolledprovinces=\n\t{\n\t\t");
+		for (int i=0; i<_provinceId.length; i++) if (_provinceKingdom[i]==k) b.append(_provinceId[i]).append(' ');
+		b.append("\n\t}\n");
+		b.append("\tstability=").append(_r.nextInt(7)-3).append(".000\n");
+		b.append("\tbadboy=").append(_r.nextInt(30)).append('.').append(_r.nextInt(900)+100).append('\n');
+		b.append("}\n");
+	}
+
+	/**
+	 * Writes the save.
+	 * @param w where to write ; it is not closed.
+	 * @throws IOException
+	 */
+	public void write(Writer w) throws IOException {
+		_r = new Random(_seed);
+		buildMap();
+		writeHeader(w);
+		StringBuilder b = new StringBuilder(4096);
+		//the characters, with the provinces and their county titles among them, as in the real saves
+		int n = characters();
+		int p = 0;
+		for (int i=1; i<=n; i++) {
+			writeCharacter(b,i);
+			for (; p<_provinceId.length && (long)p*n<(long)i*_provinceId.length; p++) {
+				writeProvince(b,p);
+				writeTitle(b,String.format("C%03d",Integer.parseInt(_provinceId[p])),"county",_provinceDuchy[p],_provinceKingdom[p]+1);
+			}
+			w.append(b);
+			b.setLength(0);
+		}
+		for (Map.Entry<String,String> e : _duchyLiege.entrySet()) {
+			int k = 0;
+			while (!_kingdom[k].equals(e.getValue())) k++;
+			writeTitle(b,e.getKey(),"duchy",e.getValue(),k+1);
+		}
+		for (int k=0; k<_kingdom.length; k++) writeTitle(b,_kingdom[k],"kingdom","none",k+1);
+		for (int k=0; k<_kingdom.length; k++) writeCountry(b,k);
+		for (String d : _dynasties) {
+			if (_r.nextInt(4)!=0) continue;
+			b.append("dynasty=\n{\n\tid=\n\t{\n\t\tid=").append(d).append("\n\t\ttype=").append(__TYPE).append("\n\t}\n");
+			b.append("\tname=\"Dynasty").append(d).append("\"\n}\n");
+		}
+		w.append(b);
+	}
+
+	/**
+	 * Writes the save in a file.
+	 * @param f the file to write
+	 * @throws IOException
+	 */
+	public void write(File f) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f),"ISO-8859-1"),1<<16);
+		try {
+			write(w);
+		}
+		finally {
+			w.close();
+		}
+	}
+
+	/* the value following the option in the arguments ; def if the option is not there */
+	static private String option(String[] args, String name, String def) {
+		for (int i=0; i<args.length-1; i++)
+			if (args[i].equals(name)) return args[i+1];
+		return def;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length<1 || args[0].startsWith("-")) {
+			System.out.println("usage : SaveGenerator output [-seed n] [-characters n] [-provinces n] [-titles n] [-wars n] [-alliances n] [-ck CK directory]");
+			return;
+		}
+		SaveGenerator g = new SaveGenerator();
+		g._seed       = Long.parseLong(option(args,"-seed",Long.toString(g._seed)));
+		g._characters = Integer.parseInt(option(args,"-characters",Integer.toString(g._characters)));
+		g._provinces  = Integer.parseInt(option(args,"-provinces",Integer.toString(g._provinces)));
+		g._titles     = Integer.parseInt(option(args,"-titles",Integer.toString(g._titles)));
+		g._wars       = Integer.parseInt(option(args,"-wars",Integer.toString(g._wars)));
+		g._alliances  = Integer.parseInt(option(args,"-alliances",Integer.toString(g._alliances)));
+		String ck = option(args,"-ck",null);
+		if (ck!=null) g.useGameData(ck+"/");
+		g.write(new File(args[0]));
+	}
+}
@@ -1,6 +1,10 @@
 package net.sourceforge.ck2httt.ck;
 
 import static net.sourceforge.ck2httt.utils.Check.checkFatal;
+
+import java.util.ArrayList;
+
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.BaseField;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.Field;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.StructField;
 import net.sourceforge.ck2httt.utils.FieldLoadable;
@@ -23,8 +27,12 @@ public class Title implements FieldLoadable, Key<String> {
 	public Title                _liege;
 	/** claims on this title */
 	public SearchSet<String,Characters> _claims;
-	/** analyzed data */
-	public StructField          _base;
+	/** liege title tag, until resolved */
+	private String              _liegeTag;
+	/** holder id, until resolved */
+	private String              _holderId;
+	/** claimants ids, until resolved */
+	private String[]            _claimIds;
 	/** start year */
 	public short                _year;
 	/** start month */
@@ -40,9 +48,23 @@ public class Title implements FieldLoadable, Key<String> {
 	 */
 	static void loadAll(StructField root) {
 		__list.load(root);
+		link();
+	}
+
+	/**
+	 * second processing pass : the titles have been loaded, from the tree or
+	 * during the analysis ; resolve the holders and lieges.
+	 * The characters must have been loaded.
+	 */
+	static void link() {
+		ArrayList<Title> orphans = new ArrayList<Title>();
 		for (Title t : __list)
-			t._liege = __list.search(t._base.getBase("liege").get());
+			if (!t.linkHolder()) orphans.add(t);
+		__list.removeAll(orphans);
+		for (Title t : __list)
+			t._liege = (t._liegeTag==null) ? null : __list.search(t._liegeTag);
 	}
+
 	public boolean load(Field<?> x) {
 		if (!x.name().equals("title")) return false;
 		StructField f = (StructField)x;
@@ -51,24 +73,37 @@ public class Title implements FieldLoadable, Key<String> {
 		if      (tier.equals("county"))  _tier=Tier.COUNTY;
 		else if (tier.equals("duchy"))   _tier=Tier.DUCHY;
 		else if (tier.equals("kingdom")) _tier=Tier.KINGDOM;
-		_base=f;
+		BaseField liege = f.getBase("liege");
+		if (liege!=null) _liegeTag = liege.get();
 		StructField hf = f.getStruct("holder");
 		if (null == hf) { return false; } // tag associated with non-existent character.
 		StructField cf = hf.getStruct("character"); // tag associated with non-existent character.
 		if (null == cf) { return false; }
-		Characters holder=Characters.search(f.getStruct("holder").getStruct("character"));
+		_holderId = Characters.charId(cf);
+		StructField date = hf.getStruct("startdate");
+		if (date!=null) {
+			_year  = (short)date.getBase("year").getAsInt();
+			_month = (byte)getMonth(date.getBase("month").get());
+			_day   = (byte)date.getBase("day").getAsInt();
+		}
+		StructField[] claims = f.getAllStruct("claim");
+		_claimIds = new String[claims.length];
+		for (int i=0; i<claims.length; i++)
+			_claimIds[i] = Characters.charId(claims[i].getStruct("character"));
+		return true;
+	}
+
+	/* attaches the title to its holder ; false if that character doesn't exist */
+	private boolean linkHolder() {
+		Characters holder=Characters.__list.search(_holderId);
 		if (null == holder) { return false; } // tag associated with non-existent character.
 		checkFatal(holder,"holder","province "+_tag);
 		_holder = holder.getRuler();
 		_holder._titles.add(this);
-		StructField date = f.getStruct("holder").getStruct("startdate");
-		_year  = (short)date.getBase("year").getAsInt();
-		_month = (byte)getMonth(date.getBase("month").get());
-		_day   = (byte)date.getBase("day").getAsInt();
 		if (_holder.Characters()._tag.equals(_tag))
 			_holder._main=this;
-		for (StructField cx : f.getAllStruct("claim")) {
-			Characters c = Characters.search(cx.getStruct("character"));
+		for (String id : _claimIds) {
+			Characters c = Characters.__list.search(id);
 			_claims.add(c);
 			c.getRuler()._claims.add(this);
 		}
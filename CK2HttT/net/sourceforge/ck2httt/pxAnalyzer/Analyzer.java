@@ -1,5 +1,7 @@
 package net.sourceforge.ck2httt.pxAnalyzer;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import net.sourceforge.ck2httt.pxAnalyzer.Token.*;
 
@@ -175,11 +177,38 @@ public class Analyzer {
 		protected Token _lastName;
 	};
 
+	/**
+	 * The Hooks implementing this interface may declare that they accept flyweight
+	 * Tokens (see {@link Token}) : when they do, the Analyzer doesn't allocate any Token
+	 * or String for the data it reads, and only builds the String values which are
+	 * actually requested through {@link Token#value()}.<p>
+	 * Such Hooks must never keep the Token they receive after the call returns, nor
+	 * read it's _value field directly ; {@link Token#keep()} is the way to remember
+	 * a Token.<p>
+	 */
+	static public interface FlyweightHooks extends Hooks {
+		/** @return true if the flyweight Tokens can be handed over to this Hooks */
+		boolean acceptsFlyweight();
+	};
+
 	private Tokenizer _t; // analyzes the data
-	private Token[] _stack = new Token[4]; // stores fetched tokens (min required 3 ; more for more contextual info when grammatic error met)
+	private static final int SIZE = 4; // stack size (min required 3 ; more for more contextual info when grammatic error met)
+	private TokenType[] _stack = new TokenType[SIZE]; // stores fetched token types
+	private int[] _beg  = new int[SIZE]; // and their characteristics
+	private int[] _end  = new int[SIZE];
+	private int[] _line = new int[SIZE];
+	private Token[] _tokens = new Token[SIZE]; // Tokens already built for the stack, if any
+	private Token[] _fly; // flyweight Tokens, one per stack position ; null if not used
 	private int _p = 0; // stack current size
 	private Hooks _h;
 	private boolean _skip = false; // true if skip the end of the calling level
+	private int _depth = 0; // nesting level of the current field
+	private Progress _progress; // where the progress is reported ; null if not followed
+	private int _count; // tokens read since the last report
+	private long _reported; // position at the last report
+	private String _section; // top level field read since the last report ; null if none
+	private SymbolTable _sections; // names of the top level fields
+	private static final int REPORT = 4096; // tokens read between two reports
 
 	public Analyzer(Tokenizer p) {
 		this(p, new NoHooks());
@@ -187,35 +216,91 @@ public class Analyzer {
 
 	public Analyzer(Tokenizer p, Hooks h) {
 		_t = p;
-		fill();
 		_h = h;
+		if (h instanceof FlyweightHooks && ((FlyweightHooks)h).acceptsFlyweight()) {
+			_fly = new Token[SIZE];
+			for (int i=0; i<SIZE; i++) _fly[i] = new Token(p);
+		}
+		fill();
 	}
 
 	/* refills the stack with tokens */
 	private final void fill() {
-		while (_p < _stack.length) {
-			_stack[_p++] = _t.getNext();
+		while (_p < SIZE) {
+			_stack[_p] = _t.next();
+			_beg[_p]   = _t.begin();
+			_end[_p]   = _t.end();
+			_line[_p]  = _t.line();
+			_tokens[_p++] = null;
+			if (_progress != null && ++_count == REPORT)
+				report();
 		}
 	}
 
+	/**
+	 * Reports the progress of this analysis to p. The position in the data is
+	 * taken from the Tokenizer, so that the skipped structures are counted.
+	 * @param p where to report ; null to stop reporting
+	 */
+	public void setProgress(Progress p) {
+		_progress = p;
+		_reported = _t.position();
+		if (p != null && _sections == null)
+			_sections = new SymbolTable();
+	}
+
+	/* reports what was read since the last report */
+	private void report() {
+		long pos = _t.position();
+		_progress.advance(pos - _reported, _count, _section);
+		_reported = pos;
+		_count = 0;
+		_section = null;
+	}
+
 	/* consume q tokens and refills the stack */
 	private final void consume(int q) {
 		if (q > 0) {
-			System.arraycopy(_stack, q, _stack, 0, _stack.length - q);
+			System.arraycopy(_stack, q, _stack, 0, SIZE - q);
+			System.arraycopy(_beg, q, _beg, 0, SIZE - q);
+			System.arraycopy(_end, q, _end, 0, SIZE - q);
+			System.arraycopy(_line, q, _line, 0, SIZE - q);
+			System.arraycopy(_tokens, q, _tokens, 0, SIZE - q);
 			_p -= q;
 			fill();
 		}
 	}
 
+	/* builds a normal Token for the stack position i */
+	private Token build(int i) {
+		String v = null;
+		if (_stack[i] == TokenType.TOKEN || _stack[i] == TokenType.STRING)
+			v = _t.value(_beg[i], _end[i]);
+		else if (_stack[i] == TokenType.ERROR)
+			v = "";
+		return new Token(_stack[i], _beg[i], _end[i], v, _line[i]);
+	}
+
+	/* gets the Token for the stack position i, as it must be passed to the hooks */
+	private Token token(int i) {
+		if (_fly != null) {
+			_fly[i].set(_stack[i], _beg[i], _end[i], _line[i]);
+			return _fly[i];
+		}
+		if (_tokens[i] == null)
+			_tokens[i] = build(i);
+		return _tokens[i];
+	}
+
 	/* fast forward to next CLOSE at terminating the current level : CLOSE or END is now the first token in the stack */
 	private void consumeToClose() {
 		int n = 0;
 		int i;
 		// check if we already have it in the stack
-		for (i = 0; i < _stack.length; i++) {
-			if (_stack[i]._token == TokenType.CLOSE)
+		for (i = 0; i < SIZE; i++) {
+			if (_stack[i] == TokenType.CLOSE)
 				n -= 1;
-			else if (_stack[i]._token == TokenType.OPEN)
+			else if (_stack[i] == TokenType.OPEN)
 				n += 1;
 			if (n < 0)
 				break;
@@ -223,14 +308,18 @@ public class Analyzer {
 		if (n < 0) // yes, found
 			consume(i);
 		else { // no... use the fast forward call from the parser : we are gaining a lot of time here
-			Token t = null;
+			TokenType t = null;
 			while (n >= 0) {
-				t = _t.getNextClose();
-				if (t._token != TokenType.CLOSE)
+				t = _t.nextClose();
+				if (t != TokenType.CLOSE)
 					break; //END reached without close ; probably a grammatical error
 				n -= 1;
 			}
-			_stack[0] = t;
+			_stack[0]  = t;
+			_beg[0]    = _t.begin();
+			_end[0]    = _t.end();
+			_line[0]   = _t.line();
+			_tokens[0] = null;
 			_p = 1;
 			fill();
 		}
@@ -239,37 +328,40 @@ public class Analyzer {
 	private int analyzeStruct() {
 		int r = 0;
 		//first, determine if we are really in a struct
-		if (_stack[0]._token != TokenType.OPEN)
+		if (_stack[0] != TokenType.OPEN)
 			return 0;
-		if (_stack[1]._token == TokenType.TOKEN
-				&& _stack[2]._token == TokenType.EQUAL)
+		if (_stack[1] == TokenType.TOKEN
+				&& _stack[2] == TokenType.EQUAL)
 			r = 1;
-		else if (_stack[1]._token == TokenType.OPEN)
+		else if (_stack[1] == TokenType.OPEN)
 			r = 2;
-		else if (_stack[1]._token == TokenType.CLOSE)
+		else if (_stack[1] == TokenType.CLOSE)
 			r = 3;
 		else
 			return 0;
 		//that's the case : analyze
-		Token t = _stack[0];
-		consume(1);
 		if (r == 3) {
-			_h.beforeEmpty(t);
-			_skip = _h.afterEmpty(_stack[0]);
+			_h.beforeEmpty(token(0));
+			consume(1);
+			_skip = _h.afterEmpty(token(0));
 			consume(1);
 			return 1;
-		} else if (!_h.beforeStruct(t)) {
+		}
+		boolean skip = _h.beforeStruct(token(0));
+		consume(1);
+		_depth++;
+		if (!skip) {
 			if (r == 1)
 				r = analyzeCompoundList();
 			else if (r == 2)
 				r = analyzeAnonList();
 		} else
 			consumeToClose();
-		if (r < 0 || _stack[0]._token != TokenType.CLOSE)
+		_depth--;
+		if (r < 0 || _stack[0] != TokenType.CLOSE)
 			return -1;
-		t = _stack[0];
+		_skip = _h.afterStruct(token(0));
 		consume(1);
-		_skip = _h.afterStruct(t);
 		return 1;
 	}
 
@@ -277,7 +369,7 @@ public class Analyzer {
 		int r;
 		do
 			r = analyzeCompound();
-		while (r > 0 && !_skip && _stack[0]._token!=Token.TokenType.END && _stack[0]._token!=Token.TokenType.CLOSE);
+		while (r > 0 && !_skip && _stack[0]!=Token.TokenType.END && _stack[0]!=Token.TokenType.CLOSE);
 		if (_skip)
 			consumeToClose();
 		return (r>=0) ? 1 : -1;
@@ -308,20 +400,21 @@ public class Analyzer {
 	}
 
 	private int analyzeList() {
-		if (_stack[0]._token != TokenType.OPEN)
+		if (_stack[0] != TokenType.OPEN)
 			return 0;
 		int r = 0;
-		Token t = _stack[0];
+		boolean skip = _h.beforeList(token(0));
 		consume(1);
-		if (!_h.beforeList(t))
+		_depth++;
+		if (!skip)
 			r = analyzeDataList();
 		else
 			consumeToClose();
-		if (r < 0 || _stack[0]._token != TokenType.CLOSE)
+		_depth--;
+		if (r < 0 || _stack[0] != TokenType.CLOSE)
 			return -1;
-		t = _stack[0];
+		_skip = _h.afterList(token(0));
 		consume(1);
-		_skip = _h.afterList(t);
 		return 1;
 	}
 
@@ -336,20 +429,21 @@ public class Analyzer {
 	}
 
 	private int analyzeAnon() {
-		if (_stack[0]._token != TokenType.OPEN)
+		if (_stack[0] != TokenType.OPEN)
 			return 0;
 		int r = 0;
-		Token t = _stack[0];
+		boolean skip = _h.beforeAnon(token(0));
 		consume(1);
-		if (!_h.beforeAnon(t))
+		_depth++;
+		if (!skip)
 			r = analyzeBaseList();
 		else
 			consumeToClose();
-		if (r < 0 || _stack[0]._token != TokenType.CLOSE)
+		_depth--;
+		if (r < 0 || _stack[0] != TokenType.CLOSE)
 			return -1;
-		t = _stack[0];
+		_skip = _h.afterAnon(token(0));
 		consume(1);
-		_skip = _h.afterAnon(t);
 		return 1;
 	}
 
@@ -364,10 +458,10 @@ public class Analyzer {
 	}
 
 	private int analyzeData(boolean list) {
-		if (_stack[0]._token == TokenType.TOKEN
-				|| _stack[0]._token == TokenType.STRING) {
-			_skip = (list) ? _h.afterListData(_stack[0]) : _h
-					.afterBase(_stack[0]);
+		if (_stack[0] == TokenType.TOKEN
+				|| _stack[0] == TokenType.STRING) {
+			_skip = (list) ? _h.afterListData(token(0)) : _h
+					.afterBase(token(0));
 			consume(1);
 			return 1;
 		}
@@ -375,12 +469,14 @@ public class Analyzer {
 	}
 
 	private int analyzeName() {
-		if (_stack[0]._token == TokenType.TOKEN
-				&& _stack[1]._token == TokenType.EQUAL) {
-			_h.getName(_stack[0]);
-			if (_stack[2]._token == TokenType.TOKEN
-					|| _stack[2]._token == TokenType.STRING)
-				_h.beforeBase(_stack[0]);
+		if (_stack[0] == TokenType.TOKEN
+				&& _stack[1] == TokenType.EQUAL) {
+			if (_depth == 0 && _progress != null)
+				_section = _t.symbol(_beg[0], _end[0], _sections);
+			_h.getName(token(0));
+			if (_stack[2] == TokenType.TOKEN
+					|| _stack[2] == TokenType.STRING)
+				_h.beforeBase(token(0));
 			consume(2);
 			return 1;
 		}
@@ -392,8 +488,8 @@ public class Analyzer {
 	 */
 	public String tokenStack() {
 		String s = "";
-		for (Token t : _stack)
-			s = s + " " + t.toString();
+		for (int i = 0; i < _p; i++)
+			s = s + " " + build(i).toString();
 		return s;
 	}
 
@@ -411,23 +507,86 @@ public class Analyzer {
 	 */
 	public boolean analyze() {
 		_h.begin();
-		if (analyzeCompoundList() < 0)
-			return false;
-		boolean r = _stack[0]._token == TokenType.END;
-		if (r)
-			_h.end(_stack[0]);
-		return r;
+		try {
+			if (analyzeCompoundList() < 0)
+				return false;
+			boolean r = _stack[0] == TokenType.END;
+			if (r)
+				_h.end(token(0));
+			return r;
+		} finally {
+			if (_progress != null)
+				report();
+		}
 	}
 
 	/**
-	 * Stack trace for the last error found
+	 * Analyzes the flow of Token returned by the given Tokenizer ; unlike {@link #analyze()},
+	 * an exception met during the analysis is reported as an error.
+	 * @return the result of the analysis ; the context is not known here.
 	 */
-	static public String _error;
+	public Result run() {
+		try {
+			boolean b = analyze();
+			return new Result(b, (b) ? "" : tokenStack(), getCurrentIndex(), "");
+		} catch (RuntimeException e) {
+			e.printStackTrace(System.out);
+			return new Result(false, tokenStack(), getCurrentIndex(), "");
+		}
+	}
+
 	/**
-	 * Current position in the data when the error was found. That pointer place is 
-	 * certainly somewhere not too far after the actual error location.
+	 * The result of one analysis. Each analysis has it's own, so that several
+	 * analyses can run at the same time.
 	 */
-	static public int _errorPosition;
+	static public final class Result {
+		/** Number of characters of context kept on each side of the error position */
+		static public final int __CONTEXT = 100;
+		/**
+		 * true if the analysis is OK
+		 */
+		final public boolean _ok;
+		/**
+		 * Stack trace for the error found ; empty in case of success
+		 */
+		final public String  _error;
+		/**
+		 * Current position in the data when the error was found. That pointer place is 
+		 * certainly somewhere not too far after the actual error location. In case of
+		 * success, it points to one character beyond the last character in the flow.
+		 */
+		final public int     _errorPosition;
+		/**
+		 * The data around the error position ; empty in case of success or when the
+		 * data is no longer available (Reader).
+		 */
+		final public String  _context;
+		
+		Result(boolean ok, String error, int errorPosition, String context) {
+			_ok            = ok;
+			_error         = error;
+			_errorPosition = errorPosition;
+			_context       = context;
+		}
+		/**
+		 * @return the same result, with the context taken from the data
+		 */
+		Result in(ByteBuffer data) {
+			if (_ok) return this;
+			int    beg = Math.max(0, _errorPosition-__CONTEXT);
+			int    end = Math.min(data.limit(), _errorPosition+__CONTEXT);
+			if (beg>=end) return this;
+			byte[] b   = new byte[end-beg];
+			for (int i=beg; i<end; i++) b[i-beg] = data.get(i);
+			return new Result(_ok, _error, _errorPosition, new String(b, Charset.forName("ISO-8859-1")));
+		}
+		Result in(byte[] data) {
+			return (_ok) ? this : in(ByteBuffer.wrap(data));
+		}
+		public String toString() {
+			return (_ok) ? "analysis OK" : "analysis failed :"+_error+"\n"+_context;
+		}
+	}
 
 	/**
 	 * This method just takes data and makes the grammatical analysis according to
@@ -437,20 +596,43 @@ public class Analyzer {
 	 * You can use the default implementation NoHooks, which will enable you to check
 	 * the grammatical correctness of the data.<p>
 	 * 
-	 * In case of error, the too static fields _error and _errorPosition are set.<br>
-	 * The first gives the analyzer stack trace.<br>
-	 * The second indicates the position in the data when the error was found.<br>
-	 * In case of success, _error is empty and _errorPosition points to one character
-	 * beyond the last character in the flow.<p>
+	 * Use {@link #run(Reader, Hooks)} to know what error was found.<p>
 	 * 
 	 * @param r  data to analyze
 	 * @param h  hooks to use
 	 * @return   true if the analysis is OK.
 	 */
 	public static boolean analyze(Reader r, Hooks h) {
-		return analyze(new ReaderParser(r), h);
+		return run(r, h)._ok;
 	};
 
+	/**
+	 * Same as {@link #analyze(Reader, Hooks)}, but gives the whole result, with the
+	 * error if any.
+	 * 
+	 * @param r  data to analyze
+	 * @param h  hooks to use
+	 * @return   the result of the analysis ; it has no context.
+	 */
+	public static Result run(Reader r, Hooks h) {
+		return run(r, h, null);
+	}
+
+	/**
+	 * Same as {@link #run(Reader, Hooks)}, with the progress reported to p.
+	 */
+	public static Result run(Reader r, Hooks h, Progress p) {
+		return create(new ReaderParser(r), h, p).run();
+	}
+
+	/* builds an analyzer reporting to p */
+	private static Analyzer create(Tokenizer t, Hooks h, Progress p) {
+		Analyzer a = new Analyzer(t, h);
+		if (p != null)
+			a.setProgress(p);
+		return a;
+	}
+
 	/**
 	 * Same as {@link #analyze(Reader, ck.Analyzer.Hooks)}, except
 	 * that it takes the data in a byte array rather than a reader. The parser
@@ -461,23 +643,93 @@ public class Analyzer {
 	 * @return     true if the analysis is OK.
 	 */
 	public static boolean analyze(byte[] data, Hooks h) {
-		return analyze(new FastParser(data), h);
+		return run(data, h)._ok;
 	}
-	
-	
-	static private  boolean analyze(Tokenizer t, Hooks h) {
-		Analyzer a = new Analyzer(t, h);
-		try {
-			boolean b = a.analyze();
-			_error = (b) ? "" : a.tokenStack();
-			_errorPosition = a.getCurrentIndex();
-			return b;
-		} catch (Exception e) {
-			_error = a.tokenStack();
-			_errorPosition = a.getCurrentIndex();
-			e.printStackTrace(System.out);
-			return false;
-		}
+
+	/**
+	 * Same as {@link #analyze(byte[], Hooks)}, but gives the whole result.
+	 */
+	public static Result run(byte[] data, Hooks h) {
+		return run(data, h, null);
+	}
+
+	/**
+	 * Same as {@link #run(byte[], Hooks)}, with the progress reported to p.
+	 */
+	public static Result run(byte[] data, Hooks h, Progress p) {
+		return create(new FastParser(data), h, p).run().in(data);
+	}
+
+	/**
+	 * Same as {@link #analyze(byte[], Hooks)}, except that the structures skipped
+	 * by the hooks are skipped by using the given index rather than by reading them.
+	 * 
+	 * @param data  array of bytes constituting the data to analyze (ASCII flow)
+	 * @param index structural index built for that data
+	 * @param h     hooks to use
+	 * @return      true if the analysis is OK.
+	 */
+	public static boolean analyze(byte[] data, BraceIndex index, Hooks h) {
+		return run(data, index, h)._ok;
+	}
+
+	/**
+	 * Same as {@link #analyze(byte[], BraceIndex, Hooks)}, but gives the whole result.
+	 */
+	public static Result run(byte[] data, BraceIndex index, Hooks h) {
+		return run(data, index, h, null);
+	}
+
+	/**
+	 * Same as {@link #run(byte[], BraceIndex, Hooks)}, with the progress reported to p.
+	 */
+	public static Result run(byte[] data, BraceIndex index, Hooks h, Progress p) {
+		return create(new FastParser(data, index), h, p).run().in(data);
+	}
+
+	/**
+	 * Same as {@link #analyze(byte[], Hooks)}, except that the data is read directly
+	 * in the mapped file, without any copy in the heap. There is no limit to the size
+	 * of the file.
+	 * 
+	 * @param f  the mapped file to analyze (ASCII flow)
+	 * @param h  hooks to use
+	 * @return   true if the analysis is OK.
+	 */
+	public static boolean analyze(FileLoader.MappedFile f, Hooks h) {
+		return run(f, h)._ok;
+	}
+
+	/**
+	 * Same as {@link #analyze(FileLoader.MappedFile, Hooks)}, but gives the whole result ;
+	 * the context is only given for files smaller than 2GB.
+	 */
+	public static Result run(FileLoader.MappedFile f, Hooks h) {
+		return run(f, h, null);
+	}
+
+	/**
+	 * Same as {@link #run(FileLoader.MappedFile, Hooks)}, with the progress reported to p.
+	 */
+	public static Result run(FileLoader.MappedFile f, Hooks h, Progress p) {
+		return run(f, null, h, p);
+	}
+
+	/**
+	 * Same as {@link #run(FileLoader.MappedFile, Hooks, Progress)}, except that the structures
+	 * skipped by the hooks are skipped by using the given index ; the index can only be built
+	 * on a file smaller than 2GB.
+	 * 
+	 * @param f     the mapped file to analyze (ASCII flow)
+	 * @param index structural index built for that file ; null to use none
+	 * @param h     hooks to use
+	 * @param p     where to report the progress ; null for nothing
+	 * @return      the result of the analysis
+	 */
+	public static Result run(FileLoader.MappedFile f, BraceIndex index, Hooks h, Progress p) {
+		Tokenizer t = (index==null) ? new MappedParser(f) : new MappedParser(f, 0, f._size, 0, index);
+		Result    r = create(t, h, p).run();
+		return (f.segments()==1) ? r.in(f.segment(0)) : r;
 	}
 }
 
@@ -0,0 +1,225 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static net.sourceforge.ck2httt.pxAnalyzer.WordScanner.*;
+
+/**
+ * This class is a structural index of some data : it records the position of every
+ * { and } in the data (quoted strings and comments excluded), and for each of them
+ * the } that closes the structure they are in.<p>
+ *
+ * It is built in a single fast pass over the data, after which skipping any structure
+ * becomes a jump instead of a scan of all the skipped bytes. The index only depends
+ * on the data : it can thus be reused by any number of analyses of the same data, for
+ * example by a second filter pass (see {@link PXAdvancedAnalyzer#PXAdvancedAnalyzer(PXAdvancedAnalyzer)}).<p>
+ *
+ * The index costs 12 bytes per brace in the data ; on a save, this is close to half the
+ * size of the data. An index restricted to the top level structures costs nearly nothing,
+ * but can only be used to find where these structures are, not to skip structures.<p>
+ *
+ * @see FastParser
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class BraceIndex {
+
+	private int[] _pos;   //position of each brace in the data
+	private int[] _close; //for each brace, index of the } closing the structure it is in ; -1 if none
+	private int[] _lines; //for each brace, number of \n before it in the data
+	private int   _n;     //number of braces
+	private int   _from;  //first index of the data indexed
+	private int   _to;    //last index (excluded) of the data indexed
+	private boolean _topLevel; //true if only the braces of the top level structures are recorded
+
+	//the only characters that we need to look at
+	static final private boolean[] __special = new boolean[256];
+	static {
+		__special['\n'] = __special['"'] = __special['#'] = __special['{'] = __special['}'] = true;
+	}
+
+	/**
+	 * Builds the index for the whole data.
+	 * @param data the data to index
+	 */
+	public BraceIndex(byte[] data) {
+		this(data,0,data.length);
+	}
+
+	/**
+	 * Builds the index for a portion of the data.
+	 * @param data the data to index
+	 * @param from first index to consider
+	 * @param to   last index (excluded) to consider
+	 */
+	public BraceIndex(byte[] data, int from, int to) {
+		this(ByteBuffer.wrap(data),from,to);
+	}
+
+	/**
+	 * Builds the index for the whole data in a buffer, such as a mapped file ;
+	 * the data is not copied.
+	 * @param data the data to index ; it's position is ignored
+	 */
+	public BraceIndex(ByteBuffer data) {
+		this(data,0,data.limit());
+	}
+
+	/**
+	 * Builds the index for a portion of the data in a buffer.
+	 * @param data the data to index
+	 * @param from first index to consider
+	 * @param to   last index (excluded) to consider
+	 */
+	public BraceIndex(ByteBuffer data, int from, int to) {
+		this(data,from,to,false);
+	}
+
+	/**
+	 * Builds an index for a portion of the data in a buffer, possibly restricted to the
+	 * top level structures.
+	 * @param data     the data to index
+	 * @param from     first index to consider
+	 * @param to       last index (excluded) to consider
+	 * @param topLevel true to only record the braces of the top level structures
+	 */
+	public BraceIndex(ByteBuffer data, int from, int to, boolean topLevel) {
+		_from  = from;
+		_to    = to;
+		_topLevel = topLevel;
+		_pos   = new int[1024];
+		_close = new int[1024];
+		_lines = new int[1024];
+		int lines = 0;
+		int[] stack = new int[64];
+		int   depth = 0;
+		WordScanner words = FastParser._useWordScan ? new WordScanner(data) : null;
+		for (int i=from; i<to; i++) {
+			if (words!=null) { //faster path : whole words without special characters
+				for (; i+8<=to; i+=8) {
+					long w = words.word(i);
+					long m = matchBraces(w)|matchQuoteOrHash(w);
+					if (m!=0) {
+						lines += countBefore(match(w,__NL),m);
+						i     += first(m);
+						break;
+					}
+					lines += Long.bitCount(match(w,__NL));
+				}
+				if (i>=to) break;
+			}
+			byte c = data.get(i);
+			if (!__special[c&0xff]) continue; //fast path for most bytes
+			switch (c) {
+			    case '\n' :
+			    	lines++;
+			    	break;
+			    case '"' :
+			    	while (++i<to && (c=data.get(i))!='"') if (c=='\n') lines++;
+			    	break;
+			    case '#' :
+			    	while (++i<to && data.get(i)!='\n');
+			    	if (i<to) lines++;
+			    	break;
+			    case '{' :
+			    	if (depth==stack.length) stack = grow(stack);
+			    	if (topLevel && depth>0) { stack[depth++] = -1; break; }
+			    	stack[depth++] = _n;
+			    	add(i,lines);
+			    	break;
+			    case '}' :
+			    	if (topLevel && depth>1) { depth--; break; }
+			    	//an open brace temporarily stores the index of it's close
+			    	if (depth>0) _close[stack[--depth]] = _n;
+			    	add(i,lines);
+			    	_close[_n-1] = _n-1;
+			    	break;
+			}
+		}
+		while (depth>0) {
+			int s = stack[--depth];
+			if (s>=0) _close[s] = -1;
+		}
+		//now go backward : a { is closed by the same } as what comes after it's own }
+		for (int e=_n-1; e>=0; e--) {
+			int m = _close[e];
+			if (m!=e) _close[e] = (m<0 || m+1>=_n) ? -1 : _close[m+1];
+		}
+		//the index is kept as long as the data : no room is wasted
+		_pos   = Arrays.copyOf(_pos,_n);
+		_close = Arrays.copyOf(_close,_n);
+		_lines = Arrays.copyOf(_lines,_n);
+	}
+
+	private void add(int pos, int lines) {
+		if (_n==_pos.length) {
+			_pos   = grow(_pos);
+			_close = grow(_close);
+			_lines = grow(_lines);
+		}
+		_pos[_n]   = pos;
+		_lines[_n] = lines;
+		_n++;
+	}
+
+	static private int[] grow(int[] a) {
+		int[] b = new int[a.length*2];
+		System.arraycopy(a,0,b,0,a.length);
+		return b;
+	}
+
+	/**
+	 * @return true if this index was built for the given portion of data, and can be
+	 *         used to skip structures there : an index of the top level structures can't.
+	 */
+	public boolean covers(int from, int to) {
+		return !_topLevel && from>=_from && to<=_to;
+	}
+
+	/**
+	 * @return the number of braces in the index
+	 */
+	public int size() {
+		return _n;
+	}
+
+	/**
+	 * @return the position in the data of the brace number e
+	 */
+	public int position(int e) {
+		return _pos[e];
+	}
+
+	/**
+	 * @return the number of \n found in the data before the brace number e
+	 */
+	public int lines(int e) {
+		return _lines[e];
+	}
+
+	/**
+	 * @return the index of the } that closes the structure in which the
+	 * brace number e is found (this is e itself for a }), -1 if there is none.
+	 */
+	public int close(int e) {
+		return _close[e];
+	}
+
+	/**
+	 * Finds the first brace located after the given position.
+	 * @param pos  position in the data
+	 * @param hint index of a brace located before or at the expected result ; 0 if unknown
+	 * @return the index of that brace, size() if there is none.
+	 */
+	public int next(int pos, int hint) {
+		int lo = (hint>0 && hint<=_n && _pos[hint-1]<=pos) ? hint : 0;
+		//we usually are very near the expected result
+		for (int k=0; k<8 && lo<_n; k++, lo++)
+			if (_pos[lo]>pos) return lo;
+		int hi = _n;
+		while (lo<hi) {
+			int mid = (lo+hi)>>>1;
+			if (_pos[mid]>pos) hi=mid; else lo=mid+1;
+		}
+		return lo;
+	}
+
+}
@@ -0,0 +1,179 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+import java.util.AbstractList;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * This class holds the children of a {@link PXTree} node in a growable array.<p>
+ *
+ * A save file holds millions of fields, and most structures only hold a few of them :
+ * compared to a LinkedList, this saves a 24 bytes node for each child, and walking
+ * through the children or reaching one by its index doesn't chase pointers any more.
+ * An empty list holds no array at all, and the analyzer trims each list to its exact
+ * size once the structure is complete.<p>
+ *
+ * The LinkedList methods used by the tree clients (addFirst, addLast, getFirst...)
+ * are provided with the same meaning.<p>
+ *
+ * @see PXTree
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class CompactList<E> extends AbstractList<E> implements RandomAccess {
+
+	static final private Object[] __EMPTY = new Object[0];
+
+	private Object[] _items   = __EMPTY;
+	private int      _size    = 0;
+	private int      _version = 0; //changes with any modification, including set
+
+	public CompactList() {
+	}
+
+	@SuppressWarnings("unchecked")
+	public E get(int index) {
+		if (index>=_size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+_size);
+		return (E)_items[index];
+	}
+
+	@SuppressWarnings("unchecked")
+	public E set(int index, E element) {
+		if (index>=_size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+_size);
+		E old = (E)_items[index];
+		_items[index] = element;
+		_version++;
+		return old;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/* makes room for one more item */
+	private void grow() {
+		if (_size<_items.length) return;
+		int n = (_size<4) ? 4 : _size + (_size>>1);
+		Object[] a = new Object[n];
+		System.arraycopy(_items,0,a,0,_size);
+		_items = a;
+	}
+
+	public boolean add(E element) {
+		grow();
+		_items[_size++] = element;
+		modCount++;
+		_version++;
+		return true;
+	}
+
+	public void add(int index, E element) {
+		if (index>_size || index<0) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+_size);
+		grow();
+		System.arraycopy(_items,index,_items,index+1,_size-index);
+		_items[index] = element;
+		_size++;
+		modCount++;
+		_version++;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E remove(int index) {
+		if (index>=_size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+_size);
+		E old = (E)_items[index];
+		System.arraycopy(_items,index+1,_items,index,_size-index-1);
+		_items[--_size] = null;
+		modCount++;
+		_version++;
+		return old;
+	}
+
+	public void clear() {
+		_items = __EMPTY;
+		_size  = 0;
+		modCount++;
+		_version++;
+	}
+
+	public Object[] toArray() {
+		Object[] a = new Object[_size];
+		System.arraycopy(_items,0,a,0,_size);
+		return a;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T[] toArray(T[] a) {
+		if (a.length<_size)
+			a = (T[])java.lang.reflect.Array.newInstance(a.getClass().getComponentType(),_size);
+		System.arraycopy(_items,0,a,0,_size);
+		if (a.length>_size) a[_size] = null;
+		return a;
+	}
+
+	/**
+	 * Same as LinkedList.addFirst
+	 */
+	public void addFirst(E element) {
+		add(0,element);
+	}
+
+	/**
+	 * Same as LinkedList.addLast
+	 */
+	public void addLast(E element) {
+		add(element);
+	}
+
+	/**
+	 * Same as LinkedList.getFirst
+	 * @throws NoSuchElementException if the list is empty
+	 */
+	public E getFirst() {
+		if (_size==0) throw new NoSuchElementException();
+		return get(0);
+	}
+
+	/**
+	 * Same as LinkedList.getLast
+	 * @throws NoSuchElementException if the list is empty
+	 */
+	public E getLast() {
+		if (_size==0) throw new NoSuchElementException();
+		return get(_size-1);
+	}
+
+	/**
+	 * Same as LinkedList.removeFirst
+	 * @throws NoSuchElementException if the list is empty
+	 */
+	public E removeFirst() {
+		if (_size==0) throw new NoSuchElementException();
+		return remove(0);
+	}
+
+	/**
+	 * Same as LinkedList.removeLast
+	 * @throws NoSuchElementException if the list is empty
+	 */
+	public E removeLast() {
+		if (_size==0) throw new NoSuchElementException();
+		return remove(_size-1);
+	}
+
+	/**
+	 * @return a number that changes whenever the list is modified ; this lets
+	 *         the users keep an index of the list up to date.
+	 */
+	public int version() {
+		return _version;
+	}
+
+	/**
+	 * Releases the unused room ; called once no more items are expected.
+	 */
+	public void trimToSize() {
+		if (_size==_items.length) return;
+		Object[] a = (_size==0) ? __EMPTY : new Object[_size];
+		System.arraycopy(_items,0,a,0,_size);
+		_items = a;
+	}
+
+}
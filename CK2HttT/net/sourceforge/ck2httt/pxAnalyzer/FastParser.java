@@ -1,50 +1,155 @@
 package net.sourceforge.ck2httt.pxAnalyzer;
 import net.sourceforge.ck2httt.pxAnalyzer.Token.TokenType;
 import net.sourceforge.ck2httt.pxAnalyzer.Token.Tokenizer;
+import static net.sourceforge.ck2httt.pxAnalyzer.WordScanner.*;
 
 /**
  * A Parser implementation that reads directly the data in a byte table.
  * It is fast and efficient. Note than the Tokens are fuzzier than in the
  * strict ReaderParser implementation (more precisely, it accepts a wider
- * range of characters as Token data and as space data).
- * 
+ * range of characters as Token data and as space data).<p>
+ * The cursor mode of the {@link Tokenizer} interface is the natural way to
+ * use it : the String values are then only built when they are required.
+ *
  * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
  */
 public class FastParser implements Tokenizer {
 
+	/**
+	 * When true, the data that is passed over without being analyzed (skipped
+	 * structures, quoted strings, comments) is read 8 bytes at a time.
+	 */
+	static public boolean _useWordScan = true;
+
 	private int    _line = 0; //current line
 	private byte[] _data;     //data to analyze
 	private int    _pos =-1;  //current position=last analyzed
 	private int    _max;      //last accessible index
-	
+	private BraceIndex _index;  //structural index used to skip structures ; may be null
+	private int        _ev = 0; //hint for the next brace in the index
+	private WordScanner _words; //word reader ; null if not used
+
+	//cursor : current token
+	private TokenType _type;
+	private int       _beg;
+	private int       _end;
+	private int       _tline;
+
 	//A fast but fuzzy char tester ; it is sufficient for our needs
 	private boolean checkChar(byte c) {
 		return c>',' && c<='z' && c!='=' || c<0;
 	}
-	
+
 	//A fast but fuzzy space tester ; it is sufficient for our needs
 	private boolean checkSpace(byte c) {
 		if (c=='\n') { _line++; return true; }
 		return (c<=' ');
 	}
-	
+
 	private void passSpaces() {
 		do {
     	    while (_pos<_max && checkSpace(_data[++_pos]));
 		    if (_data[_pos]!='#') break;
+			if (_words!=null) skipTo(__NL);
 			while (_pos<_max && _data[++_pos]!='\n');
 		} while(true);
 	}
-		
+
 	public FastParser(byte[] b) {
-		_data = b;
-		_max  = b.length-1;
+		this(b,null);
+	}
+
+	/**
+	 * Builds a parser that uses a structural index to skip the structures
+	 * it doesn't need to analyze.
+	 * @param b     the data
+	 * @param index the index for that data ; null to use none
+	 */
+	public FastParser(byte[] b, BraceIndex index) {
+		this(b,0,b.length,0,index);
+	}
+
+	/**
+	 * Builds a parser that only reads a portion of the data ; the positions
+	 * of the Tokens are still given relative to the whole data.
+	 * @param b     the data
+	 * @param from  first index to read
+	 * @param to    last index (excluded) to read
+	 * @param line  line number at index from
+	 * @param index the index for that data ; null to use none
+	 */
+	public FastParser(byte[] b, int from, int to, int line, BraceIndex index) {
+		if (index!=null && !index.covers(from,to)) throw new IllegalArgumentException("index doesn't match data");
+		_data  = b;
+		_pos   = from-1;
+		_max   = to-1;
+		_line  = line;
+		_index = index;
+		if (_useWordScan) _words = new WordScanner(b);
+	}
+
+	/*
+	 * moves forward over the whole words which don't contain the pattern, and up to just
+	 * before the pattern if it is found ; there is always at least one byte left.
+	 */
+	private void skipTo(long pattern) {
+		while (_pos+8<_max) {
+			long m = match(_words.word(_pos+1),pattern);
+			if (m!=0) { _pos += first(m); return; }
+			_pos += 8;
+		}
+	}
+
+	/*
+	 * moves forward over the whole words which contain neither { nor }, counting the lines ;
+	 * there is always at least one byte left.
+	 */
+	private void skipToBrace() {
+		while (_pos+8<_max) {
+			long w = _words.word(_pos+1);
+			long m = matchBraces(w);
+			if (m!=0) {
+				_line += countBefore(match(w,__NL),m);
+				_pos  += first(m);
+				return;
+			}
+			_line += Long.bitCount(match(w,__NL));
+			_pos  += 8;
+		}
+	}
+
+	/* counts the \n in the data between the two positions (both excluded) */
+	private int countLines(int from, int to) {
+		int n=0;
+		if (_words!=null)
+			for (; from+8<to; from+=8) n += Long.bitCount(match(_words.word(from+1),__NL));
+		while (++from<to) if (_data[from]=='\n') n++;
+		return n;
+	}
+
+	/* same as passToClose, but using the index to jump straight to the close */
+	private void jumpToClose() {
+		if (_pos>=_max) return;
+		int e = _index.next(_pos,_ev);
+		int c = (e<_index.size()) ? _index.close(e) : -1;
+		if (c>=0 && _index.position(c)<=_max) {
+			_line += countLines(_pos,_index.position(e)) + _index.lines(c) - _index.lines(e);
+			_pos   = _index.position(c);
+			_ev    = c+1;
+		}
+		else { //no close : we are going to the end ; this only happens once
+			_line += countLines(_pos,_max+1);
+			_pos   = _max;
+			_ev    = e;
+		}
 	}
 
     private void passToClose() {
+    	if (_index!=null) { jumpToClose(); return; }
     	int i=0;
     	while (i>=0) {
         	if (_pos>=_max) return;
+        	if (_words!=null) skipToBrace();
     		byte c = _data[++_pos];
     		if      (c=='{')  i++;
     		else if (c=='}')  i--;
@@ -52,49 +157,101 @@ public class FastParser implements Tokenizer {
     	}
     }
 
-    private Token getString() {
+    private TokenType set(TokenType type, int beg, int end) {
+    	_type  = type;
+    	_beg   = beg;
+    	_end   = end;
+    	_tline = _line;
+    	return type;
+    }
+
+    private TokenType getString() {
 		int start=_pos;
+		if (_words!=null) skipTo(__QUOTE);
     	while(_pos<_max && _data[++_pos]!='"');
-    	if (_pos<=_max) {
-		    return new Token(TokenType.TOKEN,start,_pos,new String(_data,start,_pos-start+1),_line);
-    	}
+    	if (_pos<=_max)
+		    return set(TokenType.TOKEN,start,_pos);
     	else
-        	return new Token(TokenType.ERROR,start,start,"",_line);
+        	return set(TokenType.ERROR,start,start);
     }
 
-    private Token getOther() {
+    private TokenType getOther() {
     	int start=_pos;
     	if (_pos==_max)
-    		 return new Token(TokenType.END,_pos,_pos,null,_line);
+    		 return set(TokenType.END,_pos,_pos);
     	while (_pos<_max && checkChar(_data[++_pos]));
     	if (_pos<=_max)
-    	    return new Token(TokenType.TOKEN,start,_pos,new String(_data,start,_pos-- - start),_line);
+    	    return set(TokenType.TOKEN,start,_pos--);
     	else
-    	    return new Token(TokenType.ERROR,start,start,"",_line);
+    	    return set(TokenType.ERROR,start,start);
     }
 
-	
-	public Token getNext() {
-		if (_pos==_max) return new Token(TokenType.END,_pos,_pos,null,_line);
+	public TokenType next() {
+		if (_pos==_max) return set(TokenType.END,_pos,_pos);
     	passSpaces();
      	switch (_data[_pos]) {
-    	    case '{' : return new Token(TokenType.OPEN,_pos,_pos,null,_line);
-    	    case '}' : return new Token(TokenType.CLOSE,_pos,_pos,null,_line);
-    	    case '=' : return new Token(TokenType.EQUAL,_pos,_pos,null,_line);
+    	    case '{' : return set(TokenType.OPEN,_pos,_pos);
+    	    case '}' : return set(TokenType.CLOSE,_pos,_pos);
+    	    case '=' : return set(TokenType.EQUAL,_pos,_pos);
     	    case '"' : return getString();
     	    default  : return getOther();
     	}
 	}
 
-	public Token getNextClose() {
+	public TokenType nextClose() {
     	passToClose();
     	return (_pos<=_max && _data[_pos]=='}') ?
-    			new Token(TokenType.CLOSE,_pos,_pos,null,_line) :
-    		    new Token(TokenType.END,_pos,_pos,null,_line);
+    			set(TokenType.CLOSE,_pos,_pos) :
+    		    set(TokenType.END,_pos,_pos);
+	}
+
+	public int begin() { return _beg;   }
+	public int end()   { return _end;   }
+	public int line()  { return _tline; }
+
+	/**
+	 * The value of a quoted string includes both quotes ; otherwise the end
+	 * is the first character after the token.
+	 */
+	public String value(int beg, int end) {
+		return (_data[beg]=='"') ? new String(_data,beg,end-beg+1) : new String(_data,beg,end-beg);
+	}
+
+	public String symbol(int beg, int end, SymbolTable symbols) {
+		return (_data[beg]=='"') ? symbols.get(_data,beg,end+1) : symbols.get(_data,beg,end);
+	}
+
+	public int bytes(int beg, int end, byte[] buf) {
+		int l = (_data[beg]=='"') ? end-beg+1 : end-beg;
+		if (l<=buf.length) System.arraycopy(_data,beg,buf,0,l);
+		return l;
+	}
+
+	/* builds a Token from the cursor */
+	private Token token() {
+		switch (_type) {
+			case TOKEN : return new Token(_type,_beg,_end,value(_beg,_end),_tline);
+			case ERROR : return new Token(_type,_beg,_end,"",_tline);
+			default    : return new Token(_type,_beg,_end,null,_tline);
+		}
+	}
+
+	public Token getNext() {
+		next();
+		return token();
+	}
+
+	public Token getNextClose() {
+		nextClose();
+		return token();
 	}
 
 	public int getPos() {
 		return _pos;
 	}
-	
+
+	public long position() {
+		return _pos;
+	}
+
 }
@@ -1,26 +1,213 @@
 package net.sourceforge.ck2httt.pxAnalyzer;
 
+import java.io.File;
 import java.io.Reader;
 import java.io.Writer;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.Comparable;
 
-import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.Hooks;
+import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.FlyweightHooks;
 
 
 /**
  * This class provide means to analyzes a data file and regroup all fields in order
- * to highlight the structure and possibly the data values.
+ * to highlight the structure and possibly the data values.<p>
+ * Several files (a directory of saves, the EU3 history files...) can be analyzed
+ * in parallel, and their structures merged in one description. The values found
+ * are only kept as long as they are few ; beyond, only an estimate of the number
+ * of distinct values and the most frequent ones are kept.
  * 
  * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
  */
 public class FileCollapser {
 
+	/**
+	 * Bounded description of the values found for a field : the values themselves
+	 * as long as there are few of them ; beyond, a HyperLogLog estimate of the number
+	 * of distinct values, and the most frequent values as counted by the Space-Saving
+	 * algorithm. The memory used doesn't depend on the number of values, and the
+	 * descriptions built by different analyses can be merged.
+	 */
+	static protected class ValueSketch {
+		//number of distinct values kept as is
+		static final int     __EXACT = 32;
+		//number of frequent values kept beyond
+		static final int     __TOP   = 16;
+		//precision of the estimate : 2^__P registers, for an error around 3%
+		static final int     __P     = 10;
+		//kinds of values, as bits in _kinds ; a quoted value has the kind of its content
+		static final int     INT     = 1;  //fits in an int
+		static final int     DECIMAL = 2;  //any other number
+		static final int     BOOL    = 4;  //yes or no
+		static final int     DATE    = 8;  //y.m.d
+		static final int     TEXT    = 16; //anything else
+		
+		//values found with their count ; null once there are too many of them
+		TreeMap<String,Integer>  _exact = new TreeMap<String,Integer>();
+		//most frequent values with their count and the maximal over-estimation of that count
+		HashMap<String,long[]>   _top;
+		//HyperLogLog registers : for each, the largest rank found
+		byte[]                   _hll   = new byte[1<<__P];
+		//number of values found
+		long                     _count;
+		//kinds of the values found
+		int                      _kinds;
+		
+		void add(String v) {
+			_count++;
+			_kinds |= kind(v);
+			long h = hash(v);
+			int  i = (int)(h>>>(64-__P));
+			byte r = (byte)(Long.numberOfLeadingZeros((h<<__P)|(1L<<(__P-1)))+1);
+			if (r>_hll[i]) _hll[i]=r;
+			if (_exact!=null) {
+				Integer n = _exact.get(v);
+				_exact.put(v, (n==null) ? 1 : n+1);
+				if (_exact.size()>__EXACT) drop();
+			}
+			else
+				offer(v,1,0);
+		}
+		/* switches from the exact values to the frequent values */
+		private void drop() {
+			_top = new HashMap<String,long[]>();
+			for (Map.Entry<String,Integer> e : _exact.entrySet()) offer(e.getKey(),e.getValue(),0);
+			_exact = null;
+		}
+		/* counts n more occurrences of v, with a possible over-estimation err */
+		private void offer(String v, long n, long err) {
+			long[] c = _top.get(v);
+			if (c!=null) { c[0]+=n; c[1]+=err; return; }
+			if (_top.size()<__TOP) { _top.put(v, new long[]{n,err}); return; }
+			//replace the least frequent value ; it's count is inherited as over-estimation
+			String min = null;
+			long[] m   = null;
+			for (Map.Entry<String,long[]> e : _top.entrySet())
+				if (m==null || e.getValue()[0]<m[0]) { min=e.getKey(); m=e.getValue(); }
+			_top.remove(min);
+			_top.put(v, new long[]{m[0]+n, m[0]+err});
+		}
+		/**
+		 * Adds the values of another description to this one.
+		 */
+		void merge(ValueSketch o) {
+			_count += o._count;
+			_kinds |= o._kinds;
+			for (int i=0; i<_hll.length; i++) if (o._hll[i]>_hll[i]) _hll[i]=o._hll[i];
+			if (_exact!=null && o._exact!=null) {
+				for (Map.Entry<String,Integer> e : o._exact.entrySet()) {
+					Integer n = _exact.get(e.getKey());
+					_exact.put(e.getKey(), (n==null) ? e.getValue() : n+e.getValue());
+				}
+				if (_exact.size()>__EXACT) drop();
+				return;
+			}
+			if (_exact!=null) drop();
+			if (o._exact!=null)
+				for (Map.Entry<String,Integer> e : o._exact.entrySet()) offer(e.getKey(),e.getValue(),0);
+			else
+				for (Map.Entry<String,long[]> e : o._top.entrySet()) offer(e.getKey(),e.getValue()[0],e.getValue()[1]);
+		}
+		/**
+		 * @return the number of distinct values ; it is an estimate once there are
+		 *         too many values to keep them all.
+		 */
+		long distinct() {
+			if (_exact!=null) return _exact.size();
+			double m     = _hll.length;
+			double sum   = 0;
+			int    zeros = 0;
+			for (byte r : _hll) { sum += 1.0/(1L<<r); if (r==0) zeros++; }
+			double e = 0.7213/(1+1.079/m)*m*m/sum;
+			if (e<=2.5*m && zeros>0) e = m*Math.log(m/zeros); //small range correction
+			return Math.round(e);
+		}
+		/**
+		 * @param v a value
+		 * @return the number of times v was certainly found ; it is exact as long
+		 *         as the values are all kept.
+		 */
+		long count(String v) {
+			if (_exact!=null) { Integer n = _exact.get(v); return (n==null) ? 0 : n; }
+			long[] c = _top.get(v);
+			return (c==null) ? 0 : c[0]-c[1];
+		}
+		/**
+		 * @return the values certainly found more than once, the most frequent first ;
+		 *         all the values, in alphabetical order, as long as they are all kept.
+		 */
+		List<String> top() {
+			if (_exact!=null) return new ArrayList<String>(_exact.keySet());
+			List<String> l = new ArrayList<String>();
+			for (String v : _top.keySet()) if (count(v)>1) l.add(v);
+			Collections.sort(l, new Comparator<String>() {
+				public int compare(String a, String b) {
+					long d = count(b)-count(a);
+					return (d!=0) ? (d>0 ? 1 : -1) : a.compareTo(b);
+				}
+			});
+			return l;
+		}
+		void print(Writer out) throws IOException {
+			if (_exact!=null) {
+				for (String s : _exact.keySet()) { out.write(s+", "); }
+				return;
+			}
+			out.write("~"+distinct()+" distinct values in "+_count);
+			List<String> l = top();
+			if (!l.isEmpty()) out.write(", most frequent :");
+			for (String s : l) { out.write(" "+s+" ("+count(s)+"),"); }
+		}
+		/**
+		 * @return the kind of a value
+		 */
+		static int kind(String v) {
+			int b = 0, n = v.length();
+			if (n>=2 && v.charAt(0)=='"' && v.charAt(n-1)=='"') { b=1; n--; }
+			if (v.regionMatches(b,"yes",0,3) && n-b==3 || v.regionMatches(b,"no",0,2) && n-b==2) return BOOL;
+			int i = (b<n && v.charAt(b)=='-') ? b+1 : b;
+			int dots = 0, digits = 0;
+			for (int k=i; k<n; k++) {
+				char c = v.charAt(k);
+				if      (c>='0' && c<='9')            digits++;
+				else if (c=='.' && k>i && k<n-1 && v.charAt(k-1)!='.') dots++;
+				else return TEXT;
+			}
+			if (digits==0) return TEXT;
+			switch (dots) {
+				case 0  : return (digits<=9) ? INT : DECIMAL;
+				case 1  : return DECIMAL;
+				case 2  : return (i==b) ? DATE : TEXT;
+				default : return TEXT;
+			}
+		}
+		/* 64 bits hash : FNV-1a, then the murmur3 finalizer to spread the bits */
+		static private long hash(String s) {
+			long h = 0xcbf29ce484222325L;
+			for (int i=0; i<s.length(); i++) { h ^= s.charAt(i); h *= 0x100000001b3L; }
+			h ^= h>>>33; h *= 0xff51afd7ed558ccdL;
+			h ^= h>>>33; h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h>>>33;
+			return h;
+		}
+	}
 	
 	/**
 	 * Class describing the structure of a data file as seen during the analysis process.
@@ -33,7 +220,7 @@ public class FileCollapser {
 		//list of subfields (a repeated field is present only once)
 		LinkedList<ExploredField>  _subFields;
 		//values found for the field
-		SortedSet<String>          _values;
+		ValueSketch                _values;
 		//known types for the field (normally, at most two (with EMPTY beeing eiter List or Struct)
 		Set<FieldType>             _types = new TreeSet<FieldType>();
 		//position where this field has been found (duplicates are ignored for this purpose)
@@ -132,7 +319,7 @@ public class FileCollapser {
 		}
 		void addValue(String v) {
 			if (_values==null)
-				_values=new TreeSet<String>();
+				_values=new ValueSketch();
 			_values.add(v);
 		}
 		void checkPos(ExploredField f) {
@@ -202,6 +389,35 @@ public class FileCollapser {
 			_subFields = s;
 			return ok;
 		}
+		/**
+		 * Merges the description built by another analysis into this one ; both must
+		 * be complete (ordered). The subfields keep their order, and a subfield only
+		 * known in the other description is put after the subfield it followed there.
+		 * @param o the other description ; it is not usable afterwards.
+		 */
+		void merge(ExploredField o) {
+			_types.addAll(o._types);
+			if (o._occMax>_occMax) _occMax=o._occMax;
+			_total       += o._total;
+			_totalThread += o._totalThread;
+			if (o._values!=null) {
+				if (_values==null) _values=new ValueSketch();
+				_values.merge(o._values);
+			}
+			if (o._subFields==null) return;
+			int at = 0; //where the next new subfield goes
+			for (ExploredField g : o._subFields) {
+				ExploredField f = findField(g._name);
+				if (f!=null) {
+					f.merge(g);
+					at = _subFields.indexOf(f)+1;
+				}
+				else {
+					g._owner = this;
+					_subFields.add(at++,g);
+				}
+			}
+		}
 		boolean orderAll() {
 			boolean b=true;
 			if (_name!=null)
@@ -249,7 +465,7 @@ public class FileCollapser {
 					}
 					if (_values!=null) {
 						out.write(" ==> ");
-					    for (String s : _values) { out.write(s+", "); }
+						_values.print(out);
 					}
 				}
 			}
@@ -269,7 +485,7 @@ public class FileCollapser {
 		}
 	}
 	
-	static class ExplorerHooks implements Hooks {
+	static class ExplorerHooks implements FlyweightHooks {
 		ExploredField _root = new ExploredField(null);
 		ExploredField _cur  = _root;
 		String        _lastName;
@@ -314,6 +530,9 @@ public class FileCollapser {
 			_cur = _cur._owner;
 			return false;			
 		};
+		public boolean acceptsFlyweight() {
+			return true;
+		};
 		public void    begin() {
 			_root.openOccurence();
 		};
@@ -322,7 +541,7 @@ public class FileCollapser {
 			_root.orderAll();
 		};
 		public void    getName(Token t) {
-			_lastName = t._value;
+			_lastName = t.value();
 			ExploredField f=_cur.findField(_lastName);
 			if (f==null) f=_cur.addField(_lastName);
 			f.openOccurence();
@@ -333,13 +552,13 @@ public class FileCollapser {
 			_cur._types.add(ExploredField.FieldType.BASE);
 		};
 		public boolean afterBase(Token t) {
-			_cur.addValue(t._value);
+			_cur.addValue(t.value());
 			_cur.closeOccurences(false);
 			_cur = _cur._owner;
 			return false;
 		};
 		public boolean afterListData(Token t) {
-			_cur.addValue(t._value);
+			_cur.addValue(t.value());
 			return false;
 		};
 	}
@@ -365,5 +584,66 @@ public class FileCollapser {
 	public static ExploredField analyze(String filename) throws IOException {
 		return analyze(FileLoader.load(filename, FileLoader.Mode.READ));
 	}
+	/**
+	 * This function analyzes a set of data files, each on it's own, and merges the
+	 * results in one description of their structure. The files are shared between
+	 * the threads, and compressed files are inflated. A file which cannot be analyzed
+	 * is reported and ignored.
+	 * @param files    the files to analyze
+	 * @param threads  number of threads to use
+	 * @return      the merged result ; null if no file could be analyzed
+	 */
+	public static ExploredField analyze(File[] files, int threads) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,threads));
+		try {
+			LinkedList<Future<ExploredField>> l = new LinkedList<Future<ExploredField>>();
+			for (final File f : files)
+				l.add(pool.submit(new Callable<ExploredField>() {
+					public ExploredField call() throws IOException {
+						ExplorerHooks   h = new ExplorerHooks();
+						Analyzer.Result r = Analyzer.run(FileLoader.inflate(f),h);
+						if (r._ok) return h._root;
+						System.out.println(f+" : "+r);
+						return null;
+					}
+				}));
+			ExploredField root = null;
+			for (Future<ExploredField> x : l) {
+				try {
+					ExploredField e = x.get();
+					if      (e==null)    continue;
+					else if (root==null) root = e;
+					else                 root.merge(e);
+				}
+				catch (ExecutionException e) {
+					e.getCause().printStackTrace(System.out);
+				}
+			}
+			return root;
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace(System.out);
+			return null;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+	/**
+	 * Same as {@link #analyze(File[], int)} for all the files in a directory (the
+	 * sub-directories are not explored).
+	 * @param dir      the directory containing the files to analyze
+	 * @param threads  number of threads to use
+	 * @return      the merged result ; null if no file could be analyzed
+	 */
+	public static ExploredField analyze(File dir, int threads) throws IOException {
+		File[] all = dir.listFiles();
+		if (all==null) throw new IOException(dir+" is not a directory");
+		List<File> l = new ArrayList<File>();
+		for (File f : all) if (f.isFile()) l.add(f);
+		File[] files = l.toArray(new File[l.size()]);
+		Arrays.sort(files);
+		return analyze(files,threads);
+	}
 
 }
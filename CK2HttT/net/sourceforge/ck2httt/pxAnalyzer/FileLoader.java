@@ -1,8 +1,16 @@
 package net.sourceforge.ck2httt.pxAnalyzer;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import java.nio.channels.FileChannel;
 import java.nio.MappedByteBuffer;
@@ -12,7 +20,10 @@ import java.nio.BufferUnderflowException;
  * This class is used to map a file into memory.
  * It is useful to improve performances with large files.
  * It provides a transition towards the Reader class, so that common io methods
- * can easily be used.
+ * can easily be used.<p>
+ * Compressed files (gzip, or the first entry of a zip archive) cannot be mapped :
+ * they are either inflated in the heap ({@link #inflate(File)}) or read as a stream
+ * which is inflated by another thread while it is being analyzed ({@link #stream(File)}).
  * 
  * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
  */
@@ -33,6 +44,145 @@ public class FileLoader {
 		public FileChannel.MapMode mapMode() { return _mapMode; }
 	};
 	
+	/**
+	 * Compression formats recognized.
+	 */
+	static public enum Compression {
+		NONE, GZIP, ZIP
+	};
+	
+	/**
+	 * Finds how a file is compressed by looking at it's first bytes.
+	 * @param file the file to check
+	 * @return the compression format
+	 */
+	static public Compression compression(File file) throws IOException {
+		byte[] b = new byte[4];
+		int    n;
+		InputStream in = new FileInputStream(file);
+		try {
+			n = fill(in,b,0,4);
+		}
+		finally {
+			in.close();
+		}
+		if (n>=2 && (b[0]&0xff)==0x1f && (b[1]&0xff)==0x8b)            return Compression.GZIP;
+		if (n==4 && b[0]=='P' && b[1]=='K' && b[2]==3 && b[3]==4)       return Compression.ZIP;
+		return Compression.NONE;
+	}
+	
+	/**
+	 * Opens the file for reading, inflating it if it is compressed.
+	 * @param file the file to read
+	 * @return the stream on the (inflated) data
+	 */
+	static public InputStream open(File file) throws IOException {
+		Compression c  = compression(file);
+		InputStream in = new BufferedInputStream(new FileInputStream(file),__CHUNK);
+		try {
+			switch (c) {
+				case GZIP : return new GZIPInputStream(in,__CHUNK);
+				case ZIP  :
+					ZipInputStream z = new ZipInputStream(in);
+					if (z.getNextEntry()==null) throw new IOException(file+" is an empty archive");
+					return z;
+				default   : return in;
+			}
+		}
+		catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+	
+	/*
+	 * reads up to len bytes, stopping only at the end of the stream ; returns the number of bytes read.
+	 */
+	static private int fill(InputStream in, byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		while (n<len) {
+			int k = in.read(b,off+n,len-n);
+			if (k<0) break;
+			n+=k;
+		}
+		return n;
+	}
+	
+	/*
+	 * the size of the inflated data when the archive tells it, -1 otherwise ;
+	 * for gzip, it is only known modulo 4GB.
+	 */
+	static private long inflatedSize(File file, Compression c) throws IOException {
+		if (c==Compression.ZIP) {
+			ZipInputStream z = new ZipInputStream(new FileInputStream(file));
+			try {
+				ZipEntry e = z.getNextEntry();
+				return (e==null) ? -1 : e.getSize();
+			}
+			finally {
+				z.close();
+			}
+		}
+		if (c==Compression.GZIP && file.length()>=18) {
+			RandomAccessFile f = new RandomAccessFile(file,"r");
+			try {
+				byte[] b = new byte[4];
+				f.seek(f.length()-4);
+				f.readFully(b);
+				return (b[0]&0xffL) | (b[1]&0xffL)<<8 | (b[2]&0xffL)<<16 | (b[3]&0xffL)<<24;
+			}
+			finally {
+				f.close();
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Inflates a compressed file in the heap ; an uncompressed file is simply copied.
+	 * @param file the file to read
+	 * @return the (inflated) data
+	 * @throws IOException in particular if the data is larger than 2GB
+	 */
+	static public byte[] inflate(File file) throws IOException {
+		Compression c = compression(file);
+		if (c==Compression.NONE) return load(file, Mode.READ).getAll();
+		long   size = inflatedSize(file,c);
+		byte[] b    = new byte[(size>0 && size<Integer.MAX_VALUE-8) ? (int)size : __CHUNK];
+		int    n    = 0;
+		InputStream in = open(file);
+		try {
+			while ((n+=fill(in,b,n,b.length-n))==b.length) { //full : check whether there is more
+				int x = in.read();
+				if (x<0) break;
+				if (n==Integer.MAX_VALUE-8) throw new IOException(file+" is too large to be inflated in one piece");
+				byte[] a = new byte[(int)Math.min(Integer.MAX_VALUE-8,2L*n)];
+				System.arraycopy(b,0,a,0,n);
+				b = a;
+				b[n++] = (byte)x;
+			}
+		}
+		finally {
+			in.close();
+		}
+		if (n==b.length) return b;
+		byte[] a = new byte[n];
+		System.arraycopy(b,0,a,0,n);
+		return a;
+	}
+	
+	/**
+	 * Opens a Reader on the file, inflating it if it is compressed. The data is
+	 * inflated by another thread, a few chunks ahead of what is being read : the
+	 * decompression and the analysis run in parallel, and the inflated data is never
+	 * kept as a whole.
+	 * @param file the file to read
+	 * @return the Reader on the (inflated) data ; it must be closed to stop the inflating thread
+	 *         if it is not read to it's end.
+	 */
+	static public StreamReader stream(File file) throws IOException {
+		return new StreamReader(open(file),file.getName());
+	}
 	
 	/**
 	 * Maps the file into memory
@@ -42,11 +192,37 @@ public class FileLoader {
 	 */
 	static public BufferReader load(File file, Mode mode) throws IOException {
 		FileChannel channel = new RandomAccessFile(file, mode.rafMode()).getChannel();
-		BufferReader b  = new BufferReader(channel.map(mode.mapMode(), 0, (int)channel.size()));
+		if (channel.size()>Integer.MAX_VALUE) {
+			channel.close();
+			throw new IOException(file+" is too large to be loaded in one piece ; use FileLoader.map");
+		}
+		BufferReader b  = new BufferReader(channel.map(mode.mapMode(), 0, channel.size()));
 		channel.close();
 		b._buffer.load();
 		return b;
 	}
+	/**
+	 * Maps the file into memory for reading, whatever it's size.
+	 * @param file the file to map
+	 * @return the MappedFile associated with the map.
+	 */
+	static public MappedFile map(File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, Mode.READ.rafMode()).getChannel();
+		try {
+			return new MappedFile(channel);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	/**
+	 * Maps the file into memory for reading, whatever it's size.
+	 * @param filename the name of the file to map
+	 * @return the MappedFile associated with the map.
+	 */
+	static public MappedFile map(String filename) throws IOException {
+		return map(new File(filename));
+	}
 	/**
 	 * Maps the file into memory
 	 * @param filename the name of the file to map
@@ -57,6 +233,173 @@ public class FileLoader {
 		return load(new File(filename), mode);
 	}
 	
+	/**
+	 * A file mapped into memory as a series of segments, so that there is no
+	 * limit to it's size. The data is never copied into the heap.
+	 */
+	static public class MappedFile {
+		/** Size of the segments for large files ; a power of 2. */
+		static public final int __SEGMENT = 1<<30;
+		
+		final private MappedByteBuffer[] _segments;
+		final private int                _shift;  //log2 of the segment size
+		final private long               _mask;   //segment size - 1
+		/** Size of the file */
+		final public  long               _size;
+		
+		private MappedFile(FileChannel channel) throws IOException {
+			_size  = channel.size();
+			//files that can be mapped in one piece are
+			_shift = (_size<=Integer.MAX_VALUE) ? 31 : Integer.numberOfTrailingZeros(__SEGMENT);
+			_mask  = (1L<<_shift)-1;
+			_segments = new MappedByteBuffer[(int)((_size+_mask)>>>_shift)];
+			for (int i=0; i<_segments.length; i++) {
+				long beg = (long)i<<_shift;
+				_segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, beg, Math.min(_size-beg,_mask+1));
+			}
+		}
+		/**
+		 * @return the number of segments
+		 */
+		public int segments() { return _segments.length; }
+		/**
+		 * @return the segment number i
+		 */
+		public MappedByteBuffer segment(int i) { return _segments[i]; }
+		/**
+		 * @return the position in the file of the first byte of the segment number i
+		 */
+		public long segmentStart(int i) { return (long)i<<_shift; }
+		/**
+		 * @return the number of the segment containing the position pos
+		 */
+		public int segmentOf(long pos) { return (int)(pos>>>_shift); }
+		/**
+		 * @return the byte at the position pos
+		 */
+		public byte get(long pos) { return _segments[(int)(pos>>>_shift)].get((int)(pos&_mask)); }
+		/**
+		 * Copies len bytes starting at the position pos in the array b.
+		 */
+		public void get(long pos, byte[] b, int off, int len) {
+			while (len>0) {
+				MappedByteBuffer s = _segments[(int)(pos>>>_shift)];
+				int i = (int)(pos&_mask);
+				int l = Math.min(len, s.capacity()-i);
+				for (int k=0; k<l; k++) b[off+k] = s.get(i+k);
+				pos+=l; off+=l; len-=l;
+			}
+		}
+		/**
+		 * Gets a Reader on the file ; this is only possible if the file has been
+		 * mapped in one piece, i.e. if it is smaller than 2GB.
+		 * @throws IOException if the file is too large
+		 */
+		public BufferReader getReader() throws IOException {
+			if (_segments.length>1) throw new IOException("file is too large to be read through a Reader");
+			if (_segments.length==0) throw new IOException("empty file");
+			return new BufferReader(_segments[0]);
+		}
+	}
+	
+	/** Size of the chunks read from a compressed file */
+	static private final int __CHUNK  = 1<<16;
+	/** Number of chunks inflated ahead of the reader */
+	static private final int __AHEAD  = 8;
+	
+	/**
+	 * A Reader on a stream which is read by another thread, in chunks handed over
+	 * through a queue ; the chunks are recycled. The bytes are read as chars the same
+	 * way as in the {@link BufferReader}.
+	 */
+	static public class StreamReader extends Reader {
+		static private final byte[] __EOF = new byte[0];
+		
+		final private BlockingQueue<Object> _full = new ArrayBlockingQueue<Object>(__AHEAD+2);
+		final private BlockingQueue<byte[]> _free = new ArrayBlockingQueue<byte[]>(__AHEAD+2);
+		final private Thread                _thread;
+		private byte[] _chunk = null; //current chunk
+		private int    _len   = 0;    //bytes available in the current chunk
+		private int    _pos   = 0;    //next byte to read in the current chunk
+		
+		private StreamReader(final InputStream in, String name) {
+			for (int i=0; i<__AHEAD; i++) _free.add(new byte[__CHUNK]);
+			_thread = new Thread("inflate "+name) {
+				public void run() {
+					try {
+						try {
+							while (true) {
+								byte[] b = _free.take();
+								int    n = fill(in,b,0,b.length);
+								if (n==b.length) { _full.put(b); continue; }
+								if (n>0) {
+									byte[] a = new byte[n];
+									System.arraycopy(b,0,a,0,n);
+									_full.put(a);
+								}
+								_full.put(__EOF);
+								return;
+							}
+						}
+						catch (IOException e) {
+							_full.put(e);
+						}
+						finally {
+							in.close();
+						}
+					}
+					catch (InterruptedException e) { //closed by the reader
+					}
+					catch (IOException e) {
+						e.printStackTrace(System.out);
+					}
+				}
+			};
+			_thread.setDaemon(true);
+			_thread.start();
+		}
+		
+		/* gets the next chunk ; false at the end of the data */
+		private boolean nextChunk() throws IOException {
+			if (_chunk==__EOF) return false;
+			if (_chunk!=null && _chunk.length==__CHUNK) _free.offer(_chunk);
+			Object o;
+			try {
+				o = _full.take();
+			}
+			catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+			if (o instanceof IOException) {
+				_chunk = __EOF;
+				throw (IOException)o;
+			}
+			_chunk = (byte[])o;
+			_len   = _chunk.length;
+			_pos   = 0;
+			return _len>0;
+		}
+		
+		public void close() {
+			_thread.interrupt();
+			_chunk = __EOF;
+			_len   = 0;
+			_pos   = 0;
+		}
+		public int read() throws IOException {
+			if (_pos==_len && !nextChunk()) return -1;
+			return _chunk[_pos++]&0xff;
+		}
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (len==0) return 0;
+			if (_pos==_len && !nextChunk()) return -1;
+			int n = Math.min(len,_len-_pos);
+			for (int i=0; i<n; i++) cbuf[off+i]=(char)(0x00ff&(int)_chunk[_pos+i]);
+			_pos+=n;
+			return n;
+		}
+	}
+	
 	/**
 	 * A class making the transition between a mapped file and a Reader.
 	 * @author yvesp
@@ -81,13 +424,15 @@ public class FileLoader {
 			_buffer.position((int)(p+n));
 			return n;
 		}
+		private byte[] _b = null; //reused by read(char[],int,int)
 		public int read(char[] cbuf, int off, int len) {
 			int p = _buffer.position();
 			if (p+len>_buffer.capacity()) len=_buffer.capacity()-p;
 			if (len<=0) return -1;
-			byte[] b = new byte[len];
-			try { _buffer.get(b); } catch(BufferUnderflowException e) { return -1; }
-			for (int i=0; i<len; i++) cbuf[i+off]=(char)(0x00ff&(int)b[i]);
+			if (len>__CHUNK) len=__CHUNK;
+			if (_b==null) _b = new byte[__CHUNK];
+			try { _buffer.get(_b,0,len); } catch(BufferUnderflowException e) { return -1; }
+			for (int i=0; i<len; i++) cbuf[i+off]=(char)(0x00ff&(int)_b[i]);
 			return len;
 		}
 		/**
@@ -0,0 +1,273 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+import java.nio.MappedByteBuffer;
+
+import net.sourceforge.ck2httt.pxAnalyzer.Token.TokenType;
+import net.sourceforge.ck2httt.pxAnalyzer.Token.Tokenizer;
+
+/**
+ * A Parser implementation that reads the data directly in a mapped file,
+ * without copying it in the heap. It follows exactly the same rules as the
+ * {@link FastParser}, and is only a little slower.<p>
+ * There is no limit to the size of the file. However, the Tokenizer interface
+ * gives positions as int : for files larger than 2GB, these positions wrap around
+ * (while staying positive) and cannot be used to rewrite the file. The actual
+ * position is available through {@link #position()}.<p>
+ *
+ * @see FileLoader.MappedFile
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class MappedParser implements Tokenizer {
+
+	private int    _line = 0; //current line
+	private FileLoader.MappedFile _f; //data to analyze
+	private long   _pos =-1;  //current position=last analyzed
+	private long   _max;      //last accessible index
+	private BraceIndex _index;  //structural index used to skip structures ; may be null
+	private int        _ev = 0; //hint for the next brace in the index
+
+	//current segment
+	private MappedByteBuffer _seg;
+	private long             _segBeg = 0;
+	private long             _segEnd = -1;
+
+	//cursor : current token
+	private TokenType _type;
+	private long      _beg;
+	private long      _end;
+	private int       _tline;
+
+	//last tokens read, for value() ; the size must be a power of 2
+	private long[]    _rbeg = new long[8];
+	private long[]    _rend = new long[8];
+	private int       _r    = 0;
+	private byte[]    _b    = new byte[256];
+
+	public MappedParser(FileLoader.MappedFile f) {
+		_f   = f;
+		_max = f._size-1;
+	}
+
+	/**
+	 * Builds a parser that only reads a portion of the file, and that uses a structural
+	 * index to skip the structures it doesn't need to analyze ; the positions of the
+	 * Tokens are still given relative to the whole file.
+	 * @param f     the mapped file
+	 * @param from  first position to read
+	 * @param to    last position (excluded) to read
+	 * @param line  line number at position from
+	 * @param index the index for that file, as built on it's only segment ; null to use none
+	 */
+	public MappedParser(FileLoader.MappedFile f, long from, long to, int line, BraceIndex index) {
+		if (index!=null && (f.segments()!=1 || !index.covers((int)from,(int)to)))
+			throw new IllegalArgumentException("index doesn't match data");
+		_f     = f;
+		_pos   = from-1;
+		_max   = to-1;
+		_line  = line;
+		_index = index;
+	}
+
+	/* gets the byte at position p ; usually in the current segment */
+	private byte at(long p) {
+		if (p>_segEnd || p<_segBeg) {
+			int s = _f.segmentOf(p);
+			_seg    = _f.segment(s);
+			_segBeg = _f.segmentStart(s);
+			_segEnd = _segBeg+_seg.capacity()-1;
+		}
+		return _seg.get((int)(p-_segBeg));
+	}
+
+	//A fast but fuzzy char tester ; it is sufficient for our needs
+	private boolean checkChar(byte c) {
+		return c>',' && c<='z' && c!='=' || c<0;
+	}
+
+	//A fast but fuzzy space tester ; it is sufficient for our needs
+	private boolean checkSpace(byte c) {
+		if (c=='\n') { _line++; return true; }
+		return (c<=' ');
+	}
+
+	private void passSpaces() {
+		do {
+    	    while (_pos<_max && checkSpace(at(++_pos)));
+		    if (at(_pos)!='#') break;
+			while (_pos<_max && at(++_pos)!='\n');
+		} while(true);
+	}
+
+	/* same as passToClose, but using the index to jump straight to the close */
+	private void jumpToClose() {
+		if (_pos>=_max) return;
+		int e = _index.next((int)_pos,_ev);
+		int c = (e<_index.size()) ? _index.close(e) : -1;
+		if (c>=0 && _index.position(c)<=_max) {
+			_line += countLines(_pos,_index.position(e)) + _index.lines(c) - _index.lines(e);
+			_pos   = _index.position(c);
+			_ev    = c+1;
+		}
+		else { //no close : we are going to the end ; this only happens once
+			_line += countLines(_pos,_max+1);
+			_pos   = _max;
+			_ev    = e;
+		}
+	}
+
+	/* counts the \n in the file between the two positions (both excluded) */
+	private int countLines(long from, long to) {
+		int n=0;
+		while (++from<to) if (at(from)=='\n') n++;
+		return n;
+	}
+
+    private void passToClose() {
+    	if (_index!=null) { jumpToClose(); return; }
+    	int i=0;
+    	while (i>=0) {
+        	if (_pos>=_max) return;
+    		byte c = at(++_pos);
+    		if      (c=='{')  i++;
+    		else if (c=='}')  i--;
+    		else if (c=='\n') _line++;
+    	}
+    }
+
+    private TokenType set(TokenType type, long beg, long end) {
+    	_type  = type;
+    	_beg   = beg;
+    	_end   = end;
+    	_tline = _line;
+    	if (type==TokenType.TOKEN) {
+    		_r = (_r+1) & (_rbeg.length-1);
+    		_rbeg[_r] = beg;
+    		_rend[_r] = end;
+    	}
+    	return type;
+    }
+
+    private TokenType getString() {
+		long start=_pos;
+    	while(_pos<_max && at(++_pos)!='"');
+    	if (_pos<=_max)
+		    return set(TokenType.TOKEN,start,_pos);
+    	else
+        	return set(TokenType.ERROR,start,start);
+    }
+
+    private TokenType getOther() {
+    	long start=_pos;
+    	if (_pos==_max)
+    		 return set(TokenType.END,_pos,_pos);
+    	while (_pos<_max && checkChar(at(++_pos)));
+    	if (_pos<=_max)
+    	    return set(TokenType.TOKEN,start,_pos--);
+    	else
+    	    return set(TokenType.ERROR,start,start);
+    }
+
+	public TokenType next() {
+		if (_pos==_max) return set(TokenType.END,_pos,_pos);
+    	passSpaces();
+     	switch (at(_pos)) {
+    	    case '{' : return set(TokenType.OPEN,_pos,_pos);
+    	    case '}' : return set(TokenType.CLOSE,_pos,_pos);
+    	    case '=' : return set(TokenType.EQUAL,_pos,_pos);
+    	    case '"' : return getString();
+    	    default  : return getOther();
+    	}
+	}
+
+	public TokenType nextClose() {
+    	passToClose();
+    	return (_pos<=_max && at(_pos)=='}') ?
+    			set(TokenType.CLOSE,_pos,_pos) :
+    		    set(TokenType.END,_pos,_pos);
+	}
+
+	public int begin() { return pos(_beg); }
+	public int end()   { return pos(_end); }
+	public int line()  { return _tline;    }
+
+	/*
+	 * converts a position to an int : beyond 2GB, positions wrap around, but stay
+	 * positive because the Fields use the sign of the positions as a mark.
+	 */
+	static private int pos(long p) {
+		return (p<=Integer.MAX_VALUE) ? (int)p : (int)(p & Integer.MAX_VALUE);
+	}
+
+	/* copies the bytes for a token at the given positions in _b ; returns their number */
+	private int read(long beg, long end) {
+		int l = (int)((at(beg)=='"') ? end-beg+1 : end-beg);
+		if (l>_b.length) _b = new byte[l];
+		_f.get(beg,_b,0,l);
+		return l;
+	}
+
+	/* builds the value for a token at the given positions */
+	private String value(long beg, long end) {
+		return new String(_b,0,read(beg,end));
+	}
+
+	/* finds the ring entry for the positions returned by begin() and end() */
+	private int ring(int beg, int end) {
+		for (int i=0; i<_rbeg.length; i++) {
+			int k = (_r-i) & (_rbeg.length-1);
+			if (pos(_rbeg[k])==beg && pos(_rend[k])==end) return k;
+		}
+		throw new IllegalStateException("token value no longer available at "+beg);
+	}
+
+	/**
+	 * The positions given are those returned by begin() and end() : we look
+	 * for the actual positions in the last tokens read.
+	 */
+	public String value(int beg, int end) {
+		int k = ring(beg,end);
+		return value(_rbeg[k],_rend[k]);
+	}
+
+	public String symbol(int beg, int end, SymbolTable symbols) {
+		int k = ring(beg,end);
+		return symbols.get(_b,0,read(_rbeg[k],_rend[k]));
+	}
+
+	public int bytes(int beg, int end, byte[] buf) {
+		int k = ring(beg,end);
+		int l = read(_rbeg[k],_rend[k]);
+		if (l<=buf.length) System.arraycopy(_b,0,buf,0,l);
+		return l;
+	}
+
+	/* builds a Token from the cursor */
+	private Token token() {
+		switch (_type) {
+			case TOKEN : return new Token(_type,pos(_beg),pos(_end),value(_beg,_end),_tline);
+			case ERROR : return new Token(_type,pos(_beg),pos(_end),"",_tline);
+			default    : return new Token(_type,pos(_beg),pos(_end),null,_tline);
+		}
+	}
+
+	public Token getNext() {
+		next();
+		return token();
+	}
+
+	public Token getNextClose() {
+		nextClose();
+		return token();
+	}
+
+	public int getPos() {
+		return pos(_pos);
+	}
+
+	/**
+	 * @return the current position in the file, which may be larger than 2GB.
+	 */
+	public long position() {
+		return _pos;
+	}
+
+}
@@ -0,0 +1,426 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.FlyweightHooks;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.Field;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.LazyField;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.StructField;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.TreeHooks;
+import net.sourceforge.ck2httt.pxAnalyzer.Token.TokenType;
+
+/**
+ * A Hooks that keeps the whole analyzed tree out of the heap, for the saves whose
+ * full tree of {@link Field} would not fit in it.<p>
+ *
+ * Each call made by the {@link Analyzer} is recorded as a small fixed size record
+ * (kind, position and line of the Token, and a link) in direct buffers : a structure
+ * links to the record closing it, and a name to its id in a {@link SymbolTable}.
+ * No String is built : the values are read back from the data when they are
+ * requested, so the data must stay available as long as the tree.<p>
+ *
+ * The tree can be read in two ways :
+ * <ul>
+ * <li>directly on the records, through the <i>nodes</i> : a node is the number of the
+ *     record where a field starts, and {@link #first()}, {@link #next(int)},
+ *     {@link #child(int)} and {@link #get(int, String)} move from one to the other.
+ *     Nothing is allocated but the values requested.</li>
+ * <li>as a usual tree of Fields, through {@link #getDataTree()} : the top level
+ *     structures are {@link LazyField} placeholders, for which the Fields are only
+ *     built when they are used, from the records and without analyzing the data again.
+ *     The tree can be modified and written as any other ; {@link #release()} drops
+ *     the Fields that were built and not modified.</li>
+ * </ul>
+ * Positions are kept as int : the data must be smaller than 2GB. The records take
+ * about 20 bytes per Token, counted against -XX:MaxDirectMemorySize (by default, the
+ * maximum heap size) ; they are freed with the tree.<p>
+ *
+ * @see PXAdvancedAnalyzer#_useOffHeap
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class OffHeapTree implements FlyweightHooks {
+
+	/**
+	 * The kinds of nodes.
+	 */
+	static public enum Kind {
+		/** name = value */BASE, /** name = { name = ... } */STRUCT, /** { name = ... } in a structure */ANON,
+		/** name = { value ... } */LIST, /** name = { } */EMPTY
+	};
+
+	//record kinds ; each opening kind is followed by the kind closing it
+	static private final int NAME      = 0;
+	static private final int BASE      = 1;
+	static private final int LISTDATA  = 2;
+	static private final int STRUCT    = 3;
+	static private final int END_STRUCT= 4;
+	static private final int ANON      = 5;
+	static private final int END_ANON  = 6;
+	static private final int LIST      = 7;
+	static private final int END_LIST  = 8;
+	static private final int EMPTY     = 9;
+	static private final int END_EMPTY = 10;
+
+	//record layout : 5 ints
+	static private final int OP    = 0; //kind | token type<<8
+	static private final int BEG   = 1;
+	static private final int END   = 2;
+	static private final int LINE  = 3;
+	static private final int LINK  = 4; //symbol id for a name, other end for a structure
+	static private final int INTS  = 5;
+
+	static private final int SHIFT = 18; //records per buffer : 2^18, 5MB
+	static private final int MASK  = (1<<SHIFT)-1;
+
+	static private final TokenType[] __types = TokenType.values();
+
+	private IntBuffer[]  _records = new IntBuffer[16];
+	private int          _n       = 0;               //number of records
+	private int[]        _open    = new int[40];     //structures being recorded
+	private int          _depth   = 0;
+	private byte[]       _b       = new byte[64];    //buffer for the names
+	private SymbolTable  _symbols = new SymbolTable();
+	private boolean      _done    = false;
+	private int          _endPos;                    //the END Token
+	private int          _endLine;
+	private Source       _source;
+	private StructField  _root    = null;
+	private int[]        _top;                       //top level structures, in the order of the data
+
+	/**
+	 * @param data the data that will be analyzed
+	 */
+	public OffHeapTree(byte[] data) {
+		_source = new Source(data,null);
+	}
+
+	/**
+	 * @param f the mapped file that will be analyzed ; smaller than 2GB
+	 */
+	public OffHeapTree(FileLoader.MappedFile f) {
+		if (f._size>Integer.MAX_VALUE) throw new IllegalArgumentException("file too large");
+		_source = new Source(null,f);
+	}
+
+	/* adds a record */
+	private int put(int op, Token t, int link) {
+		int s = _n>>>SHIFT;
+		if (s==_records.length) {
+			IntBuffer[] r = new IntBuffer[s*2];
+			System.arraycopy(_records,0,r,0,s);
+			_records = r;
+		}
+		if (_records[s]==null)
+			_records[s] = ByteBuffer.allocateDirect((INTS<<SHIFT)*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		IntBuffer b = _records[s];
+		int       o = (_n&MASK)*INTS;
+		b.put(o+OP,  op|(t._token.ordinal()<<8));
+		b.put(o+BEG, t._beg);
+		b.put(o+END, t._end);
+		b.put(o+LINE,t._line);
+		b.put(o+LINK,link);
+		return _n++;
+	}
+
+	/* a value in a record */
+	private int get(int r, int i) {
+		return _records[r>>>SHIFT].get((r&MASK)*INTS+i);
+	}
+
+	private void open(int op, Token t) {
+		if (_depth==_open.length) {
+			int[] o = new int[_depth*2];
+			System.arraycopy(_open,0,o,0,_depth);
+			_open = o;
+		}
+		_open[_depth++] = put(op,t,-1);
+	}
+
+	private void close(int op, Token t) {
+		int o = _open[--_depth];
+		int c = put(op,t,o);
+		_records[o>>>SHIFT].put((o&MASK)*INTS+LINK,c);
+	}
+
+	public boolean acceptsFlyweight()     { return true; }
+	public void    begin()                { }
+	public void    getName(Token t)       {
+		int l = t.bytes(_b);
+		if (l>_b.length) { _b = new byte[l]; t.bytes(_b); }
+		put(NAME,t,_symbols.id(_b,0,l));
+	}
+	public void    beforeBase(Token t)    { }
+	public boolean afterBase(Token t)     { put(BASE,t,-1);     return false; }
+	public boolean afterListData(Token t) { put(LISTDATA,t,-1); return false; }
+	public boolean beforeStruct(Token t)  { open(STRUCT,t);     return false; }
+	public boolean afterStruct(Token t)   { close(END_STRUCT,t);return false; }
+	public boolean beforeAnon(Token t)    { open(ANON,t);       return false; }
+	public boolean afterAnon(Token t)     { close(END_ANON,t);  return false; }
+	public boolean beforeList(Token t)    { open(LIST,t);       return false; }
+	public boolean afterList(Token t)     { close(END_LIST,t);  return false; }
+	public void    beforeEmpty(Token t)   { open(EMPTY,t); }
+	public boolean afterEmpty(Token t)    { close(END_EMPTY,t); return false; }
+	public void    end(Token t) {
+		_endPos  = t._end;
+		_endLine = t._line;
+		_done    = true;
+	}
+
+	/**
+	 * @return the number of records ; about one for each Token read.
+	 */
+	public int size() {
+		return _n;
+	}
+
+	/**
+	 * @return the memory used by the records, in bytes
+	 */
+	public long memory() {
+		long n = 0;
+		for (IntBuffer b : _records) if (b!=null) n += b.capacity()*4L;
+		return n;
+	}
+
+	/**
+	 * @return the first top level node ; -1 if there is none
+	 */
+	public int first() {
+		return (_n>0) ? 0 : -1;
+	}
+
+	/**
+	 * @return the node following this one in the same structure ; -1 if there is none
+	 */
+	public int next(int node) {
+		int r = node;
+		if ((get(r,OP)&0xFF)==NAME) r++;
+		if ((get(r,OP)&0xFF)>=STRUCT) r = get(r,LINK);
+		r++;
+		if (r>=_n) return -1;
+		int op = get(r,OP)&0xFF;
+		return (op>=STRUCT && (op&1)==0) ? -1 : r;
+	}
+
+	/**
+	 * @return the first node in this structure (or anonymous structure) ; -1 if there is none
+	 */
+	public int child(int node) {
+		int r = node;
+		if ((get(r,OP)&0xFF)==NAME) r++;
+		int op = get(r,OP)&0xFF;
+		if (op!=STRUCT && op!=ANON || get(r,LINK)==r+1) return -1;
+		return r+1;
+	}
+
+	/**
+	 * @return the kind of field starting at this node
+	 */
+	public Kind kind(int node) {
+		int op = get(node,OP)&0xFF;
+		if (op==NAME) op = get(node+1,OP)&0xFF;
+		switch (op) {
+			case BASE   : return Kind.BASE;
+			case STRUCT : return Kind.STRUCT;
+			case ANON   : return Kind.ANON;
+			case LIST   : return Kind.LIST;
+			case EMPTY  : return Kind.EMPTY;
+			default     : throw new IllegalArgumentException("no field at "+node);
+		}
+	}
+
+	/**
+	 * @return the name of the field at this node ; "" for an anonymous structure
+	 */
+	public String name(int node) {
+		return ((get(node,OP)&0xFF)==NAME) ? _symbols.name(get(node,LINK)) : "";
+	}
+
+	/**
+	 * @return the value of the base field at this node ; null if it is not a base field
+	 */
+	public synchronized String value(int node) {
+		if ((get(node,OP)&0xFF)!=NAME || (get(node+1,OP)&0xFF)!=BASE) return null;
+		return _source.value(get(node+1,BEG),get(node+1,END));
+	}
+
+	/**
+	 * Looks a field up by name.
+	 * @param node the structure where the field is looked for ; -1 for the top level
+	 * @param name the name of the field
+	 * @return the first node with that name ; -1 if there is none
+	 */
+	public int get(int node, String name) {
+		int id = _symbols.id(name);
+		for (int x=(node<0) ? first() : child(node); x>=0; x=next(x))
+			if ((get(x,OP)&0xFF)==NAME && get(x,LINK)==id) return x;
+		return -1;
+	}
+
+	/**
+	 * Builds the Field for a node, with all its content. The Field is new at each call
+	 * and has no owner.
+	 * @param node the node
+	 * @return the Field
+	 */
+	public synchronized Field<?> field(int node) {
+		int last = node;
+		if ((get(last,OP)&0xFF)==NAME) last++;
+		if ((get(last,OP)&0xFF)>=STRUCT) last = get(last,LINK);
+		TreeHooks h = new TreeHooks();
+		Token     t = new Token(_source);
+		h.begin();
+		for (int r=node; r<=last; r++) {
+			t.set(__types[get(r,OP)>>>8],get(r,BEG),get(r,END),get(r,LINE));
+			switch (get(r,OP)&0xFF) {
+				case NAME       : h.getName(t);       break;
+				case BASE       : h.afterBase(t);     break;
+				case LISTDATA   : h.afterListData(t); break;
+				case STRUCT     : h.beforeStruct(t);  break;
+				case END_STRUCT : h.afterStruct(t);   break;
+				case ANON       : h.beforeAnon(t);    break;
+				case END_ANON   : h.afterAnon(t);     break;
+				case LIST       : h.beforeList(t);    break;
+				case END_LIST   : h.afterList(t);     break;
+				case EMPTY      : h.beforeEmpty(t);   break;
+				case END_EMPTY  : h.afterEmpty(t);    break;
+			}
+		}
+		t.set(TokenType.END,get(last,END),get(last,END),get(last,LINE));
+		h.end(t);
+		return h.getDataTree().get(0);
+	}
+
+	/**
+	 * Returns the whole tree as Fields : the top level structures are placeholders,
+	 * which are only built when they are used ; the other top level fields are built
+	 * right away. The same tree is returned at each call.
+	 * No use calling this before the analysis is complete.
+	 * @return the data tree
+	 */
+	public synchronized StructField getDataTree() {
+		if (!_done) throw new IllegalStateException();
+		if (_root==null) {
+			TreeHooks h = new TreeHooks();
+			h.begin();
+			h.end(new Token(TokenType.END,_endPos,_endPos,null,_endLine));
+			_root = h.getDataTree();
+			int n = 0;
+			for (int x=first(); x>=0; x=next(x)) if (kind(x)==Kind.STRUCT) n++;
+			_top = new int[n];
+			n = 0;
+			for (int x=first(); x>=0; x=next(x)) {
+				if (kind(x)==Kind.STRUCT) _root.addField(placeholder(_top[n++]=x));
+				else                      _root.addField(field(x));
+			}
+		}
+		return _root;
+	}
+
+	/* a placeholder for the structure at that node */
+	private OffHeapField placeholder(int node) {
+		Token name = new Token(TokenType.TOKEN,get(node,BEG),get(node,END),name(node),get(node,LINE));
+		return new OffHeapField(name,get(get(node+1,LINK),END),node);
+	}
+
+	/**
+	 * Puts the placeholders back in the tree from {@link #getDataTree()} in place of
+	 * the top level structures that were built and not modified since, so that the
+	 * memory they use can be reclaimed. The Fields released must not be used anymore.
+	 * @return the number of structures released
+	 */
+	public synchronized int release() {
+		if (_root==null) return 0;
+		int n = 0;
+		for (int i=0; i<_root._data.size(); i++) {
+			Field<?> f = _root._data.get(i);
+			if (!(f instanceof StructField) || f.isModified()) continue;
+			int k = top(f.begIndex());
+			if (k<0) continue;
+			OffHeapField p = placeholder(_top[k]);
+			p.setOwner(_root);
+			_root._data.set(i,p);
+			n++;
+		}
+		return n;
+	}
+
+	/* finds the top level structure whose name is at that position ; -1 if none */
+	private int top(int pos) {
+		int lo = 0, hi = _top.length-1;
+		while (lo<=hi) {
+			int m = (lo+hi)>>>1;
+			int p = get(_top[m],BEG);
+			if      (p<pos) lo = m+1;
+			else if (p>pos) hi = m-1;
+			else            return m;
+		}
+		return -1;
+	}
+
+	/*
+	 * the placeholder for a top level structure : it is built from the records
+	 * instead of being analyzed from the data.
+	 */
+	private final class OffHeapField extends LazyField {
+		private int _node;
+		OffHeapField(Token name, int end, int node) {
+			super(name,end,(byte[])null,null);
+			_node = node;
+		}
+		Field<?> parse() {
+			if (_data==null) {
+				_data = field(_node);
+				if (isDeleted()) _data.delete();
+			}
+			return _data;
+		}
+	}
+
+	/*
+	 * gives the values of the Tokens anywhere in the data, the way the FastParser
+	 * does ; it doesn't read the data.
+	 */
+	static private final class Source implements Token.Values {
+		private byte[]                _data;
+		private FileLoader.MappedFile _f;
+		private byte[]                _b = new byte[256];
+
+		Source(byte[] data, FileLoader.MappedFile f) { _data=data; _f=f; }
+
+		/* number of bytes in the token ; the quotes are included in a quoted string */
+		private int length(int beg, int end) {
+			byte c = (_data!=null) ? _data[beg] : _f.get(beg);
+			return (c=='"') ? end-beg+1 : end-beg;
+		}
+		/* the buffer holding the bytes of the token ; it starts at beg in the data, at 0 otherwise */
+		private byte[] read(int beg, int l) {
+			if (_data!=null) return _data;
+			if (l>_b.length) _b = new byte[l];
+			_f.get(beg,_b,0,l);
+			return _b;
+		}
+
+		public String value(int beg, int end) {
+			int    l = length(beg,end);
+			byte[] b = read(beg,l);
+			return new String(b,(b==_data) ? beg : 0,l);
+		}
+		public String symbol(int beg, int end, SymbolTable symbols) {
+			int    l = length(beg,end);
+			byte[] b = read(beg,l);
+			int    o = (b==_data) ? beg : 0;
+			return symbols.get(b,o,o+l);
+		}
+		public int bytes(int beg, int end, byte[] buf) {
+			int    l = length(beg,end);
+			if (l>buf.length) return l;
+			byte[] b = read(beg,l);
+			System.arraycopy(b,(b==_data) ? beg : 0,buf,0,l);
+			return l;
+		}
+	}
+
+}
@@ -1,11 +1,25 @@
 package net.sourceforge.ck2httt.pxAnalyzer;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.Hooks;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.*;
+import net.sourceforge.ck2httt.pxAnalyzer.Patterns.SelectorAnalyzer;
 
 
 /**
@@ -56,8 +70,68 @@ import net.sourceforge.ck2httt.pxAnalyzer.PXTree.*;
  */
 public class PXAdvancedAnalyzer extends PXTreeChooser {
 
+	/**
+	 * When true, the fast analysis first builds a {@link BraceIndex} of the data, so that
+	 * skipping the structures excluded by a filter costs nothing. The index is shared by
+	 * all the analyzers built from the same one.
+	 */
+	static public boolean _useBraceIndex = true;
+
+	/**
+	 * When true, the {@link BraceIndex} is also built in MAPPED mode. As it stays in the heap,
+	 * and may be close to half the size of the data, it isn't by default : the MAPPED mode
+	 * then reads the skipped structures, and only indexes the top level structures to cut
+	 * the data for the parallel analysis.
+	 */
+	static public boolean _useMappedIndex = false;
+
+	/**
+	 * When true, the structures excluded by the filter are not lost : they are kept in
+	 * the tree as {@link PXTree.LazyField} placeholders, which are only analyzed when
+	 * they are first reached. This works with the data in the heap (FAST mode) or mapped
+	 * (MAPPED mode, files smaller than 2GB) ; the data is then kept as long as the tree.
+	 * A compressed file streamed, or the SECURE mode, cannot be read back : the skipped
+	 * structures are then dropped, and a warning is printed.
+	 */
+	static public boolean _useLazyFields = false;
+
+	/**
+	 * When true, the analysis without a filter keeps the tree out of the heap, in an
+	 * {@link OffHeapTree} : the top level structures are then placeholders, which are
+	 * only built as Fields when they are used. This works with the data in the heap
+	 * (FAST mode) or mapped (MAPPED mode, files smaller than 2GB) ; otherwise, and with
+	 * a filter, the usual tree is built.
+	 */
+	static public boolean _useOffHeap = false;
+
+	/**
+	 * The ways of reading the file. A compressed file (gzip, or zip with the data
+	 * in the first entry) is streamed in SECURE and MAPPED modes : it is inflated by
+	 * another thread while it is being analyzed, is never held whole in the heap, and
+	 * can only be analyzed once. In FAST mode, it is inflated in the heap first.
+	 */
+	static public enum Mode {
+		/** the slow and secure parser, reading the mapped file as a Reader */
+		SECURE,
+		/** the fast parser, reading a copy of the file in the heap */
+		FAST,
+		/**
+		 * the fast parser, reading directly the mapped file : no copy, and no limit to the file size ;
+		 * the parallel analysis is only used on files smaller than 2GB, and the structural
+		 * index only when {@link PXAdvancedAnalyzer#_useMappedIndex} is set
+		 */
+		MAPPED
+	};
+
 	private FileLoader.BufferReader _r=null;
 	private byte[]                  _data=null;
+	private BraceIndex              _index=null;
+	private FileLoader.MappedFile   _mapped=null;
+	private File                    _file=null;
+	private FileLoader.StreamReader _stream=null;
+	private Analyzer.Result         _result=null;
+	private Progress                _progress=null;
+	private OffHeapTree             _offHeap=null;
 	
 	/**
 	 * Constructor
@@ -66,8 +140,133 @@ public class PXAdvancedAnalyzer extends PXTreeChooser {
 	 * @throws IOException
 	 */
 	public PXAdvancedAnalyzer(String filename, boolean fast) throws IOException {
-		_r = FileLoader.load(filename, FileLoader.Mode.READ);
-		if (fast) _data = _r.getAll();
+		this(filename, (fast) ? Mode.FAST : Mode.SECURE);
+	}
+	
+	/**
+	 * Constructor
+	 * @param filename  the file you want to analyze
+	 * @param mode      the way to read the file ; FAST automatically turns to MAPPED
+	 *                  when the file is too large to be copied in the heap.
+	 * @throws IOException
+	 */
+	public PXAdvancedAnalyzer(String filename, Mode mode) throws IOException {
+		File f = new File(filename);
+		_file = f;
+		if (FileLoader.compression(f)!=FileLoader.Compression.NONE) {
+			if (mode==Mode.FAST) _data   = FileLoader.inflate(f);
+			else                 _stream = FileLoader.stream(f);
+			return;
+		}
+		if (mode==Mode.FAST && f.length()>=Integer.MAX_VALUE) mode = Mode.MAPPED;
+		if (mode==Mode.MAPPED) {
+			_mapped = FileLoader.map(f);
+			if (_mapped.segments()==1) _r = _mapped.getReader();
+		}
+		else {
+			_r = FileLoader.load(f, FileLoader.Mode.READ);
+			if (mode==Mode.FAST) _data = _r.getAll();
+		}
+	}
+	
+	/**
+	 * Constructor for a new analysis of the data already loaded by another
+	 * analyzer, for example with a different filter. The data is not reloaded,
+	 * and the structural index (if any) is not rebuilt.
+	 * @param a  the analyzer that loaded the data
+	 * @throws IllegalStateException if the data is a compressed file being streamed
+	 */
+	public PXAdvancedAnalyzer(PXAdvancedAnalyzer a) {
+		if (a._stream!=null) throw new IllegalStateException("a streamed file can only be analyzed once");
+		_r      = a._r;
+		_data   = a._data;
+		_index  = a._index;
+		_mapped = a._mapped;
+		_file   = a._file;
+		if (_data==null && _mapped==null) _r.position(0);
+	}
+	
+	/*
+	 * runs the analysis with the appropriate parser ; the index is only built
+	 * when we expect to skip data.
+	 */
+	private boolean run(Hooks h, boolean filtered) {
+		if (filtered && _useBraceIndex) index();
+		if (_progress!=null) _progress.start(length());
+		try {
+			if      (_mapped!=null) _result = Analyzer.run(_mapped,_index,h,_progress);
+			else if (_stream!=null) _result = Analyzer.run(_stream,h,_progress);
+			else if (_data==null)   _result = Analyzer.run(_r,h,_progress).in(_r._buffer);
+			else if (_index!=null)  _result = Analyzer.run(_data,_index,h,_progress);
+			else                    _result = Analyzer.run(_data,h,_progress);
+		}
+		finally {
+			if (_progress!=null) _progress.done();
+		}
+		return _result._ok;
+	}
+	
+	/* the structural index, built if needed ; null if the data isn't indexed */
+	private BraceIndex index() {
+		if (_index==null) {
+			if      (_data!=null) _index = new BraceIndex(_data);
+			else if (_mapped!=null && _mapped.segments()==1 && _useMappedIndex) _index = new BraceIndex(_mapped.segment(0));
+		}
+		return _index;
+	}
+
+	/* true if the LazyFields are wanted, and can read back the data */
+	private boolean lazy() {
+		return _useLazyFields && (_data!=null || (_mapped!=null && _mapped._size<Integer.MAX_VALUE));
+	}
+
+	/* gives the data, and the index if any, to the hooks for the LazyFields */
+	private void setLazySource(TreeHooks t) {
+		if (_data!=null) t.setLazySource(_data,_index);
+		else             t.setLazySource(_mapped,_index);
+	}
+
+	/* number of bytes to analyze ; 0 if unknown */
+	private long length() {
+		if (_data!=null)   return _data.length;
+		if (_stream!=null) return 0;
+		return _file.length();
+	}
+	
+	/**
+	 * Follows the progress of the next analysis ; the Progress is started before
+	 * and stopped after it. Nothing is reported when the tree is loaded from a
+	 * snapshot.
+	 * @param p where to report the progress ; null for nothing
+	 */
+	public void setProgress(Progress p) {
+		_progress = p;
+	}
+	
+	/**
+	 * @return the result of the analysis, with the error found if any ; null if the
+	 *         file was not analyzed (or the tree was loaded from a snapshot).
+	 */
+	public Analyzer.Result getResult() {
+		return _result;
+	}
+	
+	/**
+	 * Gets a pull reader on the data, as an alternative to the analysis when you don't
+	 * need any tree : nothing is built while reading. Each call returns a new reader
+	 * starting at the beginning of the data ; in SECURE mode, only one of them can be
+	 * used at a time, and a streamed compressed file can only be read once, instead of
+	 * being analyzed.
+	 * @return a reader on the data
+	 */
+	public PXEventReader getEventReader() {
+		if (_mapped!=null) return new PXEventReader(new MappedParser(_mapped));
+		if (_stream!=null) return new PXEventReader(new ReaderParser(_stream));
+		if (_data==null) {
+			_r.position(0);
+			return new PXEventReader(new ReaderParser(_r));
+		}
+		return new PXEventReader(new FastParser(_data,_index));
 	}
 	
 	/**
@@ -78,6 +277,14 @@ public class PXAdvancedAnalyzer extends PXTreeChooser {
 	 */
 	public TreeCallbacks[] getCallbacks() { return null; }
 	
+	/**
+	 * @return the records of the tree when it was kept out of the heap ; null otherwise
+	 * @see #_useOffHeap
+	 */
+	public OffHeapTree getOffHeapTree() {
+		return _offHeap;
+	}
+	
 	/**
 	 * Analyzes the file using the given filter. Any required callbacks
 	 * are recovered through the getMatchers method.<br>
@@ -101,17 +308,15 @@ public class PXAdvancedAnalyzer extends PXTreeChooser {
 			e.printStackTrace(System.out);
 			return null;
 		}
-		boolean b = (_data!=null) ? Analyzer.analyze(_data,h) : Analyzer.analyze(_r,h);
+		if (lazy()) {
+			if (_useBraceIndex) index();
+			setLazySource(_h);
+		}
+		else if (_useLazyFields)
+			System.out.println("lazy fields need the data in FAST or MAPPED mode (uncompressed, under 2GB) : the skipped structures are dropped");
+		boolean b = run(h,true);
 		if (!b) {
-			System.out.println("analysis failed :" + Analyzer._error);
-			if (_r!=null) {
-			    int max = Analyzer._errorPosition+100;
-			    int min = Analyzer._errorPosition-100;
-			    if (_r._buffer.limit()<max) max=_r._buffer.limit();
-			    if (min<0) min=0;
-			    for (int i=min; i<max; i++)
-				    System.out.print((char)_r._buffer.get(i));
-			}
+			reportError();
 			return null;
 		}
 		else {
@@ -119,32 +324,211 @@ public class PXAdvancedAnalyzer extends PXTreeChooser {
 		}
 	 }
 
+	/**
+	 * Same as {@link #analyze(String)}, except that the analysis is shared between
+	 * several threads : the data is cut into chunks containing whole top level fields,
+	 * these are analyzed in parallel, and the results are merged back in the order of
+	 * the data. The resulting tree is the same as with the sequential analysis.<p>
+	 * The parallel analysis is only possible with the fast parser (in MAPPED mode, for
+	 * a file smaller than 2GB), when the filter
+	 * doesn't use the / or ! modifiers at the top level and when there are no callbacks ;
+	 * otherwise, the sequential analysis is used.<p>
+	 * @param choice  The filter used for the analysis ; null or empty for the full tree.
+	 * @param threads Number of threads to use.
+	 * @return        The top level structure containing the whole
+	 * analyzed tree.
+	 */
+	public StructField analyze(String choice, int threads) {
+		if (_h._done) throw new IllegalStateException();
+		boolean filtered = choice!=null && choice.length()>0;
+		try {
+			if (threads<=1 || (_data==null && (_mapped==null || _mapped.segments()!=1)) || getCallbacks()!=null || (!filtered && _useOffHeap) ||
+				(filtered && SelectorAnalyzer.compile(choice,null)._short!=Patterns.Shortcut.NONE))
+				return (filtered) ? analyze(choice) : analyze();
+		}
+		catch (ParseException e) {
+			return analyze(choice); //will report the error
+		}
+		BraceIndex top = (index()!=null) ? _index : new BraceIndex(_mapped.segment(0),0,(int)_mapped._size,true);
+		int   size = (int)length();
+		int[] line = new int[threads*4+1];
+		int[] cut  = split(threads*4,size,line,top);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		if (_progress!=null) _progress.start(size);
+		try {
+			LinkedList<Future<Chunk>> l = new LinkedList<Future<Chunk>>();
+			for (int i=1; i<cut.length; i++)
+				l.add(pool.submit(new Chunk(filtered ? choice : null, cut[i-1], cut[i], line[i-1])));
+			_h.begin();
+			StructField root = (StructField)_h._cur;
+			for (Future<Chunk> f : l) {
+				Chunk c = f.get();
+				if (!c._result._ok) {
+					_result = c._result;
+					reportError();
+					return null;
+				}
+				for (Field<?> x : c._root._data) root.addField(x);
+			}
+			_h.end(new Token(Token.TokenType.END,size-1,size-1,null,0));
+			_result = new Analyzer.Result(true,"",size,"");
+			return getDataTree();
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace(System.out);
+			return null;
+		}
+		catch (ExecutionException e) {
+			e.printStackTrace(System.out);
+			return null;
+		}
+		finally {
+			pool.shutdown();
+			if (_progress!=null) _progress.done();
+		}
+	}
+
+	/**
+	 * Same as {@link #analyze(String, int)}, except that the resulting tree is kept in
+	 * a {@link PXSnapshot} file : when the snapshot matches the data and the filter, the
+	 * tree is loaded from it and the data is not analyzed at all. Otherwise, the data is
+	 * analyzed and the snapshot is (re)written.<p>
+	 * A problem with the snapshot file is reported, but doesn't prevent the analysis.
+	 * @param choice   The filter used for the analysis ; null or empty for the full tree.
+	 * @param threads  Number of threads to use.
+	 * @param snapshot The snapshot file.
+	 * @return         The top level structure containing the whole
+	 * analyzed tree.
+	 */
+	public StructField analyze(String choice, int threads, File snapshot) {
+		if (_h._done) throw new IllegalStateException();
+		PXSnapshot.Key key = null;
+		try {
+			//anything that changes the tree is part of the key
+			String k = ((choice==null) ? "" : choice)+";lazy="+lazy()+";offheap="+(_useOffHeap && (choice==null || choice.length()==0))+";dictionary="+Field._useDictionary;
+			key = new PXSnapshot.Key(_file,_data,k);
+			if (lazy() && _useBraceIndex) index();
+			StructField root = (_data==null && _mapped!=null) ? PXSnapshot.read(snapshot,key,_mapped,_index) :
+				                                                PXSnapshot.read(snapshot,key,_data,_index);
+			if (root!=null) {
+				_h._cur  = root;
+				_h._done = true;
+				return root;
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.out);
+		}
+		StructField root = analyze(choice,threads);
+		if (root!=null && key!=null && (_offHeap==null || _data!=null)) { //the placeholders are read back from the data
+			try {
+				PXSnapshot.write(snapshot,key,root);
+			}
+			catch (IOException e) {
+				e.printStackTrace(System.out);
+			}
+		}
+		return root;
+	}
+
+	/*
+	 * finds where to cut the data (of the given size) in at most n chunks ; a
+	 * cut is always put just after the } closing a top level structure, but never
+	 * after the last one : what follows it may be nothing, which the Analyzer
+	 * rejects, and is left to the last chunk. The line number for each cut is put
+	 * in line. The index may only hold the top level structures.
+	 */
+	private int[] split(int n, int size, int[] line, BraceIndex index) {
+		int[] cut = new int[n+1];
+		int   k   = 1;
+		int   depth = 0;
+		int   last  = -1; //position of the last top level }
+		long  next  = (long)size/n;
+		for (int e=0; e<index.size(); e++) {
+			if (index.close(e)!=e) { depth++; continue; }
+			if (depth>0) depth--;
+			if (depth>0) continue;
+			int p = index.position(e)+1;
+			last  = p-1;
+			if (k<n && p>=next) {
+				line[k] = index.lines(e);
+				cut[k++] = p;
+				next = p + (long)(size-p)/(n-k+1);
+			}
+		}
+		while (k>1 && cut[k-1]>last) k--;
+		cut[k++] = size;
+		int[] r = new int[k];
+		System.arraycopy(cut,0,r,0,k);
+		return r;
+	}
+
+	/*
+	 * the analysis of one chunk of data, as done by one thread.
+	 */
+	private class Chunk implements Callable<Chunk> {
+		private String      _choice;
+		private int         _from;
+		private int         _to;
+		private int         _line;
+		private StructField     _root;
+		private Analyzer.Result _result;
+
+		Chunk(String choice, int from, int to, int line) { _choice=choice; _from=from; _to=to; _line=line; }
+
+		public Chunk call() throws ParseException {
+			TreeHooks t = new TreeHooks();
+			if (lazy()) setLazySource(t);
+			Hooks     h = (_choice==null) ? t : new PXChooser.PXChooserHooks(_choice,t);
+			Analyzer  a = (_data!=null) ?
+					new Analyzer(new FastParser(_data,_from,_to,_line,_index),h) :
+					new Analyzer(new MappedParser(_mapped,_from,_to,_line,_index),h);
+			if (_progress!=null) a.setProgress(_progress);
+			_result = (_data!=null) ? a.run().in(_data) : a.run().in(_mapped.segment(0));
+			if (_result._ok) _root = t.getDataTree();
+			return this;
+		}
+	}
+
+	/* prints the last error found with it's context */
+	private void reportError() {
+		System.out.println("analysis failed :" + _result._error);
+		System.out.print(_result._context);
+	}
+
 	/**
 	 * Analyzes the file with no filter. This will build the full tree
 	 * of Fields and may require a lot of memory.<br>
 	 * It is illegal to analyze the file more than once with the
 	 * same PXAdvancedAnalyzer instance.<p>
 	 * @return  The top level structure containing the whole
-	 * analyzed tree. On large files, you may require a lot of memory.
+	 * analyzed tree. On large files, you may require a lot of memory,
+	 * unless the tree is kept out of the heap (see {@link #_useOffHeap}).
 	 */
 	public StructField analyze() {
 		if (_h._done) throw new IllegalStateException();
-		boolean b = (_data!=null) ? Analyzer.analyze(_data,_h) : Analyzer.analyze(_r,_h);
+		OffHeapTree t = offHeap();
+		boolean b = run((t!=null) ? t : _h,false);
 		if (!b) {
-			System.out.println("analysis failed :" + Analyzer._error);
-			if (_r!=null) {
-			    int max = Analyzer._errorPosition+100;
-			    if (_r._buffer.limit()<max) max=_r._buffer.limit();
-			    for (int i=Math.max(0, Analyzer._errorPosition-100); i<max; i++)
-				    System.out.print((char)_r._buffer.get(i));
-			}
+			reportError();
 			return null;
 		}
-		else {
-			return getDataTree();
+		if (t!=null) {
+			_offHeap = t;
+			_h._cur  = t.getDataTree();
+			_h._done = true;
 		}
+		return getDataTree();
 	 }
 	
+	/* the off heap tree to fill, if it is asked for and possible with this data ; null otherwise */
+	private OffHeapTree offHeap() {
+		if (!_useOffHeap) return null;
+		if (_data!=null)  return new OffHeapTree(_data);
+		if (_mapped!=null && _mapped._size<=Integer.MAX_VALUE) return new OffHeapTree(_mapped);
+		return null;
+	}
+	
 	/**
 	 * Writes the (modified) Field tree.<br>
 	 * Depending on your modification and the completeness of your analysis, the
@@ -166,13 +550,59 @@ public class PXAdvancedAnalyzer extends PXTreeChooser {
 	 * unless you parsed the whole tree. Be sure you understand why.<p>
 	 * 
 	 * @param out the output stream writer
-	 * @throws IOException
+	 * @throws IOException in particular if the file is larger than 2GB, or if it is
+	 *         a compressed file that was streamed
 	 * @see Field
 	 * @see PXTree
 	 */
 	public void write(Writer out) throws IOException {
+		if (_r==null && _data!=null) { //inflated file
+			getDataTree().write(new InputStreamReader(new ByteArrayInputStream(_data),"ISO-8859-1"),out);
+			return;
+		}
+		if (_stream!=null) throw new IOException("a streamed file cannot be rewritten");
+		if (_r==null) throw new IOException("the file is too large to be rewritten");
 	    _r._buffer.rewind();
 		getDataTree().write(_r,out);
 	}
 	
+	/**
+	 * Same as {@link #write(Writer)}, except that the result goes directly to a file :
+	 * the data that was not changed is transferred from the analyzed file without being
+	 * decoded and encoded again, which is much faster when most of the data is unchanged.
+	 * The new data is written in ISO-8859-1.
+	 * @param out the output file ; it cannot be the analyzed file.
+	 * @throws IOException in particular if the file is larger than 2GB, or if it is
+	 *         a compressed file that was streamed
+	 */
+	public void write(File out) throws IOException {
+		if (out.getCanonicalFile().equals(_file.getCanonicalFile()))
+			throw new IOException("cannot overwrite the analyzed file "+_file);
+		if (_stream!=null) throw new IOException("a streamed file cannot be rewritten");
+		if (_r==null && _data==null) throw new IOException("the file is too large to be rewritten");
+		if (_r==null) { //inflated file : there is no file to transfer the data from
+			Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out),"ISO-8859-1"));
+			try {
+				write(w);
+			}
+			finally {
+				w.close();
+			}
+			return;
+		}
+		RandomAccessFile in = new RandomAccessFile(_file,"r");
+		try {
+			FileOutputStream o = new FileOutputStream(out);
+			try {
+				getDataTree().write(in.getChannel(),o.getChannel());
+			}
+			finally {
+				o.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
 }
@@ -3,10 +3,14 @@ package net.sourceforge.ck2httt.pxAnalyzer;
 import java.io.Reader;
 import java.text.ParseException;
 
+import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.FlyweightHooks;
 import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.Hooks;
 import net.sourceforge.ck2httt.pxAnalyzer.Patterns.Callbacks;
 import net.sourceforge.ck2httt.pxAnalyzer.Patterns.Selector;
 import net.sourceforge.ck2httt.pxAnalyzer.Patterns.SelectorAnalyzer;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.BaseData;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.Field;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.TreeHooks;
 
 
 /**
@@ -203,11 +207,12 @@ public class PXChooser {
 	 * </ul>
 	 * @see Analyzer.Hooks
 	 */
-	static final class PXChooserHooks implements Hooks {
+	static final class PXChooserHooks implements FlyweightHooks {
 		protected Selector[] _stack    = new Selector[40];
 		protected int        _l        = 0;
 		protected Hooks      _h        = null;
 		protected Token      _lastName = null;
+		private   Token      _name     = new Token(null,0,0,null,0); //buffer for _lastName when reading flyweights
 		
 		public PXChooserHooks(String filter) throws ParseException                                               { _stack[0] = SelectorAnalyzer.compile(filter,null); }
 		public PXChooserHooks(String filter, AnalyzerCallbacks[] callbackList) throws ParseException             { _stack[0] = SelectorAnalyzer.compile(filter,callbackList); initAnalyzerCallbacks(callbackList); }
@@ -231,7 +236,7 @@ public class PXChooser {
 		};
 		public boolean afterStruct(Token t) {
 			Selector s = _stack[_l--];
-			if (s==null) return false;
+			if (s==null) { skipped(t); return false; }
 			boolean b1=false, b2=false;
 			if (s._matcher!=null)
 				b1 = ((AnalyzerCallbacks)s._matcher).invoke(null, AnalyzerCallbacks.MatchPlace.AFTERSTRUCT);
@@ -272,7 +277,7 @@ public class PXChooser {
 		};
 		public boolean afterList(Token t) {
 			Selector s = _stack[_l--];
-			if (s==null) return false;
+			if (s==null) { skipped(t); return false; }
 			boolean b1=false, b2=false;
 			if (s._matcher!=null)
 			    b1 = ((AnalyzerCallbacks)s._matcher).invoke(null, AnalyzerCallbacks.MatchPlace.AFTERLIST);
@@ -318,14 +323,20 @@ public class PXChooser {
 			if (s==null) return false;
 			boolean b1=false, b2=false;
 			if (s._matcher!=null)
-		        b1 = ((AnalyzerCallbacks)s._matcher).invoke(t._value, AnalyzerCallbacks.MatchPlace.AFTERDATA);
+		        b1 = ((AnalyzerCallbacks)s._matcher).invoke(t.value(), AnalyzerCallbacks.MatchPlace.AFTERDATA);
 			if (_h!=null) b2=_h.afterBase(t);
 			return b1 | b2 | s==Selector.__SKIP;
 		};
+		/* a structure was skipped : nothing was called since its name was read */
+		private void skipped(Token t) {
+			if (_h instanceof TreeHooks) ((TreeHooks)_h).skipped(_lastName,t);
+		}
 		public void    begin()             { if (_h!=null) _h.begin(); };
 		public void    end(Token t)        { if (_h!=null) _h.end(t); };
-		public void    getName(Token t)    { _lastName=t; if (_h!=null) _h.getName(t); };
+		public void    getName(Token t)    { _lastName = (t.isFlyweight()) ? _name.copy(t,(Field._useDictionary) ? BaseData.getDictionary() : null) : t; if (_h!=null) _h.getName(_lastName); };
 		public String  getLastName()       { return _lastName._value; }
+		/** flyweights are only accepted if the sub-hook accepts them too */
+		public boolean acceptsFlyweight()  { return _h==null || (_h instanceof FlyweightHooks && ((FlyweightHooks)_h).acceptsFlyweight()); }
 		
 		/**
 		 * sets the hooks for the callbacks : these won't change during the analysis
@@ -0,0 +1,377 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+import net.sourceforge.ck2httt.pxAnalyzer.Token.TokenType;
+import net.sourceforge.ck2httt.pxAnalyzer.Token.Tokenizer;
+
+/**
+ * This class is a pull alternative to the {@link Analyzer} : instead of having the
+ * Analyzer call Hooks for each element met, the client asks for the next element
+ * when it wants it, in the way of a StAX reader. It follows exactly the same grammar
+ * as the Analyzer, with the same 3 Tokens lookahead.<p>
+ *
+ * This lets a client stop as soon as it has what it wants, or walk through several
+ * readers at once, without ever building a {@link PXTree}. Nothing is allocated while
+ * reading : the names and values are only built as Strings when they are requested.<p>
+ *
+ * A typical use is :
+ * <pre>
+ *   PXEventReader r = new PXEventReader(new FastParser(data));
+ *   for (Event e=r.next(); e!=Event.END &amp;&amp; e!=Event.ERROR; e=r.next()) {
+ *       if (e==Event.STRUCT &amp;&amp; !r.name().equals("character")) r.skipChildren();
+ *       else if (e==Event.BASE &amp;&amp; r.name().equals("id")) ... r.valueAsInt() ...
+ *   }
+ * </pre>
+ *
+ * The name and value of an element are only available until the next call to
+ * {@link #next()} or {@link #skipChildren()}.<p>
+ *
+ * @see Analyzer
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class PXEventReader {
+
+	/**
+	 * The elements met in the data.
+	 */
+	static public enum Event {
+		/** name = { compound list } or name = { anon list } ; followed by the events for the content, then CLOSE */
+		STRUCT,
+		/** { base list } in a struct ; followed by the BASE events for the content, then CLOSE */
+		ANON,
+		/** name = { data list } ; followed by the DATA events for the content, then CLOSE */
+		LIST,
+		/** name = { } ; there is no CLOSE event for it */
+		EMPTY,
+		/** name = data */
+		BASE,
+		/** data in a LIST */
+		DATA,
+		/** the end of the current STRUCT, ANON or LIST */
+		CLOSE,
+		/** the end of the data */
+		END,
+		/** grammatical error ; the reading cannot go on */
+		ERROR
+	};
+
+	//what we are reading at each level
+	static final private byte COMPOUNDS = 0; //in a struct, or at the top level
+	static final private byte ANONS     = 1; //in a struct of anonymous structs
+	static final private byte BASES     = 2; //in an anonymous struct
+	static final private byte DATAS     = 3; //in a list
+
+	private Tokenizer _t; // analyzes the data
+	private static final int SIZE = 4; // stack size (min required 3)
+	private TokenType[] _stack = new TokenType[SIZE]; // stores fetched token types
+	private int[] _beg  = new int[SIZE]; // and their characteristics
+	private int[] _end  = new int[SIZE];
+	private int[] _line = new int[SIZE];
+	private int _p = 0; // stack current size
+
+	private byte[] _ctx = new byte[32]; // what we are reading at each level
+	private int    _depth = 0;          // current level
+
+	private Event  _event;        // current event
+	private int    _nameBeg = -1; // name of the current element ; -1 if none
+	private int    _nameEnd;
+	private int    _valBeg = -1;  // value of the current element ; -1 if none
+	private int    _valEnd;
+	private int    _evLine;       // line of the current element
+	private String _name;         // Strings already built for the current element
+	private String _value;
+
+	/**
+	 * Builds a reader on the flow of Tokens returned by the Tokenizer.
+	 * @param t the Tokenizer for the data to read
+	 */
+	public PXEventReader(Tokenizer t) {
+		_t = t;
+		_ctx[0] = COMPOUNDS;
+	}
+
+	/* refills the stack with tokens */
+	private final void fill() {
+		while (_p < SIZE) {
+			_stack[_p] = _t.next();
+			_beg[_p]   = _t.begin();
+			_end[_p]   = _t.end();
+			_line[_p]  = _t.line();
+			_p++;
+		}
+	}
+
+	/*
+	 * consume q tokens ; the stack is only refilled on the next read, so that the
+	 * Tokenizer has read as few Tokens as possible past the current element
+	 */
+	private final void consume(int q) {
+		System.arraycopy(_stack, q, _stack, 0, SIZE - q);
+		System.arraycopy(_beg, q, _beg, 0, SIZE - q);
+		System.arraycopy(_end, q, _end, 0, SIZE - q);
+		System.arraycopy(_line, q, _line, 0, SIZE - q);
+		_p -= q;
+	}
+
+	/* fast forward to next CLOSE at terminating the current level : CLOSE or END is now the first token in the stack */
+	private void consumeToClose() {
+		int n = 0;
+		int i;
+		// check if we already have it in the stack
+		for (i = 0; i < _p; i++) {
+			if (_stack[i] == TokenType.CLOSE)
+				n -= 1;
+			else if (_stack[i] == TokenType.OPEN)
+				n += 1;
+			if (n < 0)
+				break;
+		}
+		if (n < 0) // yes, found
+			consume(i);
+		else { // no... use the fast forward call from the parser
+			TokenType t = null;
+			while (n >= 0) {
+				t = _t.nextClose();
+				if (t != TokenType.CLOSE)
+					break; //END reached without close ; probably a grammatical error
+				n -= 1;
+			}
+			_stack[0] = t;
+			_beg[0]   = _t.begin();
+			_end[0]   = _t.end();
+			_line[0]  = _t.line();
+			_p = 1;
+		}
+	}
+
+	private boolean isData(int i) {
+		return _stack[i] == TokenType.TOKEN || _stack[i] == TokenType.STRING;
+	}
+
+	private boolean isName(int i) {
+		return _stack[i] == TokenType.TOKEN && _stack[i+1] == TokenType.EQUAL;
+	}
+
+	/* sets the current event */
+	private Event event(Event e, int name, int value, int line) {
+		_event   = e;
+		_nameBeg = (name<0)  ? -1 : _beg[name];
+		_nameEnd = (name<0)  ? -1 : _end[name];
+		_valBeg  = (value<0) ? -1 : _beg[value];
+		_valEnd  = (value<0) ? -1 : _end[value];
+		_evLine  = line;
+		_name    = null;
+		_value   = null;
+		return e;
+	}
+
+	/* the current { opens a new level */
+	private Event open(Event e, byte ctx, int line) {
+		if (_depth+1 == _ctx.length) {
+			byte[] c = new byte[_ctx.length*2];
+			System.arraycopy(_ctx,0,c,0,_ctx.length);
+			_ctx = c;
+		}
+		_ctx[++_depth] = ctx;
+		event(e,-1,-1,line);
+		consume(1);
+		return e;
+	}
+
+	/* the current } closes the current level */
+	private Event close() {
+		_depth--;
+		event(Event.CLOSE,-1,-1,_line[0]);
+		consume(1);
+		return _event;
+	}
+
+	private Event error() {
+		return event(Event.ERROR,-1,-1,_line[0]);
+	}
+
+	/* Compound = Name Data | Name Struct | Name List */
+	private Event nextCompound() {
+		if (_stack[0] == TokenType.CLOSE && _depth > 0)
+			return close();
+		if (_stack[0] == TokenType.END)
+			return (_depth == 0) ? event(Event.END,-1,-1,_line[0]) : error();
+		if (!isName(0))
+			return error();
+		if (isData(2)) {
+			event(Event.BASE,0,2,_line[0]);
+			consume(3);
+			return _event;
+		}
+		if (_stack[2] != TokenType.OPEN)
+			return error();
+		int nameBeg = _beg[0];
+		int nameEnd = _end[0];
+		int line    = _line[0];
+		consume(2);
+		fill();
+		if (_stack[1] == TokenType.CLOSE) {
+			event(Event.EMPTY,-1,-1,line);
+			consume(2);
+		}
+		else if (isName(1))
+			open(Event.STRUCT,COMPOUNDS,line);
+		else if (_stack[1] == TokenType.OPEN)
+			open(Event.STRUCT,ANONS,line);
+		else
+			open(Event.LIST,DATAS,line);
+		_nameBeg = nameBeg;
+		_nameEnd = nameEnd;
+		return _event;
+	}
+
+	/* AnonList = Anon | Anon AnonList */
+	private Event nextAnon() {
+		if (_stack[0] == TokenType.CLOSE)
+			return close();
+		if (_stack[0] != TokenType.OPEN)
+			return error();
+		return open(Event.ANON,BASES,_line[0]);
+	}
+
+	/* BaseList = Name Data | Name Data BaseList */
+	private Event nextBase() {
+		if (_stack[0] == TokenType.CLOSE)
+			return close();
+		if (!isName(0) || !isData(2))
+			return error();
+		event(Event.BASE,0,2,_line[0]);
+		consume(3);
+		return _event;
+	}
+
+	/* DataList = Data | Data DataList */
+	private Event nextData() {
+		if (_stack[0] == TokenType.CLOSE)
+			return close();
+		if (!isData(0))
+			return error();
+		event(Event.DATA,-1,0,_line[0]);
+		consume(1);
+		return _event;
+	}
+
+	/**
+	 * Reads the next element in the data.
+	 * @return the event for that element ; once END or ERROR is reached, it is always returned.
+	 */
+	public Event next() {
+		if (_event == Event.END || _event == Event.ERROR)
+			return _event;
+		fill();
+		switch (_ctx[_depth]) {
+			case COMPOUNDS : return nextCompound();
+			case ANONS     : return nextAnon();
+			case BASES     : return nextBase();
+			default        : return nextData();
+		}
+	}
+
+	/**
+	 * Skips all the content of the current STRUCT, ANON or LIST without analyzing it ;
+	 * the current event then becomes the CLOSE for that element.<p>
+	 * This is as fast as skipping data with the Analyzer Hooks.
+	 * @return the new current event (CLOSE, or ERROR if the data is incorrect)
+	 * @throws IllegalStateException if the current event doesn't open a level
+	 */
+	public Event skipChildren() {
+		if (_event != Event.STRUCT && _event != Event.ANON && _event != Event.LIST)
+			throw new IllegalStateException("no children to skip after "+_event);
+		consumeToClose();
+		if (_stack[0] != TokenType.CLOSE)
+			return error();
+		return close();
+	}
+
+	/**
+	 * @return the current event ; null if next() was never called
+	 */
+	public Event event() {
+		return _event;
+	}
+
+	/**
+	 * @return the depth of the current element : 0 for the top level elements. A CLOSE
+	 *         has the same depth as the element it closes.
+	 */
+	public int depth() {
+		return (_event == Event.STRUCT || _event == Event.ANON || _event == Event.LIST) ? _depth-1 : _depth;
+	}
+
+	/**
+	 * @return the line of the current element in the data
+	 */
+	public int line() {
+		return _evLine;
+	}
+
+	/**
+	 * @return the name of the current STRUCT, LIST, EMPTY or BASE ; null for other events
+	 */
+	public String name() {
+		if (_name == null && _nameBeg >= 0)
+			_name = _t.value(_nameBeg, _nameEnd);
+		return _name;
+	}
+
+	/**
+	 * @return the value of the current BASE or DATA, quotes included ; null for other events
+	 */
+	public String value() {
+		if (_value == null && _valBeg >= 0)
+			_value = _t.value(_valBeg, _valEnd);
+		return _value;
+	}
+
+	/**
+	 * @return the value of the current BASE or DATA unquoted if it was quoted ; null for other events
+	 */
+	public String valueUnquoted() {
+		String s = value();
+		if (s != null && s.length() > 1 && s.charAt(0) == '"')
+			return s.substring(1, s.length()-1);
+		return s;
+	}
+
+	/**
+	 * @return the value of the current BASE or DATA as an integer
+	 */
+	public int valueAsInt() {
+		return Integer.parseInt(value());
+	}
+
+	/**
+	 * @return the value of the current BASE or DATA as a float
+	 */
+	public float valueAsFloat() {
+		return Float.parseFloat(value());
+	}
+
+	/**
+	 * @return the value of the current BASE or DATA as a double
+	 */
+	public double valueAsDouble() {
+		return Double.parseDouble(value());
+	}
+
+	/**
+	 * @param trueValue textual value for true
+	 * @return the value of the current BASE or DATA as a boolean
+	 */
+	public boolean valueAsBoolean(String trueValue) {
+		return value().equals(trueValue);
+	}
+
+	/**
+	 *  returns the current index in the input flow ; this index is
+	 *  certainly ahead from the element currently read.
+	 */
+	public int getCurrentIndex() {
+		return _t.getPos();
+	}
+
+}
@@ -0,0 +1,404 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.*;
+import net.sourceforge.ck2httt.pxAnalyzer.Token.TokenType;
+
+/**
+ * This class saves an analyzed tree in a binary snapshot file, and loads it back
+ * in one go : a later run on the same data doesn't have to analyze the text again.<p>
+ *
+ * A snapshot is only valid for the data and the filter it was built from : it holds
+ * a {@link Key} made of the size, date and checksum of the data file, and of the filter.
+ * Loading a snapshot whose key doesn't match gives nothing.<p>
+ *
+ * The snapshot contains a table of the names, a table of the values, and the fields
+ * as flat arrays of integers in the order of the tree. The key is read first ; only a
+ * snapshot that matches is memory mapped, so that the file is not held open (and can
+ * be replaced) when it is stale. Loading still builds every Field of the tree : what
+ * is saved is the analysis of the text, not the building of the tree.<p>
+ *
+ * Only a tree that was not modified can be saved. The positions of the fields in the
+ * data are kept : a loaded tree can be written back with the original data as an
+ * analyzed one. A {@link PXTree.LazyField} is kept as such, and needs the data to be
+ * given at load time.<p>
+ *
+ * @see PXAdvancedAnalyzer#analyze(String, int, File)
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class PXSnapshot {
+
+	static final private int __MAGIC   = 0x50585331; //PXS1
+	static final private int __VERSION = 1;
+	static final private int __HEADER  = 4+4+8+8+8+4; //magic, version, key, length of the filter
+
+	//kinds of nodes ; the flags are above the first byte
+	static final private int STRUCT = 0;
+	static final private int ANON   = 1;
+	static final private int LIST   = 2;
+	static final private int BASE   = 3;
+	static final private int LAZY   = 4;
+	static final private int INDENT = 0x100; //layout for STRUCT and ANON
+	static final private int NODE   = 7;     //number of ints per node : kind, name, name beg, name end, beg, end, extra
+	static final private int ITEM   = 3;     //number of ints per list item : beg, end, value
+
+	/**
+	 * What a snapshot depends on.
+	 */
+	static final public class Key {
+		final long   _size;
+		final long   _date;
+		final long   _crc;
+		final String _filter;
+
+		/**
+		 * @param f      the data file
+		 * @param data   the content of that file if it is already loaded ; null to read it
+		 * @param filter the filter used for the analysis, with anything else that changes the tree
+		 * @throws IOException
+		 */
+		public Key(File f, byte[] data, String filter) throws IOException {
+			_size   = f.length();
+			_date   = f.lastModified();
+			_filter = (filter==null) ? "" : filter;
+			CRC32 crc = new CRC32();
+			if (data!=null)
+				crc.update(data,0,data.length);
+			else {
+				FileInputStream in = new FileInputStream(f);
+				try {
+					byte[] b = new byte[1<<16];
+					for (int n=in.read(b); n>=0; n=in.read(b)) crc.update(b,0,n);
+				}
+				finally {
+					in.close();
+				}
+			}
+			_crc = crc.getValue();
+		}
+	}
+
+	/*
+	 * the tables being built when saving
+	 */
+	private SymbolTable           _names  = new SymbolTable();
+	private ByteArrayOutputStream _values = new ByteArrayOutputStream(1<<16);
+	private int[]                 _voff   = new int[1024];
+	private int                   _nv     = 0;
+	private int[]                 _nodes  = new int[NODE*1024];
+	private int                   _nn     = 0;
+	private int[]                 _items  = new int[ITEM*1024];
+	private int                   _ni     = 0;
+
+	private PXSnapshot() {}
+
+	private int value(String v) throws IOException {
+		if (_nv+2>_voff.length) _voff = grow(_voff);
+		byte[] b = v.getBytes("UTF-8");
+		_values.write(b);
+		_voff[++_nv] = _values.size();
+		return _nv-1;
+	}
+
+	static private int[] grow(int[] a) {
+		int[] b = new int[a.length*2];
+		System.arraycopy(a,0,b,0,a.length);
+		return b;
+	}
+
+	private void node(int kind, BaseData name, int beg, int end, int extra) {
+		if (_nn+NODE>_nodes.length) _nodes = grow(_nodes);
+		_nodes[_nn++] = kind;
+		_nodes[_nn++] = (name._value==null) ? -1 : _names.id(name._value);
+		_nodes[_nn++] = name._beg;
+		_nodes[_nn++] = name._end;
+		_nodes[_nn++] = beg;
+		_nodes[_nn++] = end;
+		_nodes[_nn++] = extra;
+	}
+
+	/* adds a field and all its content, in the order of the tree */
+	private void add(Field<?> f) throws IOException {
+		if (f instanceof StructField) {
+			StructField s = (StructField)f;
+			node(STRUCT|((s._layout==Field.Layout.INDENT) ? INDENT : 0),s._name,s._beg,s._end,s._data.size());
+			for (Field<?> x : s._data) add(x);
+		}
+		else if (f instanceof AnonField) {
+			AnonField a = (AnonField)f;
+			node(ANON|((a._layout==Field.Layout.INDENT) ? INDENT : 0),a._name,a._beg,a._end,a._data.size());
+			for (Field<?> x : a._data) add(x);
+		}
+		else if (f instanceof ListField) {
+			ListField l = (ListField)f;
+			node(LIST,l._name,l._beg,l._end,l._data.size());
+			for (BaseData d : l._data) {
+				if (_ni+ITEM>_items.length) _items = grow(_items);
+				_items[_ni++] = d._beg;
+				_items[_ni++] = d._end;
+				_items[_ni++] = value(d._value);
+			}
+		}
+		else if (f instanceof BaseField) {
+			BaseField b = (BaseField)f;
+			node(BASE,b._name,b._data._beg,b._data._end,value(b.get()));
+		}
+		else if (f instanceof LazyField) {
+			LazyField z = (LazyField)f;
+			node(LAZY,z._name,0,z._end,z._line);
+		}
+		else
+			throw new IllegalArgumentException("unknown field "+f.makePath());
+	}
+
+	/**
+	 * Saves a tree in a snapshot file ; the file is first written aside, then renamed.
+	 * @param snapshot the file to write
+	 * @param key      what the tree was built from
+	 * @param root     the tree, as returned by the analysis
+	 * @throws IOException
+	 * @throws IllegalStateException if the tree was modified
+	 */
+	static public void write(File snapshot, Key key, StructField root) throws IOException {
+		if (root.isModified()) throw new IllegalStateException("a modified tree cannot be saved");
+		PXSnapshot s = new PXSnapshot();
+		s.add(root);
+		File tmp = new File(snapshot.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),1<<16));
+		try {
+			out.writeInt(__MAGIC);
+			out.writeInt(__VERSION);
+			out.writeLong(key._size);
+			out.writeLong(key._date);
+			out.writeLong(key._crc);
+			byte[] filter = key._filter.getBytes("UTF-8");
+			out.writeInt(filter.length);
+			out.write(filter);
+			pad(out);
+			//names
+			int n = s._names.size();
+			ByteArrayOutputStream names = new ByteArrayOutputStream();
+			int[] noff = new int[n+1];
+			for (int i=0; i<n; i++) {
+				names.write(s._names.name(i).getBytes("UTF-8"));
+				noff[i+1] = names.size();
+			}
+			writeTable(out,noff,n,names);
+			//values
+			writeTable(out,s._voff,s._nv,s._values);
+			//nodes and items
+			out.writeInt(s._nn/NODE);
+			for (int i=0; i<s._nn; i++) out.writeInt(s._nodes[i]);
+			out.writeInt(s._ni/ITEM);
+			for (int i=0; i<s._ni; i++) out.writeInt(s._items[i]);
+		}
+		finally {
+			out.close();
+		}
+		if (snapshot.exists() && !snapshot.delete() || !tmp.renameTo(snapshot))
+			throw new IOException("cannot write "+snapshot);
+	}
+
+	/* a table of n strings : the count, the offsets, then the bytes */
+	static private void writeTable(DataOutputStream out, int[] off, int n, ByteArrayOutputStream b) throws IOException {
+		out.writeInt(n);
+		for (int i=0; i<=n; i++) out.writeInt(off[i]);
+		b.writeTo(out);
+		pad(out);
+	}
+
+	/* the integers are aligned on 4 bytes, for the mapped views */
+	static private void pad(DataOutputStream out) throws IOException {
+		for (int i=out.size(); (i&3)!=0; i++) out.write(0);
+	}
+
+	/*
+	 * the tables being read when loading
+	 */
+	private String[]    _nameTable;
+	private byte[]      _valueBytes;
+	private IntBuffer   _valueOff;
+	private IntBuffer   _nodeBuf;
+	private IntBuffer   _itemBuf;
+	private int         _node = 0;
+	private int         _item = 0;
+	private byte[]      _source;
+	private FileLoader.MappedFile _mapped;
+	private BraceIndex  _index;
+	private byte[]      _buf   = new byte[32];
+	private Token       _tname = new Token(TokenType.TOKEN,0,0,null,0); //the Fields only copy their Tokens
+	private Token       _tdata = new Token(TokenType.TOKEN,0,0,null,0);
+
+	private String value(int i) throws IOException {
+		return string(_valueBytes,_valueOff.get(i),_valueOff.get(i+1));
+	}
+
+	/* decodes some UTF-8 ; the usual ASCII is decoded faster */
+	static private String string(byte[] b, int beg, int end) throws IOException {
+		for (int i=beg; i<end; i++)
+			if (b[i]<0) return new String(b,beg,end-beg,"UTF-8");
+		return new String(b,beg,end-beg,"ISO-8859-1");
+	}
+
+	/* reads a table of strings : returns the bytes and leaves the offsets in off */
+	static private byte[] readTable(ByteBuffer b, IntBuffer[] off) {
+		int n = b.getInt();
+		off[0] = b.slice().asIntBuffer();
+		off[0].limit(n+1);
+		b.position(b.position()+4*(n+1));
+		byte[] r = new byte[off[0].get(n)];
+		b.get(r);
+		b.position((b.position()+3)&~3);
+		return r;
+	}
+
+	/* builds the next field in the order of the tree */
+	private Field<?> read() throws IOException {
+		int   k     = _node*NODE;
+		int   kind  = _nodeBuf.get(k);
+		int   id    = _nodeBuf.get(k+1);
+		int   beg   = _nodeBuf.get(k+4);
+		int   end   = _nodeBuf.get(k+5);
+		int   extra = _nodeBuf.get(k+6);
+		Token name  = _tname;
+		name.set(TokenType.TOKEN,_nodeBuf.get(k+2),_nodeBuf.get(k+3),(id<0) ? null : _nameTable[id],0);
+		_node++;
+		switch (kind&0xff) {
+			case STRUCT : {
+				StructField s = new StructField(name);
+				s._beg = beg;
+				s._end = end;
+				s._layout = ((kind&INDENT)!=0) ? Field.Layout.INDENT : Field.Layout.FLAT;
+				for (int i=0; i<extra; i++) {
+					Field<?> x = read();
+					x.setOwner(s);
+					s._data.addLast(x);
+				}
+				s._data.trimToSize();
+				return s;
+			}
+			case ANON : {
+				AnonField a = new AnonField(name);
+				a._beg = beg;
+				a._end = end;
+				a._layout = ((kind&INDENT)!=0) ? Field.Layout.INDENT : Field.Layout.FLAT;
+				for (int i=0; i<extra; i++) {
+					BaseField x = (BaseField)read();
+					x.setOwner(a);
+					a._data.addLast(x);
+				}
+				a._data.trimToSize();
+				return a;
+			}
+			case LIST : {
+				ListField l = new ListField(name);
+				l._beg = beg;
+				l._end = end;
+				for (int i=0; i<extra; i++, _item++)
+					l._data.addLast(new BaseData(_itemBuf.get(_item*ITEM),_itemBuf.get(_item*ITEM+1),value(_itemBuf.get(_item*ITEM+2)),Field._useDictionary));
+				l._data.trimToSize();
+				return l;
+			}
+			case BASE : {
+				Token data  = _tdata;
+				data.set(TokenType.TOKEN,beg,end,value(extra),0);
+				return (Field._useScalars) ? new BaseField(name,data,_buf) : new BaseField(name,data);
+			}
+			case LAZY : {
+				if (_source==null && _mapped==null) throw new IOException("the snapshot needs the data");
+				name.set(name._token,name._beg,name._end,name._value,extra);
+				return (_source!=null) ? new LazyField(name,end,_source,_index) : new LazyField(name,end,_mapped,_index);
+			}
+			default :
+				throw new IOException("corrupted snapshot");
+		}
+	}
+
+	/**
+	 * Loads a tree from a snapshot file.
+	 * @param snapshot the file to read
+	 * @param key      what the tree must have been built from
+	 * @param source   the data, for the LazyFields in the tree ; may be null if there are none
+	 * @param index    the index for that data ; null if none
+	 * @return the tree ; null if there is no snapshot, or if it doesn't match the key
+	 * @throws IOException if the snapshot cannot be read
+	 */
+	static public StructField read(File snapshot, Key key, byte[] source, BraceIndex index) throws IOException {
+		return read(snapshot,key,source,null,index);
+	}
+
+	/**
+	 * Same as {@link #read(File, Key, byte[], BraceIndex)}, with the data in a mapped file.
+	 * @param snapshot the file to read
+	 * @param key      what the tree must have been built from
+	 * @param source   the mapped data, for the LazyFields in the tree ; may be null if there are none
+	 * @param index    the index for that data ; null if none
+	 * @return the tree ; null if there is no snapshot, or if it doesn't match the key
+	 * @throws IOException if the snapshot cannot be read
+	 */
+	static public StructField read(File snapshot, Key key, FileLoader.MappedFile source, BraceIndex index) throws IOException {
+		return read(snapshot,key,null,source,index);
+	}
+
+	static private StructField read(File snapshot, Key key, byte[] source, FileLoader.MappedFile mapped, BraceIndex index) throws IOException {
+		if (!snapshot.exists()) return null;
+		RandomAccessFile f = new RandomAccessFile(snapshot,"r");
+		try {
+			//the key is read, not mapped : a mapping would keep a stale snapshot from being replaced
+			FileChannel c = f.getChannel();
+			ByteBuffer  h = ByteBuffer.allocate(__HEADER);
+			if (!read(c,h) || h.getInt()!=__MAGIC || h.getInt()!=__VERSION) return null;
+			if (h.getLong()!=key._size || h.getLong()!=key._date || h.getLong()!=key._crc) return null;
+			int l = h.getInt();
+			if (l<0 || l>f.length()-__HEADER) return null;
+			byte[] filter = new byte[l];
+			if (!read(c,ByteBuffer.wrap(filter)) || !key._filter.equals(new String(filter,"UTF-8"))) return null;
+			long start = (__HEADER+l+3)&~3;
+			ByteBuffer b = c.map(FileChannel.MapMode.READ_ONLY,start,f.length()-start);
+			PXSnapshot s = new PXSnapshot();
+			s._source = source;
+			s._mapped = mapped;
+			s._index  = index;
+			IntBuffer[] off = new IntBuffer[1];
+			byte[] names = readTable(b,off);
+			s._nameTable = new String[off[0].limit()-1];
+			for (int i=0; i<s._nameTable.length; i++) {
+				String v = string(names,off[0].get(i),off[0].get(i+1));
+				s._nameTable[i] = (Field._useDictionary) ? BaseData.getDictionary().get(v) : v;
+			}
+			s._valueBytes = readTable(b,off);
+			s._valueOff   = off[0];
+			int n = b.getInt();
+			s._nodeBuf = b.slice().asIntBuffer();
+			s._nodeBuf.limit(n*NODE);
+			b.position(b.position()+4*n*NODE);
+			n = b.getInt();
+			s._itemBuf = b.slice().asIntBuffer();
+			s._itemBuf.limit(n*ITEM);
+			return (StructField)s.read();
+		}
+		finally {
+			f.close();
+		}
+	}
+
+	/* fills b from the channel, and flips it ; false if the file is too short */
+	static private boolean read(FileChannel c, ByteBuffer b) throws IOException {
+		while (b.hasRemaining())
+			if (c.read(b)<0) return false;
+		b.flip();
+		return true;
+	}
+
+}
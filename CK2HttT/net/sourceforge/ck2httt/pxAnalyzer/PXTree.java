@@ -1,13 +1,19 @@
 package net.sourceforge.ck2httt.pxAnalyzer;
 
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.ListIterator;
-import java.util.TreeSet;
-import java.util.SortedSet;
 import java.io.IOException;
+import java.lang.reflect.Array;
 import java.io.Writer;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.text.ParseException;
 
 import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.*;
@@ -35,6 +41,7 @@ import net.sourceforge.ck2httt.pxAnalyzer.Token.*;
  *   The only usable things from this class are:<p>
  *   - class {@link TreeHooks} (especially method {@link TreeHooks#getDataTree()})<p>
  *   - class {@link Field} and derived classes, as generic containers for analyzed data.<p>
+ *   - class {@link LazyField}, to keep what the filter skipped within reach.<p>
  *   
  * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
  * @see Analyzer
@@ -44,7 +51,10 @@ public class PXTree {
 	/**
 	 * This class helps us manage the writing of the fields to the output
 	 * while losing no information that was not analyzed. For this, we have
-	 * to read the input file as we write to the output.
+	 * to read the input file as we write to the output.<p>
+	 * It works either from a Reader to a Writer, or from a file channel to
+	 * another channel : the unchanged data is then transferred directly by
+	 * the system, and only the new data is encoded.
 	 * 
 	 * @author yvesp
 	 */
@@ -57,6 +67,19 @@ public class PXTree {
 		 * The output for the new data
 		 */
 		private Writer _out;
+		/**
+		 * The file where we get the original data, when working on channels
+		 */
+		private FileChannel _src;
+		/**
+		 * The output, when working on channels
+		 */
+		private WritableByteChannel _dst;
+		/**
+		 * The new data waiting to be written to _dst, and it's encoder
+		 */
+		private ByteBuffer     _bytes;
+		private CharsetEncoder _enc;
 		/**
 		 * The current index in the _in Reader : all has been read up to and including this index
 		 */
@@ -68,7 +91,7 @@ public class PXTree {
 		/**
 		 * An internal buffer
 		 */
-		final static char[] _b = new char[4096];
+		private char[] _b = null;
 		/**
 		 * Constructor
 		 * @param in    data from which to read
@@ -78,6 +101,20 @@ public class PXTree {
 			_in  = in;
 			_out = out;
 		}
+		/**
+		 * Constructor for working on channels ; the new data is encoded in ISO-8859-1,
+		 * as are the save files.
+		 * @param in    file from which to read
+		 * @param out   channel where we write
+		 */
+		ReaderWriter(FileChannel in, WritableByteChannel out) {
+			_src   = in;
+			_dst   = out;
+			_bytes = ByteBuffer.allocate(1<<16);
+			_enc   = Charset.forName("ISO-8859-1").newEncoder()
+			                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+			                .onMalformedInput(CodingErrorAction.REPLACE);
+		}
 		/**
 		 * Reads the input from it's current position up to an including the
 		 * new position ; the data read is written unchanged to the output.
@@ -86,15 +123,34 @@ public class PXTree {
 		void write() throws IOException {
 			int lg = _pos-_cur; //number of bytes to read
 			if (lg<=0) return;
-			while (_b.length<=lg) {
-				_in.read(_b);
-				_out.write(_b);
-				lg-=_b.length;
+			if (_src!=null) {
+				drain();
+				long p = _cur+1;
+				while (lg>0) {
+					long n = _src.transferTo(p, lg, _dst);
+					if (n<=0) throw new IOException("unexpected end of data at "+p);
+					p+=n; lg-=n;
+				}
+			}
+			else {
+				if (_b==null) _b = new char[4096];
+				while (lg>0) {
+					int n = _in.read(_b, 0, Math.min(lg,_b.length));
+					if (n<0) throw new IOException("unexpected end of data at "+(_pos-lg+1));
+					_out.write(_b, 0, n);
+					lg-=n;
+				}
 			}
-			_in.read(_b, 0, lg);
-			_out.write(_b, 0, lg);
 			_cur=_pos;
 		}
+		/**
+		 * Writes the pending new data to the output channel.
+		 */
+		private void drain() throws IOException {
+			_bytes.flip();
+			while (_bytes.hasRemaining()) _dst.write(_bytes);
+			_bytes.clear();
+		}
 		/**
 		 * Skips characters from the input until the new position is reached.
 		 * This operation will force the writing of all pending data.
@@ -105,7 +161,12 @@ public class PXTree {
 			if (pos<_cur) throw new IllegalStateException();
 			if (pos==_cur) return;
 			write();
-			_in.skip(pos-_cur);
+			if (_in!=null)
+				for (long n=pos-_cur; n>0; ) {
+					long k = _in.skip(n);
+					if (k<=0) break;
+					n-=k;
+				}
 			_cur=pos;
 		}
 		/**
@@ -125,7 +186,9 @@ public class PXTree {
 		 */
 		void write(String s) throws IOException {
 			write();
-			_out.write(s);
+			if (_dst==null) { _out.write(s); return; }
+			CharBuffer c = CharBuffer.wrap(s);
+			while (_enc.encode(c, _bytes, true).isOverflow()) drain();
 		}
 		/**
 		 * Terminates writing all missing data ; this includes any data that
@@ -135,7 +198,8 @@ public class PXTree {
 			write();       //force writing
 			write(f.endIndex());
 			write();       //force writing again
-			_out.flush();  //write on disk
+			if (_dst!=null) drain();
+			else            _out.flush();  //write on disk
 		}
 		
 		/**
@@ -230,18 +294,19 @@ public class PXTree {
 		protected int _end;
 		/** String value for that data */
 		final public String _value;
-		/** Constructor from a Token ; used by the analyzer */
 		/**
 		 * Dictionary containing all the names that have been found.
-		 * While slowing down a little the analysis time, it decreases the
-		 * amount of used memory as each name is now referenced only once.
+		 * It decreases the amount of used memory as each name is now referenced only
+		 * once ; and as names are looked up directly in the data, a name already
+		 * known costs no allocation at all.
 		 */
-		static private TreeSet<String> _nameDictionary = new TreeSet<String>();
+		static private SymbolTable _nameDictionary = new SymbolTable();
 
+		/** Constructor from a Token ; used by the analyzer */
 		protected BaseData(Token t, boolean dictionary) {
 			_beg=t._beg;
 			_end=t._end;
-			_value= (dictionary) ? putInDictionary(t._value) : t._value;
+			_value= (dictionary) ? t.symbol(_nameDictionary) : t.value();
 		}
 		/**
 		 * Basic Constructor
@@ -264,13 +329,14 @@ public class PXTree {
 		protected void writeData(ReaderWriter rw) throws IOException { }
 
 		String putInDictionary(String name) {
-	    	SortedSet<String> s = _nameDictionary.subSet(name,name+"\0");
-	    	if (s.isEmpty()) {
-	    		_nameDictionary.add(name);
-	    		return name;
-	    	}
-	    	return s.first();
+			return _nameDictionary.get(name);
 	    }
+		/**
+		 * @return the dictionary shared by all the analyses ; it is safe for parallel use.
+		 */
+		static public SymbolTable getDictionary() {
+			return _nameDictionary;
+		}
 	}
 	
 	/**
@@ -394,6 +460,8 @@ public class PXTree {
 		public T _data=null;
 		/** Using dictionary ? */
 		static public boolean _useDictionary = true;
+		/** Decoding the numbers, booleans and dates of BaseFields at parse time ? */
+		static public boolean _useScalars = false;
 				
 		/**
 		 * Marks a field for deletion ; the field is not actually deleted so the operation
@@ -544,12 +612,129 @@ public class PXTree {
 	 */
 	static public class BaseField extends Field<BaseData> {
 		String _newVal=null;
+		
+		//kinds of scalars decoded at parse time
+		static final private byte TEXT    = 0; //not decoded : the text is in _data
+		static final private byte INT     = 1; //_bits is the value
+		static final private byte DECIMAL = 2; //_bits is the value * 10^_scale
+		static final private byte BOOL    = 3; //_bits is 1 for yes, 0 for no
+		static final private byte DATE    = 4; //_bits is year*10000+month*100+day
+		static final private long[]   __POW10  = new long[19];
+		static final private double[] __DPOW10 = new double[23];
+		static {
+			__POW10[0]=1;
+			for (int i=1; i<__POW10.length; i++) __POW10[i]=__POW10[i-1]*10;
+			__DPOW10[0]=1;
+			for (int i=1; i<__DPOW10.length; i++) __DPOW10[i]=__DPOW10[i-1]*10;
+		}
+		private byte    _kind   = TEXT;
+		private byte    _scale  = 0;
+		private boolean _quoted = false;
+		private long    _bits   = 0;
+		
 		/**
 		 * Constructor used by the analyzer.
 		 * @param name
 		 * @param data
 		 */
 		public BaseField(Token name, Token data)   { super(name); _data=new BaseData(data,false); }
+		/**
+		 * Constructor used by the analyzer when {@link Field#_useScalars} is set.<p>
+		 * Numbers, booleans (yes/no) and dates (y.m.d), quoted or not, are decoded right
+		 * away and kept in primitive form : no String is built for them, and the text is
+		 * only rebuilt, exactly as it was, when it is requested. Other data is kept as text.
+		 * @param name
+		 * @param data
+		 * @param buf a work buffer for the bytes of the data ; 32 bytes is enough
+		 */
+		public BaseField(Token name, Token data, byte[] buf) {
+			super(name);
+			int n = data.bytes(buf);
+			if (n>0 && n<=buf.length && decode(buf,n))
+				_data=new BaseData(data._beg,data._end,null,false);
+			else
+				_data=new BaseData(data,false);
+		}
+		
+		/* reads the digits in b from i to n (excluded) into _bits ; returns the position of the first non digit */
+		private int digits(byte[] b, int i, int n) {
+			for (; i<n && b[i]>='0' && b[i]<='9'; i++) _bits = _bits*10 + (b[i]-'0');
+			return i;
+		}
+		
+		/*
+		 * decodes the n bytes of the data in b ; only the forms that can be rebuilt
+		 * exactly from the decoded value are accepted.
+		 */
+		private boolean decode(byte[] b, int n) {
+			int i=0;
+			if (b[0]=='"') {
+				if (n<3 || b[n-1]!='"') return false;
+				_quoted=true; i=1; n--;
+			}
+			if (n-i==3 && b[i]=='y' && b[i+1]=='e' && b[i+2]=='s') { _kind=BOOL; _bits=1; return true; }
+			if (n-i==2 && b[i]=='n' && b[i+1]=='o')                 { _kind=BOOL; _bits=0; return true; }
+			boolean neg = b[i]=='-';
+			if (neg) i++;
+			int beg=i;
+			i = digits(b,i,n);
+			if (i==beg || i-beg>1 && b[beg]=='0') return false;           //no digit, or leading 0
+			if (i==n) {
+				if (i-beg>18 || neg && _bits==0) return false;            //too large, or -0
+				_kind=INT;
+				if (neg) _bits=-_bits;
+				return true;
+			}
+			if (b[i]!='.') return false;
+			long first = _bits;
+			int dot = ++i;
+			i = digits(b,i,n);
+			if (i==dot) return false;
+			if (i==n) {
+				if (i-beg>19 || neg && _bits==0) return false;            //too large, or -0.0
+				_kind=DECIMAL;
+				_scale=(byte)(i-dot);
+				if (neg) _bits=-_bits;
+				return true;
+			}
+			//date : y.m.d with month and day on 1 or 2 digits, without leading 0
+			if (neg || b[i]!='.' || i-dot>2 || i-dot==2 && b[dot]=='0' || dot-beg>6) return false;
+			long month = _bits%__POW10[i-dot];
+			_bits = 0;
+			int day = ++i;
+			i = digits(b,i,n);
+			if (i!=n || i==day || i-day>2 || i-day==2 && b[day]=='0') return false;
+			_kind=DATE;
+			_bits=first*10000+month*100+_bits;
+			return true;
+		}
+		
+		/* rebuilds the text for the decoded value */
+		private String format() {
+			StringBuilder s = new StringBuilder(24);
+			if (_quoted) s.append('"');
+			switch (_kind) {
+				case BOOL    : s.append((_bits!=0) ? "yes" : "no"); break;
+				case INT     : s.append(_bits); break;
+				case DECIMAL : {
+					if (_bits<0) s.append('-');
+					long a = Math.abs(_bits);
+					String f = Long.toString(a%__POW10[_scale]);
+					s.append(a/__POW10[_scale]).append('.');
+					for (int i=f.length(); i<_scale; i++) s.append('0');
+					s.append(f);
+					break;
+				}
+				case DATE    : s.append(_bits/10000).append('.').append(_bits/100%100).append('.').append(_bits%100); break;
+			}
+			if (_quoted) s.append('"');
+			return s.toString();
+		}
+		
+		/* true if the field holds its original decoded number, unquoted */
+		private boolean isNumber() {
+			return _newVal==null && !_quoted && (_kind==INT || _kind==DECIMAL);
+		}
 		/**
 		 * Constructor for creating a field from scratch.<p>
 		 * Useful for adding new fields in an existing tree.<p>
@@ -576,14 +761,14 @@ public class PXTree {
 		 * @return the value of the field ; if the field has been changed, that value is given ; if the
 		 *         field has been deleted, the method returns null;
 		 */
-		public String get() { return (_newVal==null) ? _data._value : _newVal; }
+		public String get() { return (_newVal!=null) ? _newVal : (_kind==TEXT) ? _data._value : format(); }
 		/**
 		 * Gets the field value unquoted if it was quoted
 		 * @return the unquoted value of the field ; if the field has been changed, that value is given ;
 		 *         if the field has been deleted, the method returns null;
 		 */
 		public String getUnquoted() {
-			String s = (_newVal==null) ? _data._value : _newVal;
+			String s = get();
 			if (s.charAt(0)=='"') return s.substring(1, s.length()-1);
 			else return s;
 		}
@@ -593,6 +778,8 @@ public class PXTree {
 		 *         field has been deleted, the method returns null;
 		 */
 		public int getAsInt() {
+			if (isNumber() && _kind==INT && _bits>=Integer.MIN_VALUE && _bits<=Integer.MAX_VALUE)
+				return (int)_bits;
 			return (new Integer(get()).intValue());
 		}
 		/**
@@ -601,6 +788,9 @@ public class PXTree {
 		 *         field has been deleted, the method returns null;
 		 */
 		public float getAsFloat() {
+			//both operands are exact floats : the division is rounded as the parse would be
+			if (isNumber() && Math.abs(_bits)<(1L<<24) && _scale<=10)
+				return (float)_bits/(float)__POW10[_scale];
 			return (new Float(get()).floatValue());
 		}
 		/**
@@ -609,6 +799,8 @@ public class PXTree {
 		 *         field has been deleted, the method returns null;
 		 */
 		public double getAsDouble() {
+			if (isNumber() && Math.abs(_bits)<(1L<<53) && _scale<__DPOW10.length)
+				return (double)_bits/__DPOW10[_scale];
 			return (new Double(get()).doubleValue());
 		}
 		/**
@@ -618,8 +810,28 @@ public class PXTree {
 		 *         field has been deleted, the method returns null;
 		 */
 		public boolean getAsBoolean(String trueValue) {
+			if (_newVal==null && _kind==BOOL && !_quoted)
+				return ((_bits!=0) ? "yes" : "no").equals(trueValue);
 			return get().equals(trueValue);
 		}
+		/**
+		 * Gets the field value as a date
+		 * @return the date as year*10000+month*100+day if the value is a date (y.m.d, as
+		 *         decoded with {@link Field#_useScalars}) ; -1 otherwise.
+		 */
+		public int getAsDate() {
+			if (_newVal==null && _kind==DATE) return (int)_bits;
+			String s = getUnquoted();
+			int d1 = s.indexOf('.');
+			int d2 = s.indexOf('.',d1+1);
+			if (d1<=0 || d2<0) return -1;
+			try {
+				return Integer.parseInt(s.substring(0,d1))*10000 + Integer.parseInt(s.substring(d1+1,d2))*100 + Integer.parseInt(s.substring(d2+1));
+			}
+			catch (NumberFormatException e) {
+				return -1;
+			}
+		}
 		/**
 		 * Changes the field value
 		 * @param val the new value for the field
@@ -653,7 +865,7 @@ public class PXTree {
 	 * 
 	 * @author yvesp
 	 */
-	static public class AnonField extends Field<LinkedList<BaseField>> {
+	static public class AnonField extends Field<CompactList<BaseField>> {
 		/**
 		 * Position in the input for the opening {
 		 */
@@ -671,12 +883,12 @@ public class PXTree {
 		 * It has a special token as _name : Token(null,0,0,null)
 		 * @param name of the field
 		 */
-		public AnonField(Token name) { super(name); _data=new LinkedList<BaseField>(); }
+		public AnonField(Token name) { super(name); _data=new CompactList<BaseField>(); }
 		/**
 		 * Constructor for creating an anonymous field from scratch.<p>
 		 * Useful for adding new fields in an existing tree. It has _name  as Token(null,0,0,"").<p>
 		 */
-		public AnonField() { super(new Token(null,0,0,"",0)); _data=new LinkedList<BaseField>(); }
+		public AnonField() { super(new Token(null,0,0,"",0)); _data=new CompactList<BaseField>(); }
 		/**
 		 * Adds a field in the field list. Used by the analyzer.<p>
 		 * @param f to add
@@ -841,7 +1053,7 @@ public class PXTree {
 	 * 
 	 * @author yvesp
 	 */
-	static public class ListField extends Field<LinkedList<BaseData>> {
+	static public class ListField extends Field<CompactList<BaseData>> {
 		/**
 		 * Position in the input for the opening {
 		 */
@@ -854,13 +1066,13 @@ public class PXTree {
 		 * Constructor used by the analyzer.
 		 * @param name of the field
 		 */
-		public ListField(Token name) { super(name); _data=new LinkedList<BaseData>(); }
+		public ListField(Token name) { super(name); _data=new CompactList<BaseData>(); }
 		/**
 		 * Constructor for creating a list field from scratch.<p>
 		 * Useful for adding new fields in an existing tree.<p>
 		 * @param name of the field
 		 */
-		public ListField(String name) { super(new Token(null,0,-1,name,0)); _data=new LinkedList<BaseData>(); }
+		public ListField(String name) { super(new Token(null,0,-1,name,0)); _data=new CompactList<BaseData>(); }
 		/**
 		 * Removes the first non deleted Token with the given value.<p>
 		 * Removal doesn't actually occur : the Token is only marked as deleted
@@ -955,7 +1167,7 @@ public class PXTree {
 	 * 
 	 * @author yvesp
 	 */
-	static public class StructField extends Field<LinkedList<Field<?>>> {
+	static public class StructField extends Field<CompactList<Field<?>>> {
 		/**
 		 * Position in the input for the opening {
 		 */
@@ -968,23 +1180,31 @@ public class PXTree {
 		 * Layout for the fields
 		 */
 		public Layout _layout=Layout.FLAT;
+		
+		//index of the children by name, built on the first lookup and rebuilt when _data changes
+		static final private int __INDEX_MIN = 8; //below that number of children, a plain scan is as fast
+		private String[] _keys    = null;         //names, in open addressing
+		private int[]    _heads   = null;         //first child for each name
+		private int[]    _next    = null;         //next child with the same name, -1 for none
+		private int      _indexed = -1;           //version of _data when the index was built
+		
 		/**
 		 * Constructor used by the analyzer.
 		 * @param name of the field
 		 */
-		public StructField(Token name) { super(name); _data=new LinkedList<Field<?>>(); }
+		public StructField(Token name) { super(name); _data=new CompactList<Field<?>>(); }
 		/**
 		 * Constructor for creating a field from scratch.<p>
 		 * Useful for adding new fields in an existing tree.<p>
 		 * @param name of the field
 		 */
-		public StructField(String name) { super(new Token(null,0,-1,name,0)); _data=new LinkedList<Field<?>>(); }
+		public StructField(String name) { super(new Token(null,0,-1,name,0)); _data=new CompactList<Field<?>>(); }
 		/**
 		 * Adds a field at the end of the field list. Used by the analyzer.<p>
 		 * @param f field to add
 		 */
 		public void addField(Field<?> f) {
-			if (f._data==null && !f.isNew()) return;
+			if (f._data==null && !f.isNew() && !(f instanceof LazyField)) return;
 			f.setOwner(this);
 			_data.addLast(f);
 		}
@@ -1031,9 +1251,8 @@ public class PXTree {
 			if (s==null) throw new IllegalStateException("containing field"+_name._value+"not in template");
 			Selector expected[] = s._children;
 			//check if the field already exists in the data : if so, first place is the existing one
-			Iterator<Field<?>> x = _data.iterator();
-			int k=0; while (x.hasNext()) { if (x.next()._name._value.equals(name)) break; k++; }
-			if (k!=_data.size()) return k; //found!
+			int k = find(name,-1);
+			if (k>=0) return k; //found!
 			//check that we know the field in the template and find it's place
 			int n; for (n=0; n<expected.length && !expected[n]._name.equals(name); n++);
 			if (n==expected.length) throw new IllegalStateException("field "+name+" not found in template");
@@ -1076,14 +1295,7 @@ public class PXTree {
 		 * @return the fields with that name
 		 */
 		public Field<?>[] getAll(String name, boolean deleted) {
-			int n=0;
-			Field<?>[] f = new Field<?>[_data.size()];
-			for (Field<?> x : _data)
-				if ((deleted || !x.isDeleted()) && x._name._value.equals(name))
-					f[n++] = x;
-			Field<?>[] g = new Field<?>[n];
-			System.arraycopy(f, 0, g, 0, n);
-			return g;
+			return getAll(name,deleted,Field.class);
 		}
 		/**
 		 * Finds all the fields with a given name.<p>
@@ -1098,15 +1310,7 @@ public class PXTree {
 		 * @return the fields with that name
 		 */
 		public StructField[] getAllStruct(String name, boolean deleted) {
-			int n=0;
-			StructField[] f = new StructField[_data.size()];
-			for (Field<?> x : _data) {
-				if ((deleted || !x.isDeleted()) && x._name._value.equals(name))
-					f[n++] = (StructField)x;
-			}
-			StructField[] g = new StructField[n];
-			System.arraycopy(f, 0, g, 0, n);
-			return g;
+			return getAll(name,deleted,StructField.class);
 		}
 		/**
 		 * Same, as {@link Field#getAll(String, boolean)} except we don't get the
@@ -1125,15 +1329,7 @@ public class PXTree {
 		 * @return the fields with that name
 		 */
 		public AnonField[] getAllAnon(String name, boolean deleted) {
-			int n=0;
-			AnonField[] f = new AnonField[_data.size()];
-			for (Field<?> x : _data) {
-				if ((deleted || !x.isDeleted()) && x._name._value.equals(name))
-					f[n++] = (AnonField)x;
-			}
-			AnonField[] g = new AnonField[n];
-			System.arraycopy(f, 0, g, 0, n);
-			return g;
+			return getAll(name,deleted,AnonField.class);
 		}
 		/**
 		 * Same, as {@link Field#getAll(String, boolean)} except we don't get the
@@ -1152,15 +1348,7 @@ public class PXTree {
 		 * @return the fields with that name
 		 */
 		public BaseField[] getAllBase(String name, boolean deleted) {
-			int n=0;
-			BaseField[] f = new BaseField[_data.size()];
-			for (Field<?> x : _data) {
-				if ((deleted || !x.isDeleted()) && x._name._value.equals(name))
-					f[n++] = (BaseField)x;
-			}
-			BaseField[] g = new BaseField[n];
-			System.arraycopy(f, 0, g, 0, n);
-			return g;
+			return getAll(name,deleted,BaseField.class);
 		}
 		/**
 		 * Same, as {@link Field#getAll(String, boolean)} except we don't get the
@@ -1179,15 +1367,7 @@ public class PXTree {
 		 * @return the fields with that name
 		 */
 		public ListField[] getAllList(String name, boolean deleted) {
-			int n=0;
-			ListField[] f = new ListField[_data.size()];
-			for (Field<?> x : _data) {
-				if ((deleted || !x.isDeleted()) && x._name._value.equals(name))
-					f[n++] = (ListField)x;
-			}
-			ListField[] g = new ListField[n];
-			System.arraycopy(f, 0, g, 0, n);
-			return g;
+			return getAll(name,deleted,ListField.class);
 		}
 		/**
 		 * Same, as {@link Field#getAll(String, boolean)} except we don't get the
@@ -1197,12 +1377,97 @@ public class PXTree {
 			return getAllList(name,false);
 		}
 		public Field<?> get(String name, boolean deleted) {
-			for (Field<?> f : _data)
-				if ((deleted || !f.isDeleted()) && f._name._value.equals(name))
-					return f;
+			for (int i=find(name,-1); i>=0; i=find(name,i)) {
+				Field<?> f = _data.get(i);
+				if (deleted || !f.isDeleted()) return (f instanceof LazyField) ? resolve(i) : f;
+			}
 			return null;
 		}
 		
+		/* the fields with a given name, as an array of the given type ; a wrong type throws a ClassCastException */
+		@SuppressWarnings("unchecked")
+		private <T> T[] getAll(String name, boolean deleted, Class<T> type) {
+			int n=0;
+			for (int i=find(name,-1); i>=0; i=find(name,i))
+				if (deleted || !_data.get(i).isDeleted()) n++;
+			T[] r = (T[])Array.newInstance(type,n);
+			if (n==0) return r;
+			n=0;
+			for (int i=find(name,-1); i>=0; i=find(name,i)) {
+				Field<?> x = _data.get(i);
+				if (deleted || !x.isDeleted()) r[n++] = type.cast((x instanceof LazyField) ? resolve(i) : x);
+			}
+			return r;
+		}
+		
+		/*
+		 * replaces the LazyField at index i by the field it stands for ; as the name
+		 * doesn't change, the name index stays valid.
+		 */
+		Field<?> resolve(int i) {
+			Field<?> f = ((LazyField)_data.get(i)).parse();
+			boolean indexed = _indexed==_data.version();
+			f.setOwner(this);
+			_data.set(i,f);
+			if (indexed) _indexed = _data.version();
+			return f;
+		}
+		
+		static private boolean same(String v, String name) {
+			return v!=null && (v==name || v.equals(name));
+		}
+		
+		/*
+		 * Finds the next child with that name after the child at index i, deleted or not.
+		 * i is -1 to find the first one, or else the index of a child with that name.
+		 * @return the index of that child, -1 if there is none
+		 */
+		int find(String name, int i) {
+			int n = _data.size();
+			if (n<__INDEX_MIN) {
+				for (int k=i+1; k<n; k++) {
+					Field<?> f = _data.get(k);
+					if (f._name!=null && same(f._name._value,name)) return k;
+				}
+				return -1;
+			}
+			if (_indexed!=_data.version()) index();
+			if (i>=0) return _next[i];
+			int m = _keys.length-1;
+			int h = name.hashCode();
+			for (int k=(h^(h>>>16))&m; _keys[k]!=null; k=(k+1)&m)
+				if (same(_keys[k],name)) return _heads[k];
+			return -1;
+		}
+		
+		/* builds the index of the children by name */
+		private void index() {
+			int n = _data.size();
+			int size = Integer.highestOneBit(n)*4;
+			if (_keys==null || _keys.length!=size) {
+				_keys  = new String[size];
+				_heads = new int[size];
+			}
+			else
+				Arrays.fill(_keys,null);
+			if (_next==null || _next.length<n) _next = new int[n+(n>>1)];
+			int[] tails = new int[size];
+			int m = size-1;
+			for (int i=0; i<n; i++) {
+				_next[i] = -1;
+				Field<?> f = _data.get(i);
+				String v = (f._name==null) ? null : f._name._value;
+				if (v==null) continue;
+				int h = v.hashCode();
+				int k = (h^(h>>>16))&m;
+				while (_keys[k]!=null && !same(_keys[k],v)) k=(k+1)&m;
+				if (_keys[k]==null) { _keys[k]=v; _heads[k]=i; }
+				else                _next[tails[k]]=i;
+				tails[k] = i;
+			}
+			_indexed = _data.version();
+		}
+		
 		public Field<?> get(int index) {
 			return _data.get(index);
 		}
@@ -1276,6 +1541,19 @@ public class PXTree {
 			rw.write(_data.toArray(new Field<?>[_data.size()]));
 			rw.flush(this);
 		}
+		/**
+		 * Same as {@link #write(Reader, Writer)}, but working on channels : the data that
+		 * is not changed is transferred directly from the input file to the output, without
+		 * being decoded and encoded again. The new data is written in ISO-8859-1.
+		 * @param in   The file which we analyzed ; it's position is not used.
+		 * @param out  The channel where we write the result.
+		 * @throws IOException
+		 */
+		public void write(FileChannel in, WritableByteChannel out)  throws IOException {
+			ReaderWriter rw = new ReaderWriter(in, out);
+			rw.write(_data.toArray(new Field<?>[_data.size()]));
+			rw.flush(this);
+		}
 		public void write(Writer out, boolean debug) throws IOException {
 			if (!debug && isDeleted()) return;
 		    if (_owner!=null) {
@@ -1298,6 +1576,108 @@ public class PXTree {
 
 	};
 	
+	/**
+	 * Placeholder for a structure that the filter of the analysis didn't select ; it
+	 * only holds the position of that structure in the data.<p>
+	 * 
+	 * The structure is analyzed when it is first reached through the lookup methods
+	 * of its owner ({@link StructField#get(String, boolean)}, getAll...), or when
+	 * {@link #materialize()} is called : the placeholder is then replaced in its owner
+	 * by the actual field (usually a StructField, or a ListField for a list).
+	 * Walking through the _data of the owner shows the placeholders as they are.<p>
+	 * 
+	 * Writing the tree with a ReaderWriter copies the original data for a placeholder
+	 * that was not analyzed ; deleting it is allowed.<p>
+	 * 
+	 * The analysis of a placeholder is not synchronized : a tree should not be
+	 * explored by several threads if it contains placeholders.<p>
+	 * 
+	 * @see TreeHooks#setLazySource(byte[], BraceIndex)
+	 * @see TreeHooks#setLazySource(FileLoader.MappedFile, BraceIndex)
+	 * @author yvesp
+	 */
+	static public class LazyField extends Field<Field<?>> {
+		/** position in the input for the closing } */
+		protected int _end;
+		int                   _line;   //line for the name
+		private byte[]        _source; //the data (in the heap or mapped), and its index if any
+		private FileLoader.MappedFile _mapped;
+		private BraceIndex    _index;
+		
+		/**
+		 * Constructor used by the analyzer.
+		 * @param name   name of the structure
+		 * @param end    position of the closing }
+		 * @param source the whole data
+		 * @param index  the index for that data ; null if none
+		 */
+		public LazyField(Token name, int end, byte[] source, BraceIndex index) {
+			super(name);
+			_end    = end;
+			_line   = name._line;
+			_source = source;
+			_index  = index;
+		}
+		
+		/**
+		 * Constructor used by the analyzer on a mapped file.
+		 * @param name   name of the structure
+		 * @param end    position of the closing }
+		 * @param source the mapped file ; it must be smaller than 2GB
+		 * @param index  the index for that file ; null if none
+		 */
+		public LazyField(Token name, int end, FileLoader.MappedFile source, BraceIndex index) {
+			super(name);
+			_end    = end;
+			_line   = name._line;
+			_mapped = source;
+			_index  = index;
+		}
+		
+		/* analyzes the structure if not yet done ; the placeholder itself is not replaced */
+		Field<?> parse() {
+			if (_data==null) {
+				TreeHooks h = new TreeHooks();
+				Analyzer  a = (_source!=null) ?
+						new Analyzer(new FastParser(_source,begIndex(),_end+1,_line,_index),h) :
+						new Analyzer(new MappedParser(_mapped,begIndex(),_end+1,_line,_index),h);
+				if (!a.analyze() || h.getDataTree().size()!=1)
+					throw new IllegalStateException("analysis of "+makePath()+" failed : "+a.tokenStack());
+				_data = h.getDataTree().get(0);
+				if (isDeleted()) _data.delete();
+				_source = null;
+				_mapped = null;
+				_index  = null;
+			}
+			return _data;
+		}
+		
+		/**
+		 * Analyzes the structure if not yet done, and puts the result in place of
+		 * the placeholder in its owner.
+		 * @return the actual field
+		 */
+		public Field<?> materialize() {
+			if (_owner instanceof StructField) {
+				StructField o = (StructField)_owner;
+				for (int i=0; i<o._data.size(); i++)
+					if (o._data.get(i)==this) return o.resolve(i);
+			}
+			return parse();
+		}
+		/**
+		 * @return true once the structure has been analyzed
+		 */
+		public boolean isMaterialized() { return _data!=null; }
+		public Field<?>[] getAll(String name, boolean deleted) { return materialize().getAll(name,deleted); }
+		public Field<?>   get(String name, boolean deleted)    { return materialize().get(name,deleted); }
+		protected void write(ReaderWriter rw) throws IOException     { materialize().write(rw); }
+		protected void writeData(ReaderWriter rw) throws IOException { materialize().writeData(rw); }
+		protected void write(Writer out, boolean debug) throws IOException { materialize().write(out,debug); }
+		protected int midIndex() { return begIndex(); }
+		public    int endIndex() { return _end; }
+	};
+	
 	
 	/**
 	 * A Hooks that loads the data analyzed into memory.<p>
@@ -1309,7 +1689,7 @@ public class PXTree {
 	 * 
 	 * @author yvesp
 	 */
-	static final public class TreeHooks implements Hooks {
+	static final public class TreeHooks implements FlyweightHooks {
 		/**current field being analyzed*/
 		public Field<?> _cur      = null; 
 		/**last name Token found*/
@@ -1318,9 +1698,52 @@ public class PXTree {
 		public boolean  _done     = false;
         private int[]   _line     = new int[40];
         private int     _depth    = -1;
-		
+        private Token   _name     = new Token(null,0,0,null,0); //buffer for _lastName when reading flyweights
+        private byte[]  _bytes    = new byte[32];               //buffer for decoding the scalars
+        private byte[]     _lazyData  = null;                   //data for the LazyFields ; null for none
+        private FileLoader.MappedFile _lazyMapped = null;       //or mapped file
+        private BraceIndex _lazyIndex = null;
+
+        /**
+         * Keeps the structures skipped by a filter ({@link PXChooser}) as {@link LazyField}
+         * placeholders, which can be analyzed later from the data.
+         * @param data  the whole data being analyzed ; null to drop the skipped structures
+         * @param index the index for that data ; null if none
+         */
+        public void setLazySource(byte[] data, BraceIndex index) {
+        	_lazyData   = data;
+        	_lazyMapped = null;
+        	_lazyIndex  = index;
+        }
+        /**
+         * Same as {@link #setLazySource(byte[], BraceIndex)}, for a mapped file : it must
+         * be smaller than 2GB, and stays mapped as long as the tree.
+         * @param f     the mapped file being analyzed ; null to drop the skipped structures
+         * @param index the index for that file, as built on it's only segment ; null if none
+         */
+        public void setLazySource(FileLoader.MappedFile f, BraceIndex index) {
+        	_lazyData   = null;
+        	_lazyMapped = f;
+        	_lazyIndex  = index;
+        }
+        /**
+         * Called by the filter when it skips a structure in the current one.
+         * @param name the name of the structure skipped
+         * @param t    the closing } for that structure
+         */
+        public void skipped(Token name, Token t) {
+        	if ((_lazyData==null && _lazyMapped==null) || !(_cur instanceof StructField)) return;
+        	LazyField f = (_lazyData!=null) ? new LazyField(name,t._end,_lazyData,_lazyIndex) :
+        		                              new LazyField(name,t._end,_lazyMapped,_lazyIndex);
+        	f.setOwner(_cur);
+        	((StructField)_cur)._data.addLast(f);
+        }
+
+		public boolean acceptsFlyweight() {
+			return true;
+		}
 		public void getName(Token t) {
-			_lastName=t;
+			_lastName = (t.isFlyweight()) ? _name.copy(t,(Field._useDictionary) ? BaseData.getDictionary() : null) : t;
 		};
 		public boolean beforeStruct(Token t) {
 			//create a new structure associated with the current one
@@ -1336,6 +1759,7 @@ public class PXTree {
 			StructField prev = (StructField)_cur._owner;
 			((StructField)_cur)._end = t._end;
 			((StructField)_cur)._layout = (_line[_depth--]==t._line) ? Field.Layout.FLAT : Field.Layout.INDENT;
+			((StructField)_cur)._data.trimToSize();
 			//only a StructField may contain a StructField : insert it in the tree
 			if (_cur._name!=null)  prev.addField(_cur);
 			else                   _cur.clean();
@@ -1358,6 +1782,7 @@ public class PXTree {
 			StructField prev = (StructField)_cur._owner;
 			((AnonField)_cur)._end = t._end;
 			((AnonField)_cur)._layout = (_line[_depth--]==t._line) ? Field.Layout.FLAT : Field.Layout.INDENT;
+			((AnonField)_cur)._data.trimToSize();
 			if (_cur._name!=null) prev.addField(_cur);
 			else                  _cur.clean();
 			_cur = prev;
@@ -1377,6 +1802,7 @@ public class PXTree {
 			//only a StructField may contain a ListField
 			StructField prev = (StructField)_cur._owner;
 			((ListField)_cur)._end = t._end;
+			((ListField)_cur)._data.trimToSize();
 			if (_cur._name!=null) prev.addField(_cur);
 			else                  _cur.clean();
 			_cur = prev;
@@ -1398,13 +1824,14 @@ public class PXTree {
 		public void end(Token t) {
 			_done = true;
 			((StructField)_cur)._end  = t._end;
+			((StructField)_cur)._data.trimToSize();
 			//any processing scheme could be put here now that the data is loaded
 		};
 		public void beforeBase(Token t)  {
 		}
 		public boolean afterBase(Token t) {
 			//that's where everything actually happens!
-			BaseField baseField = new BaseField(_lastName,t);
+			BaseField baseField = (Field._useScalars) ? new BaseField(_lastName,t,_bytes) : new BaseField(_lastName,t);
 			baseField._owner=_cur; 
 			if (baseField._name==null) { baseField.clean(); return false; }
 			if (_cur instanceof StructField)    //if we get a data in a structure level, we got a BaseField
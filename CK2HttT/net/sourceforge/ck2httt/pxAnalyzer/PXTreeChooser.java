@@ -1,7 +1,12 @@
 package net.sourceforge.ck2httt.pxAnalyzer;
 import java.text.ParseException;
-import java.util.LinkedList;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.Hooks;
 import net.sourceforge.ck2httt.pxAnalyzer.PXChooser.*;
@@ -32,7 +37,9 @@ import net.sourceforge.ck2httt.pxAnalyzer.Patterns.SelectorAnalyzer;
  *  method lets you explore the field tree and apply another kind of callbacks
  *  ({@link BasicCallback}) to each matching field, in the order
  *  where they are written ; this commodity lets you easily explore the field tree
- *  without having to do convoluted recursive loops.<p>
+ *  without having to do convoluted recursive loops. A template can be compiled once
+ *  ({@link CompiledTemplate}) and applied many times, with the callbacks declared free
+ *  of side effects ({@link ParallelCallback}) run by several threads.<p>
  * 
  * @see PXTree
  * @see PXChooser
@@ -54,7 +61,7 @@ public class PXTreeChooser {
 		TreeHooks _h;  //the underlying TreeHook used.
 		public TreeCallbacks() {
 			_m = new TreeMerger();
-			_h = (TreeHooks)super._h;
+			_h = PXTreeChooser.this._h;
 		}
 		
 		/**
@@ -184,46 +191,196 @@ public class PXTreeChooser {
 
 
 	/**
-	 * Apply the selectors (callbacks) to the sub-fields if field matches the
-	 * current selector.
-	 * @param s  current selectors
-	 * @param f  field being explored
-	 * @throws ParseException
+	 * A {@link BasicCallback} declared free of side effects on the tree : it changes
+	 * neither the field it receives nor any other, and it may be called by several threads
+	 * at once, each with a different field. Whatever it gathers must be kept in thread safe
+	 * structures.<p>
+	 * These are the only callbacks which {@link #applyTemplate(CompiledTemplate, int)}
+	 * runs in parallel.
 	 */
-	static private void applySelector(Selector s, Field<?> f) throws ParseException {
-		if (s._name.equals(f._name._value) || s._name.equals("*"))
-		    applySelectors(s._children,f);
+	public interface ParallelCallback extends BasicCallback {
 	}
 
 	/**
-	 * Apply the selectors (callbacks) to the subfields (if any)
-	 * @param s  array of sub-selectors
-	 * @param f  field being explored
-	 * @throws ParseException
+	 * A template for {@link PXTreeChooser#applyTemplate(String, BasicCallback[])} compiled
+	 * once with its callbacks, so that it can be applied any number of times, to any tree,
+	 * without being analyzed again.<p>
+	 * The fields with a given name are found through the name index of the structures,
+	 * rather than by comparing the template with each field.<p>
+	 * 
+	 * In parallel, the fields matching the same part of the template are shared between
+	 * several threads when all the callbacks for that part and below it are
+	 * {@link ParallelCallback}s : for example, the thousands of character or province
+	 * fields in a save. The parts of the template are still processed in the order in
+	 * which they are written, but the fields matching one part are processed in any order.
+	 * Each field is processed by one thread, with its subtree ; the other parts of the
+	 * template are processed by the calling thread, as in the sequential way.<p>
+	 * The placeholders reached by the template are analyzed by the calling thread.
 	 */
-	static private void applySelectors(Selector s[], Field<?> f) throws ParseException {
-		if (f instanceof StructField) {
-			LinkedList<Field<?>> list = ((StructField)f)._data;
-			for (Selector i : s) {
-				for (Field<?> j : list) {
-				    applySelector(i,j);
-					if (i.isMatch(j._name._value) && i._matcher!=null)
-						((BasicCallback)i._matcher).doForMatch(j);
+	static public final class CompiledTemplate {
+		private final String             _name;     //name matched ; * for all
+		private final boolean            _any;      //true for *
+		private final CompiledTemplate[] _children;
+		private final BasicCallback      _callback; //null if none
+		private final boolean            _parallel; //true if all callbacks here and below are ParallelCallbacks
+		
+		private CompiledTemplate(Selector s) {
+			_name     = s._name;
+			_any      = s._name.equals("*");
+			_callback = (BasicCallback)s._matcher;
+			int n     = (s._children==null) ? 0 : s._children.length;
+			boolean p = _callback==null || _callback instanceof ParallelCallback;
+			_children = new CompiledTemplate[n];
+			for (int i=0; i<n; i++) {
+				_children[i] = new CompiledTemplate(s._children[i]);
+				p &= _children[i]._parallel;
+			}
+			_parallel = p;
+		}
+		
+		/**
+		 * Applies the template to the content of a field, usually the whole tree.
+		 * @param f the field
+		 */
+		public void apply(Field<?> f) {
+			content(f,null);
+		}
+		
+		/**
+		 * Same as {@link #apply(Field)}, with the {@link ParallelCallback}s run by several threads.
+		 * @param f       the field
+		 * @param threads number of threads to use
+		 */
+		public void apply(Field<?> f, int threads) {
+			if (threads<=1 || !hasParallel()) { content(f,null); return; }
+			Fan fan = new Fan(threads);
+			try {
+				content(f,fan);
+			}
+			finally {
+				fan.shutdown();
+			}
+		}
+		
+		/* true if some part of the template may be run in parallel */
+		private boolean hasParallel() {
+			for (CompiledTemplate c : _children)
+				if (c._parallel || c.hasParallel()) return true;
+			return false;
+		}
+		
+		/* the field at index k, analyzed if it is a placeholder */
+		static private Field<?> at(StructField s, int k) {
+			Field<?> f = s._data.get(k);
+			return (f instanceof LazyField) ? s.resolve(k) : f;
+		}
+		
+		/* the fields of s matching this part of the template, in the order of the data */
+		private ArrayList<Field<?>> matches(StructField s) {
+			ArrayList<Field<?>> l = new ArrayList<Field<?>>();
+			if (_any)
+				for (int k=0; k<s._data.size(); k++) l.add(at(s,k));
+			else
+				for (int k=s.find(_name,-1); k>=0; k=s.find(_name,k)) l.add(at(s,k));
+			return l;
+		}
+		
+		/* applies the parts of the template below this one to the content of f ; fan is null when sequential */
+		private void content(Field<?> f, Fan fan) {
+			if (f instanceof StructField) {
+				StructField s = (StructField)f;
+				for (CompiledTemplate c : _children) {
+					if (fan!=null) {
+						ArrayList<Field<?>> l = c.matches(s);
+						if (c._parallel && l.size()>1) fan.run(c,l);
+						else for (Field<?> j : l) c.visit(j,fan);
+					}
+					else if (c._any)
+						for (int k=0; k<s._data.size(); k++) c.visit(at(s,k),null);
+					else
+						for (int k=s.find(c._name,-1); k>=0; k=s.find(c._name,k)) c.visit(at(s,k),null);
 				}
 			}
+			else if (f instanceof AnonField) {
+				CompactList<BaseField> list = ((AnonField)f)._data;
+				for (CompiledTemplate c : _children)
+					for (Field<?> j : list)
+						if (c._any || c._name.equals(j._name._value)) c.visit(j,fan);
+			}
+		}
+		
+		/* processes a field matching this part of the template : its content first, then the field */
+		private void visit(Field<?> f, Fan fan) {
+			content(f,fan);
+			if (_callback!=null) _callback.doForMatch(f);
 		}
-		else if (f instanceof AnonField) {
-			LinkedList<BaseField> list = ((AnonField)f)._data;
-			for (Selector i : s) {
-				for (Field<?> j : list) {
-		            applySelector(i,j);
-					if (i.isMatch(j._name._value) && i._matcher!=null)
-						((BasicCallback)i._matcher).doForMatch(j);
+		
+		/*
+		 * the threads processing the fields in parallel ; the fields are cut into a few
+		 * chunks per thread, so that the threads stay busy until the end.
+		 */
+		static private final class Fan {
+			private int             _threads;
+			private ExecutorService _pool;
+			
+			Fan(int threads) {
+				_threads = threads;
+				_pool    = Executors.newFixedThreadPool(threads);
+			}
+			
+			void run(final CompiledTemplate c, final ArrayList<Field<?>> l) {
+				int n = Math.min(l.size(),_threads*4);
+				LinkedList<Future<?>> r = new LinkedList<Future<?>>();
+				for (int i=0; i<n; i++) {
+					final int from = (int)((long)l.size()*i/n);
+					final int to   = (int)((long)l.size()*(i+1)/n);
+					r.add(_pool.submit(new Runnable() {
+						public void run() { for (int k=from; k<to; k++) c.visit(l.get(k),null); }
+					}));
 				}
-		    }
+				try {
+					for (Future<?> f : r) f.get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("template interrupted",e);
+				}
+				catch (ExecutionException e) {
+					//the callback failed : it's exception is thrown again in the calling thread
+					Throwable t = e.getCause();
+					if (t instanceof RuntimeException) throw (RuntimeException)t;
+					if (t instanceof Error)            throw (Error)t;
+					throw new IllegalStateException(t);
+				}
+			}
+			
+			void shutdown() {
+				_pool.shutdownNow();
+			}
 		}
-		else
-			return;
+	}
+	
+	/**
+	 * Compiles a template for {@link #applyTemplate(CompiledTemplate)}.
+	 * @param pattern the callback pattern, in a syntax similar to that for filters
+	 * @param callbackList a list of callbacks, for the same use as for filters
+	 * @return the compiled template
+	 * @throws ParseException if the pattern contains errors
+	 */
+	static public CompiledTemplate compileTemplate(String pattern, BasicCallback[] callbackList) throws ParseException {
+		return new CompiledTemplate(SelectorAnalyzer.compile(pattern,callbackList));
+	}
+
+	/**
+	 * Same as {@link #compileTemplate(String, BasicCallback[])}, except that the
+	 * template is read from a reader.
+	 * @param pattern the callback pattern, in a syntax similar to that for filters
+	 * @param callbackList a list of callbacks, for the same use as for filters
+	 * @return the compiled template
+	 * @throws ParseException if the pattern contains errors
+	 */
+	static public CompiledTemplate compileTemplate(Reader pattern, BasicCallback[] callbackList) throws ParseException {
+		return new CompiledTemplate(SelectorAnalyzer.compile(pattern,callbackList));
 	}
 
 	/**
@@ -234,8 +391,28 @@ public class PXTreeChooser {
 	 * @throws ParseException if the pattern contains errors
 	 */
 	public void applyTemplate(Reader pattern, BasicCallback[] callbackList) throws ParseException {
-		Selector s = SelectorAnalyzer.compile(pattern,callbackList);
-		applySelector(s, _h.getDataTree()); 
+		compileTemplate(pattern,callbackList).apply(_h.getDataTree());
+	}
+
+	/**
+	 * Same as {@link #applyTemplate(String, BasicCallback[])}, with a template compiled
+	 * beforehand : use it when the same template is applied several times.
+	 * @param template the compiled template
+	 */
+	public void applyTemplate(CompiledTemplate template) {
+		template.apply(_h.getDataTree());
+	}
+
+	/**
+	 * Same as {@link #applyTemplate(CompiledTemplate)}, except that the {@link ParallelCallback}s
+	 * are run by several threads : the fields matching the same part of the template are then
+	 * processed in any order (see {@link CompiledTemplate}). The other callbacks are run as
+	 * in the sequential way.
+	 * @param template the compiled template
+	 * @param threads  number of threads to use
+	 */
+	public void applyTemplate(CompiledTemplate template, int threads) {
+		template.apply(_h.getDataTree(),threads);
 	}
 
 	/**
@@ -267,10 +444,11 @@ public class PXTreeChooser {
 	 * </ul>
 	 * 
 	 * <b>This is merely a convenient way to explore the Field tree, and should not
-	 * be seen as anything else.</b> It is not even particularly efficient : it just
-	 * lets you write things up faster. It doesn't do anything you could not do
-	 * yourself : it only loops through the given fields in the written order,
-	 * nothing more!<p>
+	 * be seen as anything else.</b> It just lets you write things up faster. It doesn't
+	 * do anything you could not do yourself : it only loops through the given fields in
+	 * the written order, nothing more! The template is analyzed at each call : compile it
+	 * once with {@link #compileTemplate(String, BasicCallback[])} when it is applied
+	 * several times.<p>
 	 * 
 	 * Example:<p>
 	 * {province(2){culture(1),id(4)},header(0)} would call callback number 1
@@ -285,8 +463,7 @@ public class PXTreeChooser {
 	 * @throws ParseException if the pattern contains errors
 	 */
 	public void applyTemplate(String pattern, BasicCallback[] callbackList) throws ParseException {
-		Selector s = SelectorAnalyzer.compile(pattern,callbackList);
-		applySelector(s, _h.getDataTree()); 
+		compileTemplate(pattern,callbackList).apply(_h.getDataTree());
 	}	
 }
 
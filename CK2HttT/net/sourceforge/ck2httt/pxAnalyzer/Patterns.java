@@ -133,12 +133,19 @@ public class Patterns {
 		public Callbacks  _matcher=null;
 		
 		protected int     _cur=0;       //current index when Selecting
-		protected boolean _found=false; //field already found
+		protected int     _round=1;     //incremented at each reset, so that reset doesn't have to visit the children
+		protected int     _found=0;     //field already found if equal to the parent _round
 		
 		static protected Selector __SKIP = new Selector("");
 		
+		//hashed index of the children names, so that finding a child costs the same whatever their number
+		private String[]  _keys;  //open addressing table of the children names
+		private int[]     _slots; //for each key, index of the first child with that name
+		private int[]     _same;  //for each child, index of the next child with the same name ; -1 if none
+		private Selector  _joker; //last child if it is *, null otherwise
+		
 		public Selector(String name)               { _name=name; }
-		public Selector(String name, Selector[] s) { _name=name; _children=s; }
+		public Selector(String name, Selector[] s) { _name=name; _children=s; index(); }
 		
 		protected Selector getMatch(String child) {
 			if (_children==__always) return _generic;
@@ -164,12 +171,51 @@ public class Patterns {
 			if (_l!=null) {
 		       _children = _l.toArray(new Selector[_l.size()]);
 		       _l=null; //dispose of useless _l...
+		       index();
+			}
+		}
+		//builds the hashed index of the children names
+		private void index() {
+			if (_children==null || _children==__always) return;
+			int n = _children.length;
+			String[] keys  = new String[Math.max(2,Integer.highestOneBit(n)*4)]; //never more than half full
+			int[]    slots = new int[keys.length];
+			int[]    same  = new int[n];
+			int      m     = keys.length-1;
+			for (int i=n-1; i>=0; i--) { //backwards, so that the first child with a name ends up in the table
+				String k = _children[i]._name;
+				int    h = hash(k) & m;
+				while (keys[h]!=null && !keys[h].equals(k)) h=(h+1)&m;
+				same[i]  = (keys[h]==null) ? -1 : slots[h];
+				keys[h]  = k;
+				slots[h] = i;
+			}
+			_joker = (n>0 && _children[n-1]._name.equals("*")) ? _children[n-1] : null;
+			_same  = same;
+			_slots = slots;
+			_keys  = keys;
+		}
+		static private int hash(String k) {
+			int h = k.hashCode();
+			return h ^ (h>>>16);
+		}
+		//index of the first child with that name, starting at from ; -1 if none
+		private int indexOf(String name, int from) {
+			if (_keys==null) index();
+			int m = _keys.length-1;
+			for (int h=hash(name)&m; _keys[h]!=null; h=(h+1)&m) {
+				if (_keys[h].equals(name)) {
+					int i = _slots[h];
+					while (i>=0 && i<from) i=_same[i];
+					return i;
+				}
 			}
+			return -1;
 		}
 		public void reset() {
 			if (_name.equals("*")) return;
 			_cur=0;
-			for (Selector s : _children) s._found=false;
+			_round++;
 		}
 		public boolean isMatch(String name) {
 			return _name.equals(name) || _name.equals("*");
@@ -178,33 +224,29 @@ public class Patterns {
 		//internals
 		private Selector getMatchBasic(String child) {
 			if (_children==null) return null;
-			for (Selector s : _children) {
-				if (s._name.equals(child)) return s;
-			}
-			if (_children[_children.length-1]._name.equals("*"))
-				return _children[_children.length-1];
-			return null;
+			int i = indexOf(child,0);
+			if (i>=0) return _children[i];
+			return _joker;
 		}
 		private Selector getMatchShort(String child) {
 			//_cur indicates here how many fields have been found
 			if (_children==null) return null;
-			for (Selector s : _children) {
-				if (s._name.equals(child)) {
-					if (!s._found) { _cur++;  s._found=true; }
-					return s;
-				}
+			int i = indexOf(child,0);
+			if (i>=0) {
+				Selector s = _children[i];
+				if (s._found!=_round) { _cur++;  s._found=_round; }
+				return s;
 			}
 			return (_cur==_children.length) ? __SKIP : null;
 		}
 		private Selector getMatchOrder(String child) {
 			//_cur indicates here from which field we are expecting
 			if (_children==null) return null;
-			for (int i=_cur; i<_children.length; i++) {
+			int i = indexOf(child,_cur);
+			if (i>=0) {
 				Selector s = _children[i];
-				if (s._name.equals(child)) {
-					if (!s._found) { _cur=i;  s._found=true; }
-					return s;
-				}
+				if (s._found!=_round) { _cur=i;  s._found=_round; }
+				return s;
 			}
 			return (_cur==_children.length) ? __SKIP : null;
 		}		
@@ -0,0 +1,190 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * This class follows the progress of an analysis : the bytes and tokens read so far,
+ * from which the throughput and the remaining time are deduced, and the top level
+ * field being read.<p>
+ *
+ * The {@link Analyzer} reports what it has read every few thousand tokens ; several
+ * analyzers may report to the same Progress, as in the parallel analysis. The listener
+ * is called periodically by a timer thread, and not by the analysis : an analysis that
+ * is stuck keeps being reported, with a current throughput falling to 0.<p>
+ *
+ * Usage : create the Progress with its listener, call {@link #start(long)} before the
+ * analysis and {@link #done()} after it ; {@link PXAdvancedAnalyzer#setProgress(Progress)}
+ * does that for you.
+ *
+ * @see Analyzer#setProgress(Progress)
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class Progress {
+
+	/**
+	 * What is done with the progress of an analysis.
+	 */
+	static public interface Listener {
+		/** called periodically during the analysis, by the timer thread */
+		void progress(Progress p);
+		/** called once when the analysis is over, by the thread running it */
+		void done(Progress p);
+	}
+
+	/**
+	 * A listener printing one line on the console at each call.
+	 */
+	static public class Console implements Listener {
+		private String _name;
+		/**
+		 * @param name name of the analysis, at the beginning of each line
+		 */
+		public Console(String name) { _name = name; }
+		public void progress(Progress p) { System.out.println(_name+" : "+p); }
+		public void done(Progress p)     { System.out.println(_name+" : "+p); }
+	}
+
+	private Listener _listener;
+	private long     _period;     //ms between two calls to the listener
+	private Timer    _timer;
+	private long     _length;     //bytes to read ; 0 if unknown
+	private long     _bytes;      //bytes read
+	private long     _tokens;     //tokens read
+	private String   _section;    //top level field being read
+	private long     _start;      //start time, in ns
+	private long     _end;        //end time, in ns ; 0 while running
+	private long     _lastBytes;  //bytes read at the previous call to the listener
+	private long     _lastTime;   //time of the previous call to the listener
+	private double   _current;    //bytes per second since the previous call to the listener
+
+	/**
+	 * @param listener what is done with the progress
+	 * @param period   time between two calls to the listener, in ms
+	 */
+	public Progress(Listener listener, long period) {
+		_listener = listener;
+		_period   = period;
+	}
+
+	/**
+	 * Starts the clock and the periodic calls to the listener. A Progress that is done
+	 * can be started again, for example when an analysis is run again after a failure :
+	 * it then starts from scratch.
+	 * @param length number of bytes to read ; 0 if unknown
+	 */
+	public synchronized void start(long length) {
+		if (_start!=0 && _end==0) return;
+		_length    = length;
+		_bytes     = 0;
+		_tokens    = 0;
+		_section   = null;
+		_lastBytes = 0;
+		_current   = 0;
+		_end       = 0;
+		_start     = System.nanoTime();
+		_lastTime  = _start;
+		if (_period<=0) return;
+		_timer = new Timer("progress",true);
+		_timer.schedule(new TimerTask() { public void run() { tick(); } },_period,_period);
+	}
+
+	/**
+	 * Stops the periodic calls and calls the listener for the last time.
+	 */
+	public void done() {
+		synchronized (this) {
+			if (_end!=0) return;
+			if (_start==0) start(0);
+			_end = System.nanoTime();
+			if (_timer!=null) _timer.cancel();
+		}
+		_listener.done(this);
+	}
+
+	/**
+	 * Called by the analyzers to report what they have read.
+	 * @param bytes   bytes read since the previous call
+	 * @param tokens  tokens read since the previous call
+	 * @param section top level field being read ; null if unchanged
+	 */
+	synchronized void advance(long bytes, long tokens, String section) {
+		if (_start==0) start(0);
+		_bytes  += bytes;
+		_tokens += tokens;
+		if (section!=null) _section = section;
+	}
+
+	/* periodic call */
+	private void tick() {
+		synchronized (this) {
+			if (_end!=0) return;
+			long now = System.nanoTime();
+			_current   = (now>_lastTime) ? (_bytes-_lastBytes)/((now-_lastTime)/1e9) : 0;
+			_lastBytes = _bytes;
+			_lastTime  = now;
+		}
+		_listener.progress(this);
+	}
+
+	/** @return the number of bytes to read ; 0 if unknown */
+	public synchronized long getLength()  { return _length; }
+	/** @return the number of bytes read */
+	public synchronized long getBytes()   { return _bytes; }
+	/** @return the number of tokens read */
+	public synchronized long getTokens()  { return _tokens; }
+	/** @return the top level field being read ; null if none yet */
+	public synchronized String getSection() { return _section; }
+	/** @return true when the analysis is over */
+	public synchronized boolean isDone()  { return _end!=0; }
+
+	/** @return the time elapsed since the start, in ms */
+	public synchronized long getElapsed() {
+		if (_start==0) return 0;
+		return (((_end!=0) ? _end : System.nanoTime())-_start)/1000000;
+	}
+
+	/** @return the average number of bytes read per second */
+	public synchronized double getBytesPerSecond() {
+		long t = getElapsed();
+		return (t==0) ? 0 : _bytes*1000.0/t;
+	}
+
+	/** @return the average number of tokens read per second */
+	public synchronized double getTokensPerSecond() {
+		long t = getElapsed();
+		return (t==0) ? 0 : _tokens*1000.0/t;
+	}
+
+	/** @return the number of bytes read per second since the previous call to the listener */
+	public synchronized double getCurrentBytesPerSecond() {
+		return _current;
+	}
+
+	/** @return the estimated time left, in ms, at the average throughput ; -1 if unknown */
+	public synchronized long getRemaining() {
+		double r = getBytesPerSecond();
+		if (_length==0 || r==0) return -1;
+		return (long)(Math.max(0,_length-_bytes)*1000/r);
+	}
+
+	public synchronized String toString() {
+		StringBuilder b = new StringBuilder();
+		if (_end!=0)
+			b.append(String.format(Locale.US,"done, %.1f MB in %.1f s",_bytes/1048576.0,getElapsed()/1000.0));
+		else if (_length>0)
+			b.append(String.format(Locale.US,"%.1f%% %.1f/%.1f MB",_bytes*100.0/_length,_bytes/1048576.0,_length/1048576.0));
+		else
+			b.append(String.format(Locale.US,"%.1f MB",_bytes/1048576.0));
+		b.append(String.format(Locale.US,", %.1f MB/s, %.0f tokens/s",getBytesPerSecond()/1048576.0,getTokensPerSecond()));
+		if (_end==0) {
+			b.append(String.format(Locale.US," (now %.1f MB/s)",_current/1048576.0));
+			long r = getRemaining();
+			if (r>=0) b.append(String.format(Locale.US,", %d:%02d left",r/60000,r/1000%60));
+			if (_section!=null) b.append(", in ").append(_section);
+		}
+		return b.toString();
+	}
+
+}
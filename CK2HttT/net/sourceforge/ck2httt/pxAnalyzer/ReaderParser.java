@@ -10,39 +10,68 @@ import net.sourceforge.ck2httt.pxAnalyzer.Token.*;
 /**
  * Allows the breakdown of some data into Tokens.
  * A {@link Tokenizer} implementation based on Reader.
- * This implementation is rather slow and quite strict about
- * what input it accepts.
+ * This implementation is quite strict about what input it accepts.
+ * The Reader is read by chunks, and the character classes are
+ * found in a table, so that it is not much slower than the
+ * {@link FastParser}.
  * 
  * @see Tokenizer
  * @author Copyright 2007 Yves Pr�lot ; distributed under the terms of the GNU General Public License
  */
 public class ReaderParser  implements Tokenizer {
-		
+
+		//character classes for the chars up to 255 ; the others are checked through Character
+		static private final byte   __SPACE = 1;
+		static private final byte   __TOKEN = 2;
+		static private final byte[] __CLASS = new byte[256];
+		static {
+			for (int c=0; c<256; c++) {
+				if (Character.isWhitespace(c)) __CLASS[c] |= __SPACE;
+				if (Character.isLetterOrDigit(c) || c=='_' || c=='-' || c=='.') __CLASS[c] |= __TOKEN;
+			}
+		}
+
 		//for analysis
 	    private int       _cur  = -1;
 	    private int       _next =  0;
 	    private int       _pos  = -2;
 	    private Reader    _r    = null;
 	    private int       _line = 1;
+
+	    //input, read by chunks
+	    private char[]    _in   = new char[1<<14];
+	    private int       _inN  = 0; //number of chars in _in
+	    private int       _inI  = 0; //next char to read in _in
 	    
 	    //for result
 	    private char[]    _b = new char[500];
 	    private int       _i = -1;
+
+	    //cursor : current token
+	    private TokenType _type;
+	    private int       _beg;
+	    private int       _end;
+	    private int       _tline;
+	    //values for the last tokens read ; the size must be a power of 2
+	    private String[]  _vals = new String[8];
+	    private int[]     _vbeg = new int[8];
+	    private int       _v    = 0;
 	
 	    ReaderParser(Reader r) { _r=r; read(); }
 	    
-	    private boolean isTokenChar(int c) { return Character.isLetterOrDigit(c) || c=='_' || c=='-' || c=='.' || (c<=-1 && c>=-64); }
+	    static private boolean isTokenChar(int c) { return (c<256) ? c>=0 && (__CLASS[c]&__TOKEN)!=0 : Character.isLetterOrDigit(c); }
+	    static private boolean isSpace(int c)     { return (c<256) ? c>=0 && (__CLASS[c]&__SPACE)!=0 : Character.isWhitespace(c); }
 	    private void passSpaces()
 	    {
 	    	do {
-	    	    do { read(); if (_cur=='\n') _line++; } while (Character.isWhitespace(_cur));
-	    	    if (_cur=='#') do { read(); } while (_next!='\n');
+	    	    do { read(); if (_cur=='\n') _line++; } while (isSpace(_cur));
+	    	    if (_cur=='#') do { read(); } while (_next!='\n' && _next!=-1);
 	    	    else break;
 	    	}
 	    	while (true);
 	    }
-	    private void passToken() throws IOException        { while (isTokenChar(_next)) read(); }
-	    private void passToChar(int c) throws IOException  { do read(); while (c!=_cur); }
+	    private void passToken()         { while (isTokenChar(_next)) read(); }
+	    private void passToChar(int c)   { do read(); while (c!=_cur && _cur!=-1); }
 	    
 	    /* 
 	     * This is a call to advance fast in the data to get to the next appropriate closing }
@@ -53,79 +82,148 @@ public class ReaderParser  implements Tokenizer {
 	    	int i=0;
 	    	while (i>=0) {
 	    		_cur=_next;
-	    		if (_cur=='{') i++;
-	    		if (_cur=='}') i--;
-	    		if (_cur=='\n') _line++;
-	    	    try {
-	    	    	_pos++;
-	    	       _next=_r.read();
-	    	    }
-	    	    catch (IOException e) {
-	    	       _next=-1;
-	    	       break;
-	    	    }	    		
+	    		if      (_cur=='{')  i++;
+	    		else if (_cur=='}')  i--;
+	    		else if (_cur=='\n') _line++;
+	    		else if (_cur==-1)   break;
+	    		_pos++;
+	    		_next = (_inI<_inN) ? _in[_inI++] : fill();
 	    	}
 	    }
 	    private void read() {
 	    	_cur=_next;
- 	        if (_i>0) _b[_i++]=(char)_cur;
-	    	if (_next!=-1)
-	    	    try {
-	    	       _pos++;
-	    	       _next=_r.read();
-	    	    }
-	    	    catch (IOException e) {
-	    	       _next=-1;
-	    	    }
+ 	        if (_i>0) {
+ 	        	if (_i==_b.length) {
+ 	        		char[] b = new char[2*_i];
+ 	        		System.arraycopy(_b,0,b,0,_i);
+ 	        		_b = b;
+ 	        	}
+ 	        	_b[_i++]=(char)_cur;
+ 	        }
+	    	if (_next!=-1) {
+	    	    _pos++;
+	    	    _next = (_inI<_inN) ? _in[_inI++] : fill();
+	    	}
 	    }
-	    
-	    private Token getString() {
-    		int start=_pos; _i=1; _b[0]=(char)_cur;
+	    /* reads the next chunk of input and returns it's first char ; -1 at the end of the data */
+	    private int fill() {
 	    	try {
-	    		passToChar('"');
-    		    Token t = new Token(TokenType.TOKEN,start,_pos,new String(_b,0,_i),_line);
-    		    //Token t = new Token(TokenType.TOKEN,start,_pos,null);
-	    		_i=-1;
-	    		return t;
+	    		int n;
+	    		do n=_r.read(_in,0,_in.length); while (n==0);
+	    		if (n<0) return -1;
+	    		_inN = n;
+	    		_inI = 1;
+	    		return _in[0];
 	    	}
 	    	catch (IOException e) {
-	    		return new Token(TokenType.ERROR,start,start,"",_line);
+	    		return -1;
 	    	}
 	    }
 	    
-	    private Token getOther() {
-	    	if (isTokenChar(_cur))
-	    	    try {
-	    	    	int start=_pos; _i=1; _b[0]=(char)_cur;
-	    		    passToken();
-	    		    Token t = new Token(TokenType.TOKEN,start,_pos,new String(_b,0,_i),_line);
-	    		    //Token t = new Token(TokenType.TOKEN,start,_pos,null);
-	    	    	_i=-1;
-	    	    	return t;
-	    	    }
-	    	    catch (IOException e) {
-	    	    }
-	    	return new Token(TokenType.ERROR,_pos,_pos,"",_line);
+	    private TokenType set(TokenType type, int beg, int end) {
+	    	_type  = type;
+	    	_beg   = beg;
+	    	_end   = end;
+	    	_tline = _line;
+	    	return type;
 	    }
-	    
-	    public Token getNext() {
+
+	    /* remembers the value of the token just read so that value() can find it */
+	    private TokenType set(TokenType type, int beg, int end, String value) {
+	    	_v = (_v+1) & (_vals.length-1);
+	    	_vals[_v] = value;
+	    	_vbeg[_v] = beg;
+	    	return set(type,beg,end);
+	    }
+
+	    private TokenType getString() {
+    		int start=_pos; _i=1; _b[0]=(char)_cur;
+    		passToChar('"');
+    		int l=_i;
+    		_i=-1;
+    		if (_cur==-1) return set(TokenType.ERROR,start,start);
+    		return set(TokenType.TOKEN,start,_pos,new String(_b,0,l));
+	    }
+
+	    private TokenType getOther() {
+	    	if (isTokenChar(_cur)) {
+	    		int start=_pos; _i=1; _b[0]=(char)_cur;
+	    		passToken();
+	    		TokenType t = set(TokenType.TOKEN,start,_pos,new String(_b,0,_i));
+	    		_i=-1;
+	    		return t;
+	    	}
+	    	return set(TokenType.ERROR,_pos,_pos);
+	    }
+
+	    public TokenType next() {
 	    	passSpaces();
 	    	switch (_cur) {
-	    	    case '{' : return new Token(TokenType.OPEN,_pos,_pos,null,_line);
-	    	    case '}' : return new Token(TokenType.CLOSE,_pos,_pos,null,_line);
-	    	    case '=' : return new Token(TokenType.EQUAL,_pos,_pos,null,_line);
-	    	    case -1  : return new Token(TokenType.END,_pos,_pos,null,_line);
+	    	    case '{' : return set(TokenType.OPEN,_pos,_pos);
+	    	    case '}' : return set(TokenType.CLOSE,_pos,_pos);
+	    	    case '=' : return set(TokenType.EQUAL,_pos,_pos);
+	    	    case -1  : return set(TokenType.END,_pos,_pos);
 	    	    case '"' : return getString();
 	    	    default  : return getOther();
 	    	}
 	    }
-	    public Token getNextClose() {
+	    public TokenType nextClose() {
 	    	passToClose();
-	    	return (_cur=='}') ? new Token(TokenType.CLOSE,_pos,_pos,null,_line) :
-	    		                 new Token(TokenType.END,_pos,_pos,null,_line);
+	    	return (_cur=='}') ? set(TokenType.CLOSE,_pos,_pos) :
+	    		                 set(TokenType.END,_pos,_pos);
+	    }
+	    public int begin() { return _beg;   }
+	    public int end()   { return _end;   }
+	    public int line()  { return _tline; }
+
+	    /**
+	     * The data is not kept : only the values of the last tokens read are reachable.
+	     */
+	    public String value(int beg, int end) {
+	    	for (int i=0; i<_vals.length; i++) {
+	    		int k = (_v-i) & (_vals.length-1);
+	    		if (_vbeg[k]==beg && _vals[k]!=null) return _vals[k];
+	    	}
+	    	throw new IllegalStateException("token value no longer available at "+beg);
+	    }
+
+	    public String symbol(int beg, int end, SymbolTable symbols) {
+	    	return symbols.get(value(beg,end));
+	    }
+
+	    public int bytes(int beg, int end, byte[] buf) {
+	    	String v = value(beg,end);
+	    	int l = v.length();
+	    	if (l<=buf.length)
+	    		for (int i=0; i<l; i++) {
+	    			char c = v.charAt(i);
+	    			buf[i] = (c<0x80) ? (byte)c : (byte)-1;
+	    		}
+	    	return l;
+	    }
+
+	    /* builds a Token from the cursor */
+	    private Token token() {
+	    	switch (_type) {
+	    	    case TOKEN : return new Token(_type,_beg,_end,_vals[_v],_tline);
+	    	    case ERROR : return new Token(_type,_beg,_end,"",_tline);
+	    	    default    : return new Token(_type,_beg,_end,null,_tline);
+	    	}
+	    }
+
+	    public Token getNext() {
+	    	next();
+	    	return token();
+	    }
+	    public Token getNextClose() {
+	    	nextClose();
+	    	return token();
 	    }
 		public int getPos() {
 			return _pos;
 		}
+		public long position() {
+			return _pos;
+		}
 	
 }
@@ -0,0 +1,369 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.sourceforge.ck2httt.pxAnalyzer.FileCollapser.ExploredField;
+import net.sourceforge.ck2httt.pxAnalyzer.FileCollapser.ExploredField.FieldType;
+import net.sourceforge.ck2httt.pxAnalyzer.FileCollapser.ValueSketch;
+
+/**
+ * This class generates the Java source of typed records from the structure of the data,
+ * as found by the {@link FileCollapser}. The generated class describes one top level
+ * structure (for example character) : it has a public field for each field found in
+ * that structure, and a nested Loader class, derived from {@link TypedHooks}, which
+ * fills a list of such records during the analysis. No tree is built, and no field is
+ * looked up by its name.<p>
+ *
+ * The type of each field is chosen from the values found :
+ * <ul>
+ * <li>int for integers, and for dates (as year*10000+month*100+day)</li>
+ * <li>double for other numbers</li>
+ * <li>boolean for yes/no</li>
+ * <li>String (without the quotes) for anything else</li>
+ * <li>a nested record class for a structure, a list for a list of values</li>
+ * <li>a list of these for a field found more than once in the same structure</li>
+ * </ul>
+ * The fields which cannot be described this way (anonymous structures, fields found
+ * both as a value and as a structure, numeric names...) are left aside, with a comment.
+ * The data must match the structure it was generated from : a value of another kind
+ * is read as 0 or as false.<p>
+ *
+ * Usage : SchemaGenerator save|directory field package class [output directory]
+ *
+ * @see TypedHooks
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class SchemaGenerator {
+
+	//class names that would hide a class used by the generated code
+	static final private Set<String> __RESERVED = new HashSet<String>(Arrays.asList(new String[] {
+		"Object","String","Integer","Double","Boolean","Class","ArrayList","Token","TypedHooks","Record","IntList","Loader"
+	}));
+
+	private LinkedHashMap<String,Integer> _names   = new LinkedHashMap<String,Integer>(); //number of each name
+	private Set<String>                   _classes = new HashSet<String>(__RESERVED);    //class names in use
+	private StringBuilder                 _out     = new StringBuilder();
+
+	private SchemaGenerator() {
+	}
+
+	/* a generated field */
+	static private class Member {
+		ExploredField _f;
+		String        _java;  //name of the Java field
+		String        _type;  //type of a value : int, double, boolean, String, or the record class
+		boolean       _many;  //repeated field
+		boolean       _list;  //list of values
+		String        _item;  //type of the list items
+		int           _id;    //number of the name
+	}
+
+	/**
+	 * Generates the records for a top level structure.
+	 * @param schema the structure of the data, as returned by {@link FileCollapser#analyze}
+	 * @param top    name of the top level structure to describe
+	 * @param pkg    package of the generated class ; null for the default package
+	 * @param cls    name of the generated class
+	 * @return the Java source
+	 * @throws IllegalArgumentException if there is no such structure in the schema
+	 */
+	static public String generate(ExploredField schema, String top, String pkg, String cls) {
+		ExploredField f = (schema==null) ? null : schema.findField(top);
+		if (f==null || !f._types.contains(FieldType.STRUCT) || f._subFields==null)
+			throw new IllegalArgumentException("no structure named "+top+" in the schema");
+		SchemaGenerator g = new SchemaGenerator();
+		g.id(top);
+		g._classes.add(cls);
+		StringBuilder body = new StringBuilder();
+		g.record(body,f,cls,"public",1);
+		StringBuilder s = g._out;
+		if (pkg!=null && pkg.length()>0) s.append("package ").append(pkg).append(";\n\n");
+		s.append("import java.util.ArrayList;\n\n");
+		s.append("import net.sourceforge.ck2httt.pxAnalyzer.Token;\n");
+		s.append("import net.sourceforge.ck2httt.pxAnalyzer.TypedHooks;\n");
+		s.append("import net.sourceforge.ck2httt.pxAnalyzer.TypedHooks.IntList;\n");
+		s.append("import net.sourceforge.ck2httt.pxAnalyzer.TypedHooks.Record;\n\n");
+		s.append("/**\n * Record for the ").append(top).append(" structures ; generated by SchemaGenerator, do not edit.\n */\n");
+		s.append(body);
+		//the name table and the loader go inside the top class, before its closing brace
+		s.setLength(s.length()-3);
+		s.append("\n\t//names of the fields ; the number of a name is its index\n");
+		s.append("\tstatic final String[] __NAMES = {");
+		int n = 0;
+		for (String name : g._names.keySet()) {
+			s.append((n++%8==0) ? "\n\t\t" : " ").append('"').append(name).append("\",");
+		}
+		s.append("\n\t};\n\n");
+		s.append("\t/**\n\t * Hooks collecting all the top level ").append(top).append(" structures.\n\t */\n");
+		s.append("\tstatic public class Loader extends TypedHooks {\n");
+		s.append("\t\tpublic ArrayList<").append(cls).append("> _list = new ArrayList<").append(cls).append(">();\n");
+		s.append("\t\tpublic Loader() { super(__NAMES); }\n");
+		s.append("\t\tprotected Record root() {\n");
+		s.append("\t\t\treturn new Record() {\n");
+		s.append("\t\t\t\tprotected Record struct(int name) {\n");
+		s.append("\t\t\t\t\tif (name!=0) return null;\n");
+		s.append("\t\t\t\t\t").append(cls).append(" r = new ").append(cls).append("();\n");
+		s.append("\t\t\t\t\t_list.add(r);\n");
+		s.append("\t\t\t\t\treturn r;\n");
+		s.append("\t\t\t\t}\n");
+		s.append("\t\t\t};\n");
+		s.append("\t\t}\n");
+		s.append("\t}\n");
+		s.append("}\n");
+		return s.toString();
+	}
+
+	/* number of a name in the generated table */
+	private int id(String name) {
+		Integer i = _names.get(name);
+		if (i==null) _names.put(name, i=_names.size());
+		return i;
+	}
+
+	/* a name usable in Java, built from a field name */
+	static private String identifier(String name) {
+		StringBuilder b = new StringBuilder(name.length());
+		for (int i=0; i<name.length(); i++) {
+			char c = name.charAt(i);
+			b.append((c<128 && Character.isLetterOrDigit(c)) ? c : '_');
+		}
+		return b.toString();
+	}
+
+	/* a class name not used yet, built from a field name */
+	private String className(String name) {
+		String b = identifier(name);
+		StringBuilder c = new StringBuilder();
+		boolean up = true;
+		for (int i=0; i<b.length(); i++) {
+			char x = b.charAt(i);
+			if (x=='_') { up=true; continue; }
+			c.append((up) ? Character.toUpperCase(x) : x);
+			up = false;
+		}
+		String s = c.toString();
+		for (int i=2; _classes.contains(s); i++) s = c.toString()+i;
+		_classes.add(s);
+		return s;
+	}
+
+	/* Java type for the values described ; null if they have no common type */
+	static private String type(ValueSketch v) {
+		if (v==null || v._kinds==0)                                   return null;
+		if ((v._kinds & ~ValueSketch.INT)==0)                         return "int";
+		if ((v._kinds & ~(ValueSketch.INT|ValueSketch.DECIMAL))==0)   return "double";
+		if (v._kinds==ValueSketch.BOOL)                               return "boolean";
+		if (v._kinds==ValueSketch.DATE)                               return "date";
+		return "String";
+	}
+
+	/* expression converting the token data to the given type */
+	static private String convert(String type) {
+		if (type.equals("int"))     return "TypedHooks.asInt(data)";
+		if (type.equals("double"))  return "TypedHooks.asDouble(data)";
+		if (type.equals("boolean")) return "TypedHooks.asBoolean(data)";
+		if (type.equals("date"))    return "TypedHooks.asDate(data)";
+		return "TypedHooks.unquoted(data)";
+	}
+
+	/* type of a single value in a field */
+	static private String single(String type) {
+		return (type.equals("date")) ? "int" : type;
+	}
+
+	/* type of a list of values */
+	static private String many(String type) {
+		if (type.equals("int") || type.equals("date")) return "IntList";
+		if (type.equals("double"))  return "ArrayList<Double>";
+		if (type.equals("boolean")) return "ArrayList<Boolean>";
+		if (type.equals("String"))  return "ArrayList<String>";
+		return "ArrayList<"+type+">";
+	}
+
+	static private void indent(StringBuilder s, int depth) {
+		for (int i=0; i<depth; i++) s.append('\t');
+	}
+
+	/* generates the record class for the structure f at the given depth */
+	private void record(StringBuilder s, ExploredField f, String cls, String modifiers, int depth) {
+		ArrayList<Member>  members = new ArrayList<Member>();
+		ArrayList<String>  ignored = new ArrayList<String>();
+		Set<String>        javas   = new HashSet<String>();
+		Map<Member,ExploredField> subs = new LinkedHashMap<Member,ExploredField>();
+		for (ExploredField x : f._subFields) {
+			Set<FieldType> t = x._types;
+			String why = null;
+			Member m = new Member();
+			m._f    = x;
+			m._many = x._occMax>1;
+			if (x._name.length()==0 || !Character.isLetter(x._name.charAt(0)) && x._name.charAt(0)!='_')
+				why = "unsupported name";
+			else if (t.contains(FieldType.ANON))
+				why = "anonymous structures";
+			else if (t.contains(FieldType.BASE) && t.size()>1)
+				why = "both value and structure";
+			else if (t.contains(FieldType.STRUCT) && t.contains(FieldType.LIST))
+				why = "both list and structure";
+			else if (t.contains(FieldType.STRUCT)) {
+				if (x._subFields==null) why = "no fields";
+				else {
+					m._type = className(x._name);
+					subs.put(m,x);
+				}
+			}
+			else if (t.contains(FieldType.LIST)) {
+				String i = type(x._values);
+				if (i==null) why = "no values";
+				else {
+					m._list = true;
+					m._item = i;
+					m._type = many(i);
+				}
+			}
+			else if (t.contains(FieldType.BASE)) {
+				m._type = type(x._values);
+				if (m._type==null) why = "no values";
+			}
+			else
+				why = "always empty";
+			if (why!=null) { ignored.add(x._name+" ("+why+")"); continue; }
+			String j = "_"+identifier(x._name);
+			String b = j;
+			for (int i=2; !javas.add(j); i++) j = b+i;
+			m._java = j;
+			m._id   = id(x._name);
+			members.add(m);
+		}
+
+		//class and fields
+		indent(s,depth-1); s.append(modifiers).append(" class ").append(cls).append(" extends Record {\n");
+		if (!ignored.isEmpty()) {
+			indent(s,depth); s.append("//ignored :");
+			for (String i : ignored) s.append(' ').append(i);
+			s.append('\n');
+		}
+		for (Member m : members) {
+			String type = (m._list) ? m._type : single(m._type);
+			if (m._many) type = (m._list) ? "ArrayList<"+type+">" : many(m._type);
+			indent(s,depth); s.append("public ").append(type).append(' ').append(m._java).append(";\n");
+		}
+		s.append('\n');
+
+		//structures
+		boolean any = false;
+		for (Member m : members) if (subs.containsKey(m)) any = true;
+		if (any) {
+			indent(s,depth); s.append("protected Record struct(int name) {\n");
+			indent(s,depth+1); s.append("switch (name) {\n");
+			for (Member m : members) {
+				if (!subs.containsKey(m)) continue;
+				indent(s,depth+2); s.append("case ").append(m._id).append(" : {\n");
+				indent(s,depth+3); s.append(m._type).append(" r = new ").append(m._type).append("();\n");
+				if (m._many) {
+					indent(s,depth+3); s.append("if (").append(m._java).append("==null) ").append(m._java).append(" = new ").append(many(m._type)).append("();\n");
+					indent(s,depth+3); s.append(m._java).append(".add(r);\n");
+				}
+				else {
+					indent(s,depth+3); s.append(m._java).append(" = r;\n");
+				}
+				indent(s,depth+3); s.append("return r;\n");
+				indent(s,depth+2); s.append("}\n");
+			}
+			indent(s,depth+1); s.append("}\n");
+			indent(s,depth+1); s.append("return null;\n");
+			indent(s,depth); s.append("}\n\n");
+		}
+
+		//lists
+		any = false;
+		for (Member m : members) if (m._list) any = true;
+		if (any) {
+			indent(s,depth); s.append("protected boolean list(int name) {\n");
+			indent(s,depth+1); s.append("switch (name) {\n");
+			for (Member m : members) {
+				if (!m._list) continue;
+				indent(s,depth+2); s.append("case ").append(m._id).append(" : ");
+				if (m._many)
+					s.append("if (").append(m._java).append("==null) ").append(m._java).append(" = new ArrayList<").append(m._type).append(">(); ")
+					 .append(m._java).append(".add(new ").append(m._type).append("()); return true;\n");
+				else
+					s.append(m._java).append(" = new ").append(m._type).append("(); return true;\n");
+			}
+			indent(s,depth+1); s.append("}\n");
+			indent(s,depth+1); s.append("return false;\n");
+			indent(s,depth); s.append("}\n\n");
+			indent(s,depth); s.append("protected void item(int name, Token data) {\n");
+			indent(s,depth+1); s.append("switch (name) {\n");
+			for (Member m : members) {
+				if (!m._list) continue;
+				String l = (m._many) ? m._java+".get("+m._java+".size()-1)" : m._java;
+				indent(s,depth+2); s.append("case ").append(m._id).append(" : ").append(l).append(".add(").append(convert(m._item)).append("); break;\n");
+			}
+			indent(s,depth+1); s.append("}\n");
+			indent(s,depth); s.append("}\n\n");
+		}
+
+		//values
+		any = false;
+		for (Member m : members) if (!m._list && !subs.containsKey(m)) any = true;
+		if (any) {
+			indent(s,depth); s.append("protected void base(int name, Token data) {\n");
+			indent(s,depth+1); s.append("switch (name) {\n");
+			for (Member m : members) {
+				if (m._list || subs.containsKey(m)) continue;
+				indent(s,depth+2); s.append("case ").append(m._id).append(" : ");
+				if (m._many)
+					s.append("if (").append(m._java).append("==null) ").append(m._java).append(" = new ").append(many(m._type)).append("(); ")
+					 .append(m._java).append(".add(").append(convert(m._type)).append("); break;\n");
+				else
+					s.append(m._java).append(" = ").append(convert(m._type)).append("; break;\n");
+			}
+			indent(s,depth+1); s.append("}\n");
+			indent(s,depth); s.append("}\n\n");
+		}
+
+		//nested records
+		for (Member m : members) {
+			ExploredField x = subs.get(m);
+			if (x!=null) record(s,x,m._type,"static public",depth+1);
+		}
+
+		if (s.charAt(s.length()-2)=='\n') s.setLength(s.length()-1);
+		indent(s,depth-1); s.append("}\n\n");
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length<4) {
+			System.out.println("usage : SchemaGenerator save|directory field package class [output directory]");
+			return;
+		}
+		File in = new File(args[0]);
+		ExploredField schema = (in.isDirectory()) ?
+				FileCollapser.analyze(in,Runtime.getRuntime().availableProcessors()) :
+				FileCollapser.analyze(new File[]{in},1);
+		String src = generate(schema,args[1],args[2],args[3]);
+		if (args.length<5) {
+			System.out.print(src);
+			return;
+		}
+		File dir = new File(args[4],args[2].replace('.',File.separatorChar));
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create "+dir);
+		Writer w = new OutputStreamWriter(new FileOutputStream(new File(dir,args[3]+".java")),"ISO-8859-1");
+		try {
+			w.write(src);
+		}
+		finally {
+			w.close();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+/**
+ * This class keeps one canonical String for each symbol (usually a field name) met
+ * in the data, along with a small integer id for it.<p>
+ *
+ * Symbols can be looked up directly from a range of bytes in the data : a symbol
+ * that is already known is then found without building any String. This is what
+ * happens for the vast majority of the field names in a save file (id, type, tag...).
+ * The Strings are interned : a name is usually the same instance as the literal
+ * used to look it up in the tree, which makes the comparison immediate.<p>
+ *
+ * The table can be shared by several analyses running in parallel : the lookups
+ * don't lock, and only the insertion of a new symbol is synchronized.<p>
+ *
+ * @see PXTree.BaseData
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class SymbolTable {
+
+	/* a symbol in the table ; immutable, so that it can be read without locking */
+	static private final class Symbol {
+		final String _name;
+		final int    _hash;
+		final int    _id;
+		Symbol(String name, int hash, int id) { _name=name; _hash=hash; _id=id; }
+	}
+
+	private volatile Symbol[] _table = new Symbol[1024]; //open addressing, never more than half full
+	private Symbol[]          _byId  = new Symbol[512];  //symbols by id
+	private int               _n     = 0;                //number of symbols
+
+	/**
+	 * @return the canonical String for that name
+	 */
+	public String get(String name) {
+		return find(name)._name;
+	}
+
+	/**
+	 * @return the canonical String for the bytes in data from beg (included) to
+	 *         end (excluded) ; no String is built if the symbol is already known.
+	 */
+	public String get(byte[] data, int beg, int end) {
+		return find(data,beg,end)._name;
+	}
+
+	/**
+	 * @return the id for that name ; ids are allocated from 0 in the order the
+	 *         symbols are met.
+	 */
+	public int id(String name) {
+		return find(name)._id;
+	}
+
+	/**
+	 * @return the id for the bytes in data from beg (included) to end (excluded)
+	 */
+	public int id(byte[] data, int beg, int end) {
+		return find(data,beg,end)._id;
+	}
+
+	/**
+	 * @return the symbol with the given id, null if there is none
+	 */
+	synchronized public String name(int id) {
+		return (id<0 || id>=_n) ? null : _byId[id]._name;
+	}
+
+	/**
+	 * @return the number of symbols in the table
+	 */
+	synchronized public int size() {
+		return _n;
+	}
+
+	static private int spread(int h) {
+		return h ^ (h>>>16);
+	}
+
+	static private boolean equals(String s, byte[] data, int beg, int end) {
+		if (s.length()!=end-beg) return false;
+		for (int i=beg; i<end; i++)
+			if (s.charAt(i-beg)!=data[i]) return false;
+		return true;
+	}
+
+	private Symbol find(String name) {
+		int h = name.hashCode();
+		Symbol[] t = _table;
+		int m = t.length-1;
+		for (int i=spread(h)&m; t[i]!=null; i=(i+1)&m)
+			if (t[i]._hash==h && t[i]._name.equals(name)) return t[i];
+		return add(name,h);
+	}
+
+	private Symbol find(byte[] data, int beg, int end) {
+		int h = 0;
+		for (int i=beg; i<end; i++) { //same as String.hashCode for ASCII data
+			if (data[i]<0) //not ASCII : decode it the way the parsers do
+				return find(new String(data,beg,end-beg));
+			h = 31*h + data[i];
+		}
+		Symbol[] t = _table;
+		int m = t.length-1;
+		for (int i=spread(h)&m; t[i]!=null; i=(i+1)&m)
+			if (t[i]._hash==h && equals(t[i]._name,data,beg,end)) return t[i];
+		return add(new String(data,beg,end-beg),h);
+	}
+
+	/* adds a new symbol ; it may have been added by another thread in the meantime */
+	synchronized private Symbol add(String name, int h) {
+		Symbol[] t = _table;
+		int m = t.length-1;
+		int i = spread(h)&m;
+		for (; t[i]!=null; i=(i+1)&m)
+			if (t[i]._hash==h && t[i]._name.equals(name)) return t[i];
+		Symbol s = new Symbol(name.intern(),h,_n); //so that it is the same String as the literals in the code
+		if (_n==_byId.length) {
+			Symbol[] b = new Symbol[_n*2];
+			System.arraycopy(_byId,0,b,0,_n);
+			_byId = b;
+		}
+		_byId[_n++] = s;
+		if (2*_n>t.length) { //grow : the new table is only visible once complete
+			t = new Symbol[t.length*2];
+			m = t.length-1;
+			for (int k=0; k<_n; k++) {
+				int j = spread(_byId[k]._hash)&m;
+				while (t[j]!=null) j=(j+1)&m;
+				t[j] = _byId[k];
+			}
+			_table = t;
+		}
+		else
+			t[i] = s;
+		return s;
+	}
+
+}
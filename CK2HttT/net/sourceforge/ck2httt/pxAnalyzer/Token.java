@@ -3,20 +3,69 @@ package net.sourceforge.ck2httt.pxAnalyzer;
 /**
  * This class represents any data that has been read during the analysis.<p>
  * 
+ * A Token is normally a plain immutable value. However, the {@link Analyzer} may
+ * also hand over <i>flyweight</i> Tokens to the Hooks that declare they can cope
+ * with them (see {@link Analyzer.FlyweightHooks}) : these are reused for each new
+ * token read, and their String value is only built when {@link #value()} is called.
+ * Such a Token must not be kept : use {@link #keep()} to get one that can.<p>
+ *
+ * The fields can only be changed from within this package, by the Tokenizers and
+ * the Analyzer ; everywhere else, a Token is read through its accessors.<p>
+ *
  * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
  */
 public class Token {
 
 	/**
-	 * The interface defining the methods required by Analyzer.
+	 * The interface defining the methods required by Analyzer.<p>
+	 *
+	 * The first three methods return a new Token for each call. The other methods
+	 * implement a <i>cursor</i> mode, in which the Tokenizer only exposes the
+	 * characteristics of the token it is currently positioned on : nothing is
+	 * allocated, and the String value is only built on request.<p>
 	 */
-	public interface Tokenizer {
+	public interface Tokenizer extends Values {
 		/** Returns the next CLOSE Token that closes the current structure. */
 	    Token getNextClose();
 	    /** Returns the next token in the flow */
 	    Token getNext();
 	    /** Returns the current position in the data ; used only in case of error. */
 	    int   getPos();
+	    /** Same as getPos(), but doesn't wrap around on data larger than 2GB ; used for the progress. */
+	    long  position();
+	    /** Cursor mode : moves to the next token in the flow and returns its type. */
+	    TokenType next();
+	    /** Cursor mode : moves to the next CLOSE that closes the current structure and returns its type (CLOSE or END). */
+	    TokenType nextClose();
+	    /** Cursor mode : position of the first character of the current token. */
+	    int   begin();
+	    /** Cursor mode : position of the last character of the current token. */
+	    int   end();
+	    /** Cursor mode : line where the current token was read. */
+	    int   line();
+	};
+	/**
+	 * The interface through which a flyweight Token gets it's value from the data,
+	 * as identified by the begin() and end() of that token.<p>
+	 */
+	public interface Values {
+	    /**
+	     * Builds the String value of a token that was recently read, as identified by
+	     * the begin() and end() values it was read with. Only the last few tokens are
+	     * guaranteed to be reachable in this way.
+	     */
+	    String value(int begin, int end);
+	    /**
+	     * Same as value(begin,end), but returns the canonical String for that value in
+	     * the symbol table ; the String is only built if the symbol is a new one.
+	     */
+	    String symbol(int begin, int end, SymbolTable symbols);
+	    /**
+	     * Copies the bytes of a token that was recently read into buf, as for value(begin,end) ;
+	     * nothing is copied if buf is too small. Characters that are not ASCII give negative bytes.
+	     * @return the number of bytes in the token
+	     */
+	    int bytes(int begin, int end, byte[] buf);
 	};
 
 	// PX Tokens:
@@ -35,23 +84,29 @@ public class Token {
 	 * Kind of data for that PXTokens ; the Hook interface will only receive TOKEN
 	 * and STRING
 	 */
-	final public TokenType _token;
+	TokenType _token;
 	/**
 	 * Position of the first character of that PXTokens in the data flow
 	 */
-	final public int _beg;
+	int _beg;
 	/**
 	 * Position of the last character of that PXTokens in the data flow
 	 */
-	final public int _end;
+	int _end;
 	/**
-	 * Value of the token converted as a Java String
+	 * Value of the token converted as a Java String ; for a flyweight Token,
+	 * this stays null until {@link #value()} is called.
 	 */
-	final public String _value;
+	String _value;
 	/**
 	 * Line where this PXTokens was read
 	 */
-	final public int _line;
+	int _line;
+	/**
+	 * Data from which a flyweight Token gets it's value ; null for a
+	 * normal Token.
+	 */
+	private Values _source;
 
 	/**
 	 * Constructor
@@ -76,22 +131,166 @@ public class Token {
 	}
 
 	/**
-	 * Constructor by copy
+	 * Constructor by copy ; the copy is never a flyweight.
 	 */
 	public Token(Token t) {
 		_token = t._token;
 		_beg = t._beg;
 		_end = t._end;
-		_value = t._value;
+		_value = t.value();
+		_line = t._line;
+	}
+
+	/**
+	 * @return the kind of data for that Token
+	 */
+	public TokenType type() {
+		return _token;
+	}
+
+	/**
+	 * @return the position of the first character of that Token in the data flow
+	 */
+	public int begin() {
+		return _beg;
+	}
+
+	/**
+	 * @return the position of the last character of that Token in the data flow
+	 */
+	public int end() {
+		return _end;
+	}
+
+	/**
+	 * @return the line where that Token was read
+	 */
+	public int line() {
+		return _line;
+	}
+
+	/**
+	 * Constructor for a flyweight Token ; used by the Analyzer.
+	 * @param source the Tokenizer (or other data) that provides the values
+	 */
+	Token(Values source) {
+		_source = source;
+	}
+
+	/**
+	 * Makes a flyweight Token describe a new token.
+	 */
+	final void set(TokenType token, int begin, int end, int line) {
+		_token = token;
+		_beg = begin;
+		_end = end;
+		_value = null;
+		_line = line;
+	}
+
+	/**
+	 * Makes a Token reused by the package describe a new token, with its value.
+	 */
+	final void set(TokenType token, int begin, int end, String value, int line) {
+		_token = token;
+		_beg = begin;
+		_end = end;
+		_value = value;
+		_line = line;
+	}
+
+	/**
+	 * Makes this Token a copy of t, including it's value. Used by the Hooks which
+	 * remember the last name seen in a buffer of their own rather than allocating
+	 * a new Token each time ; the copy remains a flyweight if t is one.
+	 * @return this
+	 */
+	final Token copy(Token t) {
+		return copy(t,null);
+	}
+
+	/**
+	 * Same as copy(t), except that the value is taken from the symbol table.
+	 * @param symbols the symbol table to use ; null for none
+	 * @return this
+	 */
+	final Token copy(Token t, SymbolTable symbols) {
+		_token = t._token;
+		_beg = t._beg;
+		_end = t._end;
+		_value = (symbols==null) ? t.value() : t.symbol(symbols);
 		_line = t._line;
+		_source = t._source;
+		return this;
+	}
+
+	/**
+	 * Value of the token converted as a Java String.<p>
+	 * For a normal Token, this is _value ; for a flyweight Token, the value
+	 * is built on the first call.
+	 */
+	public String value() {
+		if (_value==null && _source!=null) {
+			if (_token==TokenType.TOKEN || _token==TokenType.STRING)
+				_value = _source.value(_beg, _end);
+			else if (_token==TokenType.ERROR)
+				_value = "";
+		}
+		return _value;
+	}
+
+	/**
+	 * Canonical value of the token in the symbol table.<p>
+	 * For a flyweight Token whose value was not requested yet, the String is only
+	 * built if the value is a new symbol.
+	 */
+	public String symbol(SymbolTable symbols) {
+		if (_value==null && _source!=null && (_token==TokenType.TOKEN || _token==TokenType.STRING))
+			return _value = _source.symbol(_beg, _end, symbols);
+		return (_value==null) ? null : symbols.get(_value);
+	}
+
+	/**
+	 * Copies the bytes of the token into buf ; nothing is copied if buf is too small.
+	 * For a flyweight Token whose value was not requested yet, no String is built.
+	 * @return the number of bytes in the token ; -1 if it has no value
+	 */
+	public int bytes(byte[] buf) {
+		if (_value==null && _source!=null && (_token==TokenType.TOKEN || _token==TokenType.STRING))
+			return _source.bytes(_beg, _end, buf);
+		String v = value();
+		if (v==null) return -1;
+		int l = v.length();
+		if (l<=buf.length)
+			for (int i=0; i<l; i++) {
+				char c = v.charAt(i);
+				buf[i] = (c<0x80) ? (byte)c : (byte)-1;
+			}
+		return l;
+	}
+
+	/**
+	 * @return true if this Token is a flyweight that will be reused by the Analyzer.
+	 */
+	public boolean isFlyweight() {
+		return _source!=null;
+	}
+
+	/**
+	 * Gets a Token that can safely be kept after the current Hooks call returns.
+	 * @return this for a normal Token, a copy for a flyweight.
+	 */
+	public Token keep() {
+		return (_source==null) ? this : new Token(this);
 	}
 
 	/**
 	 * Visual representation of the PXTokens, showing both Type and Value
 	 */
 	public String toString() {
-		return (_value != null && _value.length() > 0) ? _token.name() + " ("
-				+ _value + ", line:" + _line + ")" : _token.name() + "(line:"
+		String v = value();
+		return (v != null && v.length() > 0) ? _token.name() + " ("
+				+ v + ", line:" + _line + ")" : _token.name() + "(line:"
 				+ _line + ")";
 	}
 };
@@ -0,0 +1,236 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.FlyweightHooks;
+
+/**
+ * This class is the base for Hooks that fill typed objects ({@link Record}) directly
+ * during the analysis, without building any {@link PXTree}. The classes for such
+ * records are usually generated by the {@link SchemaGenerator} from the structure of
+ * the data, as found by the {@link FileCollapser}.<p>
+ *
+ * The field names are known in advance and numbered : each name met in the data is
+ * turned into it's number through a {@link SymbolTable}, without building any String,
+ * and the records receive their fields by number. The values are decoded directly
+ * from the data. The fields and structures a record doesn't know are skipped.<p>
+ *
+ * Anonymous structures are not supported : they are skipped.<p>
+ *
+ * @see SchemaGenerator
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public abstract class TypedHooks implements FlyweightHooks {
+
+	/**
+	 * A record receiving the content of a structure. All methods do nothing by default.
+	 */
+	static public abstract class Record {
+		/**
+		 * Called for a sub-structure.
+		 * @param name number of the structure name
+		 * @return the record to fill with the sub-structure ; null to skip it.
+		 */
+		protected Record struct(int name) { return null; }
+		/**
+		 * Called at the beginning of a list ; its items are then given to {@link #item}.
+		 * @param name number of the list name
+		 * @return true if the list is wanted ; false to skip it.
+		 */
+		protected boolean list(int name) { return false; }
+		/**
+		 * Called for a simple field.
+		 * @param name number of the field name
+		 * @param data the value ; it is a flyweight that cannot be kept.
+		 */
+		protected void base(int name, Token data) { }
+		/**
+		 * Called for each item of a list.
+		 * @param name number of the list name
+		 * @param data the item ; it is a flyweight that cannot be kept.
+		 */
+		protected void item(int name, Token data) { }
+	}
+
+	/**
+	 * A growable array of int, for the lists of numbers.
+	 */
+	static public final class IntList {
+		private int[] _items = new int[4];
+		private int   _size  = 0;
+		public void add(int v) {
+			if (_size==_items.length) {
+				int[] a = new int[2*_size];
+				System.arraycopy(_items,0,a,0,_size);
+				_items = a;
+			}
+			_items[_size++] = v;
+		}
+		public int get(int i) {
+			if (i>=_size) throw new IndexOutOfBoundsException("Index: "+i+", Size: "+_size);
+			return _items[i];
+		}
+		public int size() {
+			return _size;
+		}
+		public int[] toArray() {
+			int[] a = new int[_size];
+			System.arraycopy(_items,0,a,0,_size);
+			return a;
+		}
+	}
+
+	private SymbolTable _names   = new SymbolTable();
+	private int         _known;                     //number of names known in advance
+	private Record[]    _stack   = new Record[32];  //records being filled ; null when skipped
+	private int         _depth   = 0;
+	private int         _name    = -1;              //number of the last name met
+	private int[]       _list    = new int[32];     //number of the list name, for each depth
+	private byte[]      _buf     = new byte[64];
+
+	/**
+	 * Constructor
+	 * @param names the names known by the records ; the number of a name is it's index.
+	 */
+	protected TypedHooks(String[] names) {
+		for (String n : names) _names.id(n);
+		_known = names.length;
+	}
+
+	/**
+	 * @return the record receiving the top level fields ; called once, at the beginning
+	 *         of the analysis.
+	 */
+	abstract protected Record root();
+
+	/* number of the name in the token ; names that are not known in advance get a larger number */
+	private int name(Token t) {
+		int n = t.bytes(_buf);
+		if (n>_buf.length) { _buf = new byte[n]; n = t.bytes(_buf); }
+		int id = (n<0) ? -1 : _names.id(_buf,0,n);
+		return (id<_known) ? id : -1;
+	}
+
+	private void push(Record r) {
+		if (++_depth==_stack.length) {
+			Record[] s = new Record[2*_depth];
+			System.arraycopy(_stack,0,s,0,_depth);
+			_stack = s;
+			int[] l = new int[2*_depth];
+			System.arraycopy(_list,0,l,0,_depth);
+			_list = l;
+		}
+		_stack[_depth] = r;
+	}
+
+	/* the record for a sub-structure of the current record ; null to skip it */
+	private Record sub() {
+		Record r = _stack[_depth];
+		return (r==null || _name<0) ? null : r.struct(_name);
+	}
+
+	public boolean acceptsFlyweight()    { return true; }
+	public void    begin()               { _depth = 0; _stack[0] = root(); }
+	public void    end(Token t)          { }
+	public void    getName(Token t)      { _name = name(t); }
+	public boolean beforeStruct(Token t) { Record r = sub(); push(r); return r==null; }
+	public boolean afterStruct(Token t)  { _depth--; return false; }
+	public boolean beforeAnon(Token t)   { push(null); return true; }
+	public boolean afterAnon(Token t)    { _depth--; return false; }
+	public boolean beforeList(Token t)   {
+		Record r = _stack[_depth];
+		if (r!=null && (_name<0 || !r.list(_name))) r = null;
+		push(r);
+		_list[_depth] = _name;
+		return r==null;
+	}
+	public boolean afterList(Token t)    { _depth--; return false; }
+	public void    beforeEmpty(Token t)  { push(null); }
+	public boolean afterEmpty(Token t)   { _depth--; return false; }
+	public void    beforeBase(Token t)   { }
+	public boolean afterBase(Token t) {
+		Record r = _stack[_depth];
+		if (r!=null && _name>=0) r.base(_name,t);
+		return false;
+	}
+	public boolean afterListData(Token t) {
+		Record r = _stack[_depth];
+		if (r!=null) r.item(_list[_depth],t);
+		return false;
+	}
+
+	/**
+	 * @return the value as an int ; quotes are ignored. 0 if it is not a number.
+	 */
+	public static int asInt(Token t) {
+		return (int)asLong(t);
+	}
+
+	/**
+	 * @return the value as a long ; quotes are ignored. 0 if it is not a number.
+	 */
+	public static long asLong(Token t) {
+		String s = t.value();
+		int  i = 0, n = s.length();
+		if (n>=2 && s.charAt(0)=='"') { i=1; n--; }
+		boolean neg = i<n && s.charAt(i)=='-';
+		if (neg) i++;
+		long v = 0;
+		for (; i<n; i++) {
+			char c = s.charAt(i);
+			if (c<'0' || c>'9') break;
+			v = v*10 + (c-'0');
+		}
+		return (neg) ? -v : v;
+	}
+
+	/**
+	 * @return the value as a double ; quotes are ignored. 0 if it is not a number.
+	 */
+	public static double asDouble(Token t) {
+		String s = unquoted(t);
+		try {
+			return Double.parseDouble(s);
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return true if the value is yes, quoted or not
+	 */
+	public static boolean asBoolean(Token t) {
+		return unquoted(t).equals("yes");
+	}
+
+	/**
+	 * @return the value of a date (y.m.d) as year*10000+month*100+day ; -1 if it is not a date.
+	 */
+	public static int asDate(Token t) {
+		String s = unquoted(t);
+		int d1 = s.indexOf('.');
+		int d2 = s.indexOf('.',d1+1);
+		if (d1<=0 || d2<0) return -1;
+		try {
+			return Integer.parseInt(s.substring(0,d1))*10000 + Integer.parseInt(s.substring(d1+1,d2))*100 + Integer.parseInt(s.substring(d2+1));
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the value, as it is in the data (quotes included)
+	 */
+	public static String asString(Token t) {
+		return t.value();
+	}
+
+	/**
+	 * @return the value, without it's quotes if it had any
+	 */
+	public static String unquoted(Token t) {
+		String s = t.value();
+		int    n = s.length();
+		return (n>=2 && s.charAt(0)=='"' && s.charAt(n-1)=='"') ? s.substring(1,n-1) : s;
+	}
+}
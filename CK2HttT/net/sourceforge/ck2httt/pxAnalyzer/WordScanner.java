@@ -0,0 +1,90 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class reads a byte table 8 bytes at a time, and provides the bit tricks
+ * used to find in one go which of these 8 bytes are equal to a given value.<p>
+ * This lets the parsers pass over the uninteresting data (data in a skipped
+ * structure, quoted strings...) a word at a time instead of a byte at a time.
+ * The words are read little endian, so that the first byte of the data is the
+ * lowest byte of the word.<p>
+ *
+ * @see FastParser#_useWordScan
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+final class WordScanner {
+
+	static final private long __ONES  = 0x0101010101010101L;
+	static final private long __LOWS  = 0x7F7F7F7F7F7F7F7FL;
+
+	//patterns for the characters we usually look for
+	static final long __NL    = pattern('\n');
+	static final long __QUOTE = pattern('"');
+	static final long __HASH  = pattern('#');
+	static final long __OPEN  = pattern('{');
+	static final long __CLOSE = pattern('}');
+
+	private ByteBuffer _words;
+
+	WordScanner(byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+
+	WordScanner(ByteBuffer data) {
+		_words = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return the 8 bytes starting at index i ; there must be 8 bytes available.
+	 */
+	long word(int i) {
+		return _words.getLong(i);
+	}
+
+	/**
+	 * @return the pattern to use in match() to look for the byte c
+	 */
+	static long pattern(char c) {
+		return __ONES*(c&0xff);
+	}
+
+	/**
+	 * @return a mask where the high bit of each byte is set if the same byte in
+	 * the word is the one described by the pattern ; all other bits are 0.
+	 */
+	static long match(long word, long pattern) {
+		long x = word^pattern;
+		return ~(((x&__LOWS)+__LOWS)|x|__LOWS);
+	}
+
+	/**
+	 * Same as match(word,pattern('{'))|match(word,pattern('}')).
+	 */
+	static long matchBraces(long word) {
+		return match(word,__OPEN)|match(word,__CLOSE);
+	}
+
+	/**
+	 * Same as match(word,pattern('"'))|match(word,pattern('#')), in a single match :
+	 * " and # only differ by one bit.
+	 */
+	static long matchQuoteOrHash(long word) {
+		return match(word|__ONES,__HASH);
+	}
+
+	/**
+	 * @return the index in the word of the first byte set in a non null mask
+	 */
+	static int first(long mask) {
+		return Long.numberOfTrailingZeros(mask)>>>3;
+	}
+
+	/**
+	 * @return the number of bytes set in the mask before the first byte set in limit
+	 */
+	static int countBefore(long mask, long limit) {
+		return Long.bitCount(mask&((limit&-limit)-1));
+	}
+
+}
@@ -53,8 +53,8 @@ public class CharacterCvRules {
 			_adm = mrs.getStat(_ck._stew+_ck._intr/3);
 			_mil = mrs.getStat(_ck._mart+_ck._intr/3);
 			_dip = mrs.getStat(_ck._dipl+_ck._intr/3);
-			for (BaseField f : _ck.getTraits()) {
-				MonarchRule rule = mrs.getTraitModifiers(f.name());
+			for (String f : _ck.getTraits()) {
+				MonarchRule rule = mrs.getTraitModifiers(f);
 				if (rule!=null) {
 					_adm += rule._adm;
 					_dip += rule._dip;
@@ -234,8 +234,8 @@ public class CharacterCvRules {
 		 * applies traits from a character
 		 */
 		private boolean applyTraits(Characters.Stats ck) {
-			for (BaseField f : ck.getTraits()) {
-				if (!applyTrait(f.name())) return false;
+			for (String f : ck.getTraits()) {
+				if (!applyTrait(f)) return false;
 			}
 			return true;
 		}
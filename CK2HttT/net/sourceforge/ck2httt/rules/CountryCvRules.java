@@ -234,15 +234,15 @@ public class CountryCvRules {
     }
 
     public void checkLiegeTraits(Characters.Stats liege) {
-	 	for (BaseField f : liege.getTraits()) {
-	  		CountryCvRules.BaseRule r = _liegeTraits.get(_tier+f.name());
+	 	for (String f : liege.getTraits()) {
+	  		CountryCvRules.BaseRule r = _liegeTraits.get(_tier+f);
 	    	if (r!=null) _rules[_nb++]=r;
 	  	}
     }
 
     public void checkRulerTraits(Characters.Stats ruler) {
-		for (BaseField f : ruler.getTraits()) {
-			CountryCvRules.BaseRule r = _rulerTraits.get(_tier+f.name());
+		for (String f : ruler.getTraits()) {
+			CountryCvRules.BaseRule r = _rulerTraits.get(_tier+f);
 		    if (r!=null) _rules[_nb++]=r;
 		}
     }
@@ -455,12 +455,9 @@ public class CountryCvRules {
 		if (religion.equals("jewish"))   return _jewish;
 		if (religion.equals("pagan"))    return _pagan;
 		if (religion.equals("muslim")) { //complex rule here
-			Field<?> traits = ruler.Characters()._base.get("traits");
 			//check if we have the shiite or sunni traits
-			if (traits!=null && traits instanceof StructField) {
-			    if (traits.get("shiite")!=null) return "shiite";
-			    if (traits.get("sunni")!=null) return "sunni";
-			}
+			if (ruler.Characters().hasTrait("shiite")) return "shiite";
+			if (ruler.Characters().hasTrait("sunni")) return "sunni";
 			//else if capital province culture is muslim => religion of capital, else sunni
 			if (baseReligion.equals("sunni") || baseReligion.equals("shiite"))
 				return baseReligion;
@@ -686,19 +683,10 @@ public class CountryCvRules {
 				else
 					v += _hierarchyRules.search("other")._v;
 			if (_powerRules.size()!=0) {
-				StructField x = c._base.getStruct("privileges");
-				BaseField f = x.getBase("peasants");
-				BaseSliderRule r = _powerRules.search("peasants");
-				if (f!=null && r!=null) v += f.getAsFloat()*r._v;
-				f = x.getBase("burghers");
-				r = _powerRules.search("burghers");
-				if (f!=null && r!=null) v += f.getAsFloat()*r._v;
-				f = x.getBase("clergy");
-				r = _powerRules.search("clergy");
-				if (f!=null && r!=null) v += f.getAsFloat()*r._v;
-				f = x.getBase("nobles");
-				r = _powerRules.search("nobles");
-				if (f!=null && r!=null) v += f.getAsFloat()*r._v;
+				for (int i=0; i<County.__privileges.length; i++) {
+					BaseSliderRule r = _powerRules.search(County.__privileges[i]);
+					if (r!=null) v += c._privileges[i]*r._v;
+				}
 			}
 			return v;
 		}
@@ -56,10 +56,10 @@ public class CultureCvRules extends KeyString implements FieldLoadable {
 			}	*/					
 			public boolean beforeStruct(Token t) {
 				if (0 == _level) {
-					_group = _lastName._value;
+					_group = _lastName.value();
 				}
 				if (1 == _level) {
-					_culture = _lastName._value;
+					_culture = _lastName.value();
 					if (_culture.startsWith("ural")) {
 						int i = 0;
 					}
@@ -85,10 +85,10 @@ public class CultureCvRules extends KeyString implements FieldLoadable {
 				/* estonian = {
 				   } */
 				if (0 == _level) {
-					_group = _lastName._value;
+					_group = _lastName.value();
 				}
 				if (1 == _level) {
-					_culture = _lastName._value;
+					_culture = _lastName.value();
 				}			
 				_level++;
 			};
@@ -108,11 +108,11 @@ public class CultureCvRules extends KeyString implements FieldLoadable {
 			};
 			
 			public boolean afterListData(Token t) {
-                                if (_lastName._value.equals("dynasty_names")) {
+                                if (_lastName.value().equals("dynasty_names")) {
                                     return false;
                                 }
-				_culture = t._value;
-				_group = _lastName._value;				
+				_culture = t.value();
+				_group = _lastName.value();				
 				__list.add(new EU3Culture(_culture, _group));
 //                                System.out.println("Added:  " + _culture + " to:  " + _group + " (afterlistdata)");
                                                                 
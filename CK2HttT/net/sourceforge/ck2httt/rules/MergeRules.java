@@ -3,12 +3,12 @@ import java.io.IOException;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import net.sourceforge.ck2httt.ck.Analyzer;
 import net.sourceforge.ck2httt.ck.Country;
 import net.sourceforge.ck2httt.ck.County;
 import net.sourceforge.ck2httt.ck.Title;
 import net.sourceforge.ck2httt.cv.CvCountry;
 import net.sourceforge.ck2httt.pxAnalyzer.PXAdvancedAnalyzer;
-import net.sourceforge.ck2httt.pxAnalyzer.PXTree.Field;
 import net.sourceforge.ck2httt.pxAnalyzer.PXTree.StructField;
 import net.sourceforge.ck2httt.utils.OptionSection;
 
@@ -91,14 +91,12 @@ public class MergeRules {
 			value += r._add;
 			value += r._weight*((ProvinceCvRules._weightMoney) ? p._owner._income : p._owner._owned.size());
 		}
-		Field<?> f = p._base.get("improvements");
-		if (f!=null && f instanceof StructField)
-		    for (Field<?> x : ((StructField)f)._data) {
-		    	float w=ProvinceCvRules._improvementsOther;
-		    	try {w = ProvinceCvRules._improvements.search(x.name());}
-		    	catch (Exception ignore) {} //no specific data for that improvement
-		    	value += w;
-		    }
+		for (byte b : p._improvements) {
+			float w=ProvinceCvRules._improvementsOther;
+			try {w = ProvinceCvRules._improvements.search(County.Improvements.__array[b]._name);}
+			catch (Exception ignore) {} //no specific data for that improvement
+			value += w;
+		}
 		return value;
 	}
 	
@@ -117,6 +115,7 @@ public class MergeRules {
 	static public void load(String EU3path, String AltPath, String fname) throws IOException {
 		PXAdvancedAnalyzer a = new PXAdvancedAnalyzer(fname,true);
 		StructField root = a.analyze();
+		Analyzer.loadOptions(root.getStruct("loading"));
 		OptionSection.setOption(OptionSelectorPanel.getOption(root.getStruct("selection")));
 		CountryCvRules.loadReligionRules(root.getStruct("religions"));
 		CountryCvRules.loadCountryRules(root.getStruct("country_convert_rules"));
@@ -0,0 +1,213 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * A minimal benchmark harness : each case is run a few times to warm the JIT up,
+ * then measured over several iterations. For each iteration, we measure the time,
+ * the bytes allocated by the running thread (when the JVM tells it) and the garbage
+ * collections. The figures reported are the medians over the iterations.<p>
+ *
+ * The results are printed as a table, and may be appended to a CSV file so that
+ * they can be compared from one release to the next.<p>
+ *
+ * @see PXBench
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class Bench {
+
+	/**
+	 * A benchmark case. The same instance is run for all iterations.
+	 */
+	static public abstract class Case {
+		final String _name;
+		/**
+		 * @param name name of the case in the reports
+		 */
+		protected Case(String name) { _name = name; }
+		/**
+		 * Called once before the warm up ; not measured.
+		 */
+		protected void setUp() throws Exception { }
+		/**
+		 * Runs the case once.
+		 * @return the number of items processed (tokens, fields...) ; 0 if not meaningful.
+		 */
+		abstract protected long run() throws Exception;
+		/**
+		 * Called once after the measures ; it should release what setUp built.
+		 */
+		protected void tearDown() throws Exception { }
+		/**
+		 * @return the number of bytes of data processed by each run ; 0 if not meaningful.
+		 */
+		protected long bytes() { return 0; }
+		/**
+		 * @return the name of the items counted by run()
+		 */
+		protected String unit() { return "items"; }
+	}
+
+	/**
+	 * The measures for a case ; times are in ns, -1 when not available.
+	 */
+	static public class Result {
+		public String _name;
+		public String _input;
+		public long   _time;     //median time for a run
+		public long   _min;      //shortest run
+		public long   _items;    //items processed by a run
+		public String _unit;
+		public long   _bytes;    //data processed by a run
+		public long   _alloc;    //median allocation for a run ; -1 if unknown
+		public long   _gcCount;  //collections during the measured runs
+		public long   _gcTime;   //ms spent in collections during the measured runs
+		public String _error;    //the reason why the case could not be run ; null if it ran
+
+		double mbPerSec()    { return (_bytes==0) ? 0 : _bytes/1048576.0/(_time/1e9); }
+		double itemsPerSec() { return (_items==0) ? 0 : _items/(_time/1e9); }
+		double allocMbSec()  { return (_alloc<0)  ? -1 : _alloc/1048576.0/(_time/1e9); }
+	}
+
+	private int         _warmup     = 2;
+	private int         _iterations = 5;
+	private PrintWriter _csv;
+
+	/**
+	 * @param warmup     number of runs before the measures
+	 * @param iterations number of measured runs
+	 * @param csv        file the results are appended to ; null for none
+	 */
+	public Bench(int warmup, int iterations, File csv) throws IOException {
+		_warmup     = warmup;
+		_iterations = Math.max(1,iterations);
+		if (csv!=null) {
+			boolean header = !csv.exists();
+			_csv = new PrintWriter(new FileWriter(csv,true));
+			if (header) _csv.println("date,java,case,input,ms,min ms,MB/s,items/s,unit,alloc MB/op,alloc MB/s,gc,gc ms,error");
+		}
+		System.out.format("%-22s %-10s %10s %10s %9s %14s %12s %11s %5s %7s%n",
+				"case","input","ms/op","min ms","MB/s","items/s","alloc MB/op","alloc MB/s","gc","gc ms");
+	}
+
+	/**
+	 * Runs a case, then prints and records the result.
+	 * @param c     the case
+	 * @param input description of the input (size...)
+	 * @return the measures
+	 */
+	public Result run(Case c, String input) {
+		Result r = new Result();
+		r._name  = c._name;
+		r._input = input;
+		r._unit  = c.unit();
+		try {
+			c.setUp();
+			r._bytes = c.bytes();
+			for (int i=0; i<_warmup; i++) c.run();
+			long[] time  = new long[_iterations];
+			long[] alloc = new long[_iterations];
+			System.gc();
+			long gcCount = gcCount(), gcTime = gcTime();
+			for (int i=0; i<_iterations; i++) {
+				long a = allocated();
+				long t = System.nanoTime();
+				r._items = c.run();
+				time[i]  = System.nanoTime()-t;
+				alloc[i] = (a<0) ? -1 : allocated()-a;
+			}
+			r._gcCount = gcCount()-gcCount;
+			r._gcTime  = gcTime()-gcTime;
+			Arrays.sort(time);
+			Arrays.sort(alloc);
+			r._time  = time[_iterations/2];
+			r._min   = time[0];
+			r._alloc = alloc[_iterations/2];
+		}
+		catch (OutOfMemoryError e) {
+			r._error = "out of memory";
+		}
+		catch (Exception e) {
+			r._error = e.toString();
+			e.printStackTrace(System.out);
+		}
+		finally {
+			try {
+				c.tearDown();
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.out);
+			}
+		}
+		report(r);
+		return r;
+	}
+
+	private void report(Result r) {
+		if (r._error!=null)
+			System.out.format("%-22s %-10s skipped : %s%n",r._name,r._input,r._error);
+		else
+			System.out.format("%-22s %-10s %10.1f %10.1f %9.1f %14.0f %12.1f %11.1f %5d %7d%n",
+					r._name,r._input,r._time/1e6,r._min/1e6,r.mbPerSec(),r.itemsPerSec(),
+					(r._alloc<0) ? -1 : r._alloc/1048576.0,r.allocMbSec(),r._gcCount,r._gcTime);
+		if (_csv==null) return;
+		_csv.format("%tF,%s,%s,%s,%.1f,%.1f,%.1f,%.0f,%s,%.1f,%.1f,%d,%d,%s%n",
+				new java.util.Date(),System.getProperty("java.version"),r._name,r._input,
+				r._time/1e6,r._min/1e6,r.mbPerSec(),r.itemsPerSec(),r._unit,
+				(r._alloc<0) ? -1 : r._alloc/1048576.0,r.allocMbSec(),r._gcCount,r._gcTime,
+				(r._error==null) ? "" : r._error.replace(',',' '));
+		_csv.flush();
+	}
+
+	/**
+	 * Closes the CSV file, if any.
+	 */
+	public void close() {
+		if (_csv!=null) _csv.close();
+	}
+
+	//the allocation counter is only available on the Sun JVMs (com.sun.management.ThreadMXBean)
+	static private ThreadMXBean __threads = ManagementFactory.getThreadMXBean();
+	static private Method       __allocated;
+	static {
+		try {
+			__allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",long.class);
+			if (((Long)__allocated.invoke(__threads,Thread.currentThread().getId()))<0) __allocated = null;
+		}
+		catch (Exception e) {
+			__allocated = null;
+		}
+	}
+
+	/* bytes allocated by the current thread since it started ; -1 if unknown */
+	static private long allocated() {
+		if (__allocated==null) return -1;
+		try {
+			return (Long)__allocated.invoke(__threads,Thread.currentThread().getId());
+		}
+		catch (Exception e) {
+			return -1;
+		}
+	}
+
+	static private long gcCount() {
+		long n = 0;
+		for (GarbageCollectorMXBean b : ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0,b.getCollectionCount());
+		return n;
+	}
+
+	static private long gcTime() {
+		long n = 0;
+		for (GarbageCollectorMXBean b : ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0,b.getCollectionTime());
+		return n;
+	}
+
+}
@@ -0,0 +1,236 @@
+package net.sourceforge.ck2httt.pxAnalyzer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import net.sourceforge.ck2httt.ck.SaveGenerator;
+import net.sourceforge.ck2httt.pxAnalyzer.Analyzer.NoHooks;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.Field;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.StructField;
+import net.sourceforge.ck2httt.pxAnalyzer.PXTree.TreeHooks;
+import net.sourceforge.ck2httt.pxAnalyzer.Token.TokenType;
+
+/**
+ * The benchmarks for the pxAnalyzer package, run on synthetic saves of the given
+ * sizes :
+ * <ul>
+ * <li>tokens.fast, tokens.reader : tokenizing with the FastParser and the ReaderParser</li>
+ * <li>analyze.none : analysis with hooks that do nothing</li>
+ * <li>analyze.tree : analysis building the whole tree</li>
+ * <li>analyze.ck : analysis through the filter actually used by the converter</li>
+ * <li>lookup.getAll : looking fields up by name in the filtered tree</li>
+ * <li>write.writer, write.channel : writing a modified save back</li>
+ * </ul>
+ * The saves are generated by the {@link SaveGenerator} once in the work directory, and
+ * reused afterwards.<p>
+ *
+ * Usage : PXBench [-sizes 10,100,500] [-cases tokens,analyze...] [-warmup 2] [-iterations 5]
+ *                 [-seed 1] [-dir work directory] [-csv results file]<br>
+ * The sizes are in MB ; a case is run if its name starts with one of the given cases.
+ * The largest saves need a large heap (-Xmx) for the cases building a tree : those
+ * that don't fit are reported as skipped.
+ *
+ * @see Bench
+ * @author Copyright 2007 Yves Prlot ; distributed under the terms of the GNU General Public License
+ */
+public class PXBench {
+
+	static private String __filter = net.sourceforge.ck2httt.ck.Analyzer.__filter;
+
+	private File   _file;   //the save
+	private byte[] _data;   //its content
+	private long   _tokens; //number of tokens in it
+
+	private PXBench(File file) throws IOException {
+		_file   = file;
+		_data   = FileLoader.inflate(file);
+		_tokens = count(new FastParser(_data));
+	}
+
+	/* number of tokens read by a tokenizer */
+	static private long count(Token.Tokenizer t) {
+		long n = 0;
+		for (TokenType x=t.next(); x!=TokenType.END && x!=TokenType.ERROR; x=t.next()) n++;
+		return n;
+	}
+
+	/* a case processing the whole data */
+	private abstract class DataCase extends Bench.Case {
+		DataCase(String name)    { super(name); }
+		protected long   bytes() { return _data.length; }
+		protected String unit()  { return "tokens"; }
+	}
+
+	/* a case analyzing the data with fresh hooks */
+	private abstract class AnalyzeCase extends DataCase {
+		AnalyzeCase(String name) { super(name); }
+		abstract Analyzer.Hooks hooks() throws Exception;
+		protected long run() throws Exception {
+			Analyzer.Result r = Analyzer.run(_data,hooks());
+			if (!r._ok) throw new IllegalStateException(r.toString());
+			return _tokens;
+		}
+	}
+
+	/* a case writing a modified save */
+	private abstract class WriteCase extends DataCase {
+		PXAdvancedAnalyzer _a;
+		WriteCase(String name) { super(name); }
+		protected String unit() { return ""; }
+		protected void setUp() throws Exception {
+			_a = new PXAdvancedAnalyzer(_file.getPath(),PXAdvancedAnalyzer.Mode.FAST);
+			StructField root = _a.analyze(__filter);
+			//one change in each province
+			for (Field<?> f : root._data)
+				if (f.name().equals("province") && f instanceof StructField) {
+					PXTree.BaseField r = ((StructField)f).getBase("religion");
+					if (r!=null) r.set("orthodox");
+				}
+		}
+		protected void tearDown() { _a = null; }
+	}
+
+	private ArrayList<Bench.Case> cases() {
+		ArrayList<Bench.Case> l = new ArrayList<Bench.Case>();
+		l.add(new DataCase("tokens.fast") {
+			protected long run() { return count(new FastParser(_data)); }
+		});
+		l.add(new DataCase("tokens.reader") {
+			protected long run() throws IOException {
+				return count(new ReaderParser(new InputStreamReader(new ByteArrayInputStream(_data),"ISO-8859-1")));
+			}
+		});
+		l.add(new AnalyzeCase("analyze.none") {
+			Analyzer.Hooks hooks() { return new NoHooks(); }
+		});
+		l.add(new AnalyzeCase("analyze.tree") {
+			Analyzer.Hooks hooks() { return new TreeHooks(); }
+		});
+		l.add(new AnalyzeCase("analyze.ck") {
+			Analyzer.Hooks hooks() throws Exception { return new PXTreeChooser().get(__filter); }
+		});
+		l.add(new Bench.Case("lookup.getAll") {
+			StructField _root;
+			long        _found; //kept so that the lookups cannot be optimized away
+			protected String unit() { return "lookups"; }
+			protected void setUp() throws Exception {
+				PXTreeChooser c = new PXTreeChooser();
+				Analyzer.run(_data,c.get(__filter));
+				_root = c.getDataTree();
+			}
+			protected long run() {
+				long n = 0, found = 0;
+				for (Field<?> f : _root._data) {
+					if (!(f instanceof StructField)) continue;
+					StructField s = (StructField)f;
+					if (f.name().equals("character")) {
+						found += s.getAll("tag").length;
+						found += s.getAllStruct("attributes").length;
+						found += s.getAll("deathdate").length;
+						found += s.getAll("no_such_field").length;
+						n += 4;
+					}
+					else if (f.name().equals("province")) {
+						found += s.getAll("religion").length;
+						found += s.getAll("culture").length;
+						n += 2;
+					}
+				}
+				_found += found;
+				return n;
+			}
+			protected void tearDown() { _root = null; }
+		});
+		l.add(new WriteCase("write.writer") {
+			protected long run() throws IOException {
+				Writer w = new Writer() {
+					public void write(char[] b, int off, int len) { }
+					public void flush() { }
+					public void close() { }
+				};
+				_a.write(w);
+				return 0;
+			}
+		});
+		l.add(new WriteCase("write.channel") {
+			File _out;
+			protected void setUp() throws Exception {
+				super.setUp();
+				_out = File.createTempFile("pxbench",".txt");
+			}
+			protected long run() throws IOException {
+				_a.write(_out);
+				return 0;
+			}
+			protected void tearDown() {
+				super.tearDown();
+				_out.delete();
+			}
+		});
+		return l;
+	}
+
+	/**
+	 * Writes a synthetic save of about the given size, with the proportions of a real save.
+	 * @param file where to write
+	 * @param size approximate size in bytes
+	 * @param seed seed for the random data ; the same seed gives the same save
+	 */
+	static void generate(File file, long size, long seed) throws IOException {
+		SaveGenerator g = new SaveGenerator();
+		g._seed       = seed;
+		g._characters = (int)Math.max(100,size/420); //about 420 bytes for each character, with its share of provinces and titles
+		g._provinces  = Math.max(10,g._characters/20);
+		g._titles     = Math.max(5,g._provinces*3/10);
+		g._wars       = Math.max(3,g._characters/1000);
+		g._alliances  = Math.max(3,g._characters/400);
+		g.write(file);
+	}
+
+	/* the value following the option in the arguments ; def if the option is not there */
+	static private String option(String[] args, String name, String def) {
+		for (int i=0; i<args.length-1; i++)
+			if (args[i].equals(name)) return args[i+1];
+		return def;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String[] sizes  = option(args,"-sizes","10,100").split(",");
+		String[] names  = option(args,"-cases","").split(",");
+		long     seed   = Long.parseLong(option(args,"-seed","1"));
+		File     dir    = new File(option(args,"-dir",System.getProperty("java.io.tmpdir")));
+		String   csv    = option(args,"-csv",null);
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create "+dir);
+		Bench    bench  = new Bench(Integer.parseInt(option(args,"-warmup","2")),
+				                    Integer.parseInt(option(args,"-iterations","5")),
+				                    (csv==null) ? null : new File(csv));
+		try {
+			for (String size : sizes) {
+				File f = new File(dir,"pxbench-"+size+"MB-"+seed+".txt");
+				if (!f.exists()) {
+					System.out.println("generating "+f);
+					generate(f,Long.parseLong(size)<<20,seed);
+				}
+				PXBench b;
+				try {
+					b = new PXBench(f);
+				}
+				catch (OutOfMemoryError e) {
+					System.out.println(f+" : out of memory");
+					continue;
+				}
+				for (Bench.Case c : b.cases())
+					for (String n : names)
+						if (c._name.startsWith(n)) { bench.run(c,size+"MB"); break; }
+			}
+		}
+		finally {
+			bench.close();
+		}
+	}
+
+}